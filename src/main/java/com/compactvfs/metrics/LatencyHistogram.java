@@ -0,0 +1,86 @@
+package com.compactvfs.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram with power-of-two buckets: bucket i holds values in [2^(i-1), 2^i)
+ * recording never blocks, so it is safe to call on the hot path
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        long nonNegative = Math.max(0, value);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nonNegative));
+        count.increment();
+        sum.add(nonNegative);
+        max.accumulate(nonNegative);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long cnt = getCount();
+        return cnt == 0 ? 0 : (double) getSum() / cnt;
+    }
+
+    /**
+     * @param quantile in [0, 1]
+     * @return upper bound of the bucket containing the quantile
+     */
+    public long getQuantileUpperBound(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return i == 0 ? 0 : Math.min(getMax(), i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() +
+                " mean=" + (long) getMean() +
+                " p50=" + getQuantileUpperBound(0.5) +
+                " p99=" + getQuantileUpperBound(0.99) +
+                " max=" + getMax();
+    }
+}
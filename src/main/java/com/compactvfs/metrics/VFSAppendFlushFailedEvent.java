@@ -0,0 +1,21 @@
+package com.compactvfs.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.compactvfs.AppendFlushFailed")
+@Label("VFS Append Flush Failed")
+@Category("CompactVFS")
+@Description("Background flush of coalesced appends failed, the appends stay buffered")
+public class VFSAppendFlushFailedEvent extends jdk.jfr.Event {
+    @Label("Path")
+    public String path;
+
+    @Label("Buffered Bytes")
+    public int bufferedBytes;
+
+    @Label("Error")
+    public String error;
+}
@@ -0,0 +1,24 @@
+package com.compactvfs.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.compactvfs.LockTimeout")
+@Label("VFS Lock Timeout")
+@Category("CompactVFS")
+@Description("Lock on a file or one of its parent directories was not acquired in time")
+public class VFSLockTimeoutEvent extends jdk.jfr.Event {
+    @Label("Path")
+    public String path;
+
+    @Label("Mode")
+    public String mode;
+
+    @Label("Contended Path")
+    public String contendedPath;
+
+    @Label("Interrupted")
+    public boolean interrupted;
+}
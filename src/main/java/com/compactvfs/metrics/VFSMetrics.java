@@ -0,0 +1,225 @@
+package com.compactvfs.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one VFS instance, latencies are in nanoseconds
+ */
+public class VFSMetrics {
+    public enum LockMode {
+        READ,
+        WRITE
+    }
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder optimisticReads = new LongAdder();
+    private final LongAdder optimisticReadConflicts = new LongAdder();
+    private final LongAdder failedReads = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+    private final LongAdder readLockTimeouts = new LongAdder();
+    private final LongAdder writeLockTimeouts = new LongAdder();
+    private final LongAdder lockInterruptions = new LongAdder();
+    private final LongAdder corruptions = new LongAdder();
+    private final LongAdder appendFlushFailures = new LongAdder();
+    private final LongAdder skippedArchiveEntries = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LatencyHistogram chunksPerRead = new LatencyHistogram();
+
+    public void onRead(long latencyNanos, long bytes, int chunks) {
+        reads.increment();
+        bytesRead.add(bytes);
+        readLatency.record(latencyNanos);
+        chunksPerRead.record(chunks);
+    }
+
+    public void onWrite(long latencyNanos, long bytes) {
+        writes.increment();
+        bytesWritten.add(bytes);
+        writeLatency.record(latencyNanos);
+    }
+
+    /**
+     * @param validated false if the read had to be repeated under read locks
+     */
+    public void onOptimisticRead(boolean validated) {
+        if (validated) {
+            optimisticReads.increment();
+        } else {
+            optimisticReadConflicts.increment();
+        }
+    }
+
+    public void onFailedRead() {
+        failedReads.increment();
+    }
+
+    public void onFailedWrite() {
+        failedWrites.increment();
+    }
+
+    public void onLockWait(long waitNanos) {
+        lockWait.record(waitNanos);
+    }
+
+    public void onLockTimeout(LockMode mode) {
+        if (mode == LockMode.READ) {
+            readLockTimeouts.increment();
+        } else {
+            writeLockTimeouts.increment();
+        }
+    }
+
+    public void onLockInterrupted() {
+        lockInterruptions.increment();
+    }
+
+    public void onCorruption() {
+        corruptions.increment();
+    }
+
+    /**
+     * Background flush of coalesced appends failed, the appends stay buffered
+     */
+    public void onAppendFlushFailed() {
+        appendFlushFailures.increment();
+    }
+
+    /**
+     * Archive entry with an unsafe or conflicting path or an unsupported type was not imported
+     */
+    public void onArchiveEntrySkipped() {
+        skippedArchiveEntries.increment();
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getOptimisticReads() {
+        return optimisticReads.sum();
+    }
+
+    public long getOptimisticReadConflicts() {
+        return optimisticReadConflicts.sum();
+    }
+
+    public long getFailedReads() {
+        return failedReads.sum();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.sum();
+    }
+
+    public long getReadLockTimeouts() {
+        return readLockTimeouts.sum();
+    }
+
+    public long getWriteLockTimeouts() {
+        return writeLockTimeouts.sum();
+    }
+
+    public long getLockInterruptions() {
+        return lockInterruptions.sum();
+    }
+
+    public long getCorruptions() {
+        return corruptions.sum();
+    }
+
+    public long getAppendFlushFailures() {
+        return appendFlushFailures.sum();
+    }
+
+    public long getSkippedArchiveEntries() {
+        return skippedArchiveEntries.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public LatencyHistogram getLockWait() {
+        return lockWait;
+    }
+
+    public LatencyHistogram getChunksPerRead() {
+        return chunksPerRead;
+    }
+
+    /**
+     * Flat view for exporters, keys are stable metric names
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("vfs.reads", getReads());
+        ret.put("vfs.writes", getWrites());
+        ret.put("vfs.reads.optimistic", getOptimisticReads());
+        ret.put("vfs.reads.optimistic.conflicts", getOptimisticReadConflicts());
+        ret.put("vfs.reads.failed", getFailedReads());
+        ret.put("vfs.writes.failed", getFailedWrites());
+        ret.put("vfs.lock.read.timeouts", getReadLockTimeouts());
+        ret.put("vfs.lock.write.timeouts", getWriteLockTimeouts());
+        ret.put("vfs.lock.interruptions", getLockInterruptions());
+        ret.put("vfs.corruptions", getCorruptions());
+        ret.put("vfs.appends.flush.failures", getAppendFlushFailures());
+        ret.put("vfs.import.entries.skipped", getSkippedArchiveEntries());
+        ret.put("vfs.bytes.read", getBytesRead());
+        ret.put("vfs.bytes.written", getBytesWritten());
+        ret.put("vfs.read.latency", readLatency);
+        ret.put("vfs.write.latency", writeLatency);
+        ret.put("vfs.lock.wait", lockWait);
+        ret.put("vfs.read.chunks", chunksPerRead);
+        return ret;
+    }
+
+    public void reset() {
+        reads.reset();
+        writes.reset();
+        optimisticReads.reset();
+        optimisticReadConflicts.reset();
+        failedReads.reset();
+        failedWrites.reset();
+        readLockTimeouts.reset();
+        writeLockTimeouts.reset();
+        lockInterruptions.reset();
+        corruptions.reset();
+        appendFlushFailures.reset();
+        skippedArchiveEntries.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        readLatency.reset();
+        writeLatency.reset();
+        lockWait.reset();
+        chunksPerRead.reset();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,37 @@
+package com.compactvfs.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Committed only for operations slower than the threshold, override with
+ * -XX:StartFlightRecording:settings=... or jdk.jfr.Recording#enable(...).withThreshold(...)
+ */
+@Name("com.compactvfs.Operation")
+@Label("VFS Operation")
+@Category("CompactVFS")
+@Description("Slow VFS read or write, including lock acquisition")
+@Threshold("10 ms")
+@StackTrace(false)
+public class VFSOperationEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Path")
+    public String path;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Chunks")
+    public int chunks;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,18 @@
+package com.compactvfs.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.compactvfs.SegmentCorrupted")
+@Label("VFS Segment Corrupted")
+@Category("CompactVFS")
+@Description("Record of a sealed segment can't be parsed on load, later records of the segment are skipped")
+public class VFSSegmentCorruptedEvent extends jdk.jfr.Event {
+    @Label("Segment Id")
+    public int segmentId;
+
+    @Label("Offset")
+    public long offset;
+}
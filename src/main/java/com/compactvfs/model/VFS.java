@@ -2,122 +2,188 @@ package com.compactvfs.model;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.function.ToLongFunction;
+
+import com.compactvfs.metrics.VFSLockTimeoutEvent;
+import com.compactvfs.metrics.VFSMetrics;
+import com.compactvfs.metrics.VFSMetrics.LockMode;
+import com.compactvfs.metrics.VFSOperationEvent;
+import com.compactvfs.model.VFSLockManager.PathLock;
+import com.compactvfs.storage.VFSChunkCorruptedException;
+import com.compactvfs.storage.VFSChunkIndex;
+import com.compactvfs.storage.VFSChunkIndex.ChunkList;
 import com.compactvfs.storage.VFSInputStream;
+import com.compactvfs.storage.VFSPack;
+import com.compactvfs.storage.VFSScrubReport;
+import com.compactvfs.storage.VFSSegmentStore;
+import com.compactvfs.storage.VFSSharedReader;
 import com.compactvfs.storage.VFSStorageDescriptor;
+import com.compactvfs.storage.VFSStorageEngine;
 
 import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
 import static com.compactvfs.model.VFSFile.getParentDir;
 
 public class VFS {
     private final VFSDirectory rootVFSDirectory;
-    private final VFSStorageDescriptor vfsStorageDescriptor;
+    private final VFSStorageEngine storageEngine;
+    private final VFSLockManager lockManager;
+    private final VFSPathIndex pathIndex;
+    private final VFSMetrics metrics;
 
     private static final int READLOCK_TIMEOUT_MS = 10;
     private static final int WRITELOCK_TIMEOUT_MS = 10;
 
-    public VFS(VFSDirectory rootVFSDirectory, VFSStorageDescriptor vfsStorageDescriptor) {
+    public VFS(VFSDirectory rootVFSDirectory, VFSStorageEngine storageEngine) {
+        this(rootVFSDirectory, storageEngine, new VFSLockManager());
+    }
+
+    public VFS(VFSDirectory rootVFSDirectory, VFSStorageEngine storageEngine, VFSLockManager lockManager) {
         this.rootVFSDirectory = rootVFSDirectory;
-        this.vfsStorageDescriptor = vfsStorageDescriptor;
+        this.storageEngine = storageEngine;
+        this.lockManager = lockManager;
+        this.metrics = storageEngine.getMetrics();
+        this.pathIndex = VFSPathIndex.of(rootVFSDirectory);
+        initMerkleHashes(rootVFSDirectory);
+    }
+
+    // stats are kept in memory, no content is read
+    private long initMerkleHashes(VFSDirectory directory) {
+        long hash = 0;
+        for (VFSFile subFile : directory.getSubFiles()) {
+            hash += VFSMerkleHash.fileTerm(subFile.getName(), storageEngine.stat(subFile.getPath()));
+        }
+        for (VFSDirectory subDirectory : directory.getSubDirectories()) {
+            hash += VFSMerkleHash.directoryTerm(subDirectory.getName(), initMerkleHashes(subDirectory));
+        }
+        directory.setMerkleHash(hash);
+        return hash;
+    }
+
+    /**
+     * Adds the change of a child term to the last directory and the changes of the directory terms to the others
+     */
+    private static void updateMerkleHashes(List<VFSDirectory> dirsOnPath, long termDelta) {
+        long delta = termDelta;
+        for (int i = dirsOnPath.size() - 1; i >= 0 && delta != 0; i--) {
+            VFSDirectory directory = dirsOnPath.get(i);
+            long oldHash = directory.addToMerkleHash(delta);
+            delta = VFSMerkleHash.directoryTerm(directory.getName(), oldHash + delta)
+                    - VFSMerkleHash.directoryTerm(directory.getName(), oldHash);
+        }
+    }
+
+    // a file not in the tree has no term, its content is only reachable after addFile
+    private void updateFileTerm(List<VFSDirectory> dirsOnPath, VFSFile vfsFile, VFSFileStat oldStat) {
+        if (dirsOnPath.get(dirsOnPath.size() - 1).getSubFile(vfsFile.getPath()) == null) {
+            return;
+        }
+        String name = vfsFile.getName();
+        updateMerkleHashes(dirsOnPath, VFSMerkleHash.fileTerm(name, storageEngine.stat(vfsFile.getPath()))
+                - VFSMerkleHash.fileTerm(name, oldStat));
+    }
+
+    /**
+     * Equal hashes mean equal trees of names and contents, the root name is not included
+     */
+    public long getMerkleHash() {
+        return rootVFSDirectory.getMerkleHash();
     }
 
     public VFSDirectory getRootVFSDirectory() {
         return rootVFSDirectory;
     }
 
-    public boolean readLockFileAndParents(VFSFile vfsFile, List<VFSDirectory> dirsOnPath) {
+    public VFSStorageEngine getStorageEngine() {
+        return storageEngine;
+    }
 
-        for (int i = 0; i < dirsOnPath.size(); i++) {
-            VFSDirectory vfsDirectoryFromRoot = dirsOnPath.get(i);
-            try {
-                boolean dirLocked = vfsDirectoryFromRoot.getLock().readLock().tryLock(
-                        READLOCK_TIMEOUT_MS,
-                        TimeUnit.MILLISECONDS
-                );
-                if (!dirLocked) {
-                    unlockReadParents(i - 1, dirsOnPath);
-                    System.out.println("Timeout read lock, vfsFile: " + vfsFile.getPath());
-                    return false;
-                }
-            } catch (InterruptedException ex) {
-                unlockReadParents(i - 1, dirsOnPath);
-                System.out.println("Interrupted read lock, vfsFile: " + vfsFile.getPath() + " ex: " + ex.getMessage());
-                return false;
-            }
+    /**
+     * @throws UnsupportedOperationException if the VFS is backed by another storage engine
+     */
+    public VFSStorageDescriptor getStorageDescriptor() {
+        return segmentStorage("Storage descriptor");
+    }
 
+    // snapshots, scrub, shared readers and compaction work on the segments of the descriptor
+    private VFSStorageDescriptor segmentStorage(String operation) {
+        if (!(storageEngine instanceof VFSStorageDescriptor)) {
+            throw new UnsupportedOperationException(
+                    operation + " needs segment storage, storage is " + storageEngine.getClass().getSimpleName());
         }
+        return (VFSStorageDescriptor) storageEngine;
+    }
 
-        try {
-            boolean fileLocked = vfsFile.getLock().readLock().tryLock(READLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-            if (!fileLocked) {
-                unlockReadParents(dirsOnPath.size() - 1, dirsOnPath);
-                System.out.println("Timeout read lock, vfsFile: " + vfsFile.getPath());
-                return false;
-            }
-            return true;
-        } catch (InterruptedException ex) {
-            unlockReadParents(dirsOnPath.size() - 1, dirsOnPath);
-            System.out.println("Interrupted read lock, vfsFile: " + vfsFile.getPath() + " ex: " + ex.getMessage());
-            return false;
-        }
+    public VFSMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Parents and file are read locked, use for reads that must not race with any writer
+     *
+     * @return taken locks to unlock, null if they weren't taken in time
+     */
+    public PathLock readLockFileAndParents(VFSFile vfsFile, List<VFSDirectory> dirsOnPath) {
+        return lockPath(vfsFile.getPath(), dirsOnPath, false, vfsFile.getPath(), false);
+    }
 
+    public PathLock writeLockFileAndParents(VFSFile vfsFile, List<VFSDirectory> dirsOnPath) {
+        return lockPath(vfsFile.getPath(), dirsOnPath, true, vfsFile.getPath(), true);
     }
 
-    public boolean writeLockFileAndParents(VFSFile vfsFile, List<VFSDirectory> dirsOnPath) {
-        for (int i = 0; i < dirsOnPath.size(); i++) {
-            VFSDirectory vfsDirectoryFromRoot = dirsOnPath.get(i);
-            try {
-                boolean dirLocked = vfsDirectoryFromRoot.getLock().writeLock().tryLock(
-                        WRITELOCK_TIMEOUT_MS,
-                        TimeUnit.MILLISECONDS
-                );
-                if (!dirLocked) {
-                    unlockWriteParents(i - 1, dirsOnPath);
-                    System.out.println("Timeout write lock, vfsFile: " + vfsFile.getPath());
-                    return false;
-                }
-            } catch (InterruptedException ex) {
-                unlockWriteParents(i - 1, dirsOnPath);
-                System.out.println("Interrupted write lock, vfsFile: " + vfsFile.getPath() + " ex: " + ex.getMessage());
-                return false;
-            }
+    /**
+     * Content writes don't change the tree, so parents are only read locked:
+     * writers of different files and readers of other files don't invalidate each other
+     */
+    public PathLock writeLockFileReadLockParents(VFSFile vfsFile, List<VFSDirectory> dirsOnPath) {
+        return lockPath(vfsFile.getPath(), dirsOnPath, false, vfsFile.getPath(), true);
+    }
 
-        }
+    public PathLock writeLockParents(String filePath, List<VFSDirectory> dirsOnPath) {
+        return lockPath(filePath, dirsOnPath, true, null, false);
+    }
 
+    private PathLock lockPath(
+            String targetPath,
+            List<VFSDirectory> dirsOnPath,
+            boolean parentsExclusive,
+            String lockedFilePath,
+            boolean fileExclusive
+    ) {
+        LockMode mode = parentsExclusive || fileExclusive ? LockMode.WRITE : LockMode.READ;
+        PathLock pathLock = lockManager.pathLock(dirsOnPath, parentsExclusive, lockedFilePath, fileExclusive);
+        long waitStart = System.nanoTime();
         try {
-            boolean fileLocked = vfsFile.getLock().writeLock().tryLock(WRITELOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-            if (!fileLocked) {
-                unlockWriteParents(dirsOnPath.size() - 1, dirsOnPath);
-                System.out.println("Timeout write lock, vfsFile: " + vfsFile.getPath());
-                return false;
+            if (!pathLock.tryLock(READLOCK_TIMEOUT_MS, WRITELOCK_TIMEOUT_MS)) {
+                onLockFailed(targetPath, mode, pathLock.getContendedPath(), false, waitStart);
+                return null;
             }
-            return true;
         } catch (InterruptedException ex) {
-            unlockWriteParents(dirsOnPath.size() - 1, dirsOnPath);
-            System.out.println("Interrupted write lock, vfsFile: " + vfsFile.getPath() + " ex: " + ex.getMessage());
-            return false;
+            onLockFailed(targetPath, mode, pathLock.getContendedPath(), true, waitStart);
+            return null;
         }
+        metrics.onLockWait(System.nanoTime() - waitStart);
+        return pathLock;
     }
 
-    public byte[] readBytesFrom(VFSFile vfsFile) throws IOException {
-        List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(getParentDir(vfsFile.getPath()));
-
-        boolean locked = readLockFileAndParents(vfsFile, dirsOnPath);
-        if (!locked) {
-            return null;
-        }
+    @FunctionalInterface
+    private interface ContentReader<T> {
+        T read(VFSInputStream vfsInputStream) throws IOException;
+    }
 
-        try (VFSInputStream vfsInputStream = vfsStorageDescriptor.readFileContent(vfsFile.getPath())) {
-            return vfsInputStream.readAllBytes();
-        } finally {
-            vfsFile.getLock().readLock().unlock();
-            unlockReadParents(dirsOnPath.size() - 1, dirsOnPath);
-        }
+    public byte[] readBytesFrom(VFSFile vfsFile) throws IOException {
+        return readContent("read", vfsFile, VFSInputStream::readAllBytes, content -> content.length, null);
     }
 
     /**
@@ -126,131 +192,742 @@ public class VFS {
      * @return count of read bytes
      */
     public int readNBytesFrom(VFSFile vfsFile, byte[] b, int n) throws IOException {
-        List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(getParentDir(vfsFile.getPath()));
+        return readContent("readN", vfsFile, in -> in.readNBytes(b, n), bytesRead -> bytesRead, 0);
+    }
 
-        boolean locked = readLockFileAndParents(vfsFile, dirsOnPath);
-        if (!locked) {
-            return 0;
-        }
+    /**
+     * @param b size >= off + len
+     * @return count of read bytes, -1 if the offset is at or after the end of the file
+     */
+    public int readNBytesFrom(VFSFile vfsFile, long fileOffset, byte[] b, int off, int len) throws IOException {
+        return read(vfsFile.getPath(), fileOffset, ByteBuffer.wrap(b, off, len));
+    }
 
-        try (VFSInputStream vfsInputStream = vfsStorageDescriptor.readFileContent(vfsFile.getPath())) {
-            return vfsInputStream.readNBytes(b, n);
-        } finally {
-            vfsFile.getLock().readLock().unlock();
-            unlockReadParents(dirsOnPath.size() - 1, dirsOnPath);
+    /**
+     * Fills the caller buffer in place from its position, heap or direct
+     *
+     * @return count of read bytes, -1 if the offset is at or after the end of the file,
+     * 0 if locks can't be taken in time
+     */
+    public int read(String filePath, long fileOffset, ByteBuffer dst) throws IOException {
+        return (int) read(filePath, fileOffset, new ByteBuffer[]{dst});
+    }
+
+    /**
+     * Scattering variant of {@link #read(String, long, ByteBuffer)}, buffers are filled in order
+     */
+    public long read(String filePath, long fileOffset, ByteBuffer[] dsts) throws IOException {
+        int[] startPositions = new int[dsts.length];
+        for (int i = 0; i < dsts.length; i++) {
+            startPositions[i] = dsts[i].position();
         }
+        return readContent(
+                "readAt",
+                new VFSFile(filePath),
+                in -> {
+                    // an optimistic attempt may have filled the buffers already
+                    for (int i = 0; i < dsts.length; i++) {
+                        dsts[i].position(startPositions[i]);
+                    }
+                    return in.read(fileOffset, dsts);
+                },
+                bytesRead -> Math.max(bytesRead, 0),
+                0L
+        );
+    }
+
+    /**
+     * Positional read of a large range, extents are fetched concurrently by tasks of the executor
+     *
+     * @return count of read bytes, -1 if the offset is at or after the end of the file,
+     * 0 if locks can't be taken in time
+     */
+    public long readParallel(String filePath, long fileOffset, ByteBuffer dst, Executor executor) throws IOException {
+        int startPosition = dst.position();
+        return readContent(
+                "readParallel",
+                new VFSFile(filePath),
+                in -> {
+                    dst.position(startPosition);
+                    return in.readParallel(fileOffset, dst, storageEngine.getExtentBytes(), executor);
+                },
+                bytesRead -> Math.max(bytesRead, 0),
+                0L
+        );
     }
 
     public byte[] readAllFileBatched(VFSFile vfsFile) throws IOException {
+        return readContent("readBatched", vfsFile, VFS::readBatched, content -> content.length, null);
+    }
+
+    private static byte[] readBatched(VFSInputStream vfsInputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int n = 1000;
+        byte[] b = new byte[n];
+        int bytesRead;
+        do {
+            bytesRead = vfsInputStream.readNBytes(b, n);
+            outputStream.write(b, 0, bytesRead);
+        } while (bytesRead == n);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Storage is append-only and chunk position lists are replaced on write, never mutated,
+     * so the read first runs without locks and is accepted if no writer touched the path meanwhile.
+     * Only on conflict it is repeated under read locks
+     *
+     * @param lockFailedValue returned if locks can't be taken in time
+     */
+    private <T> T readContent(
+            String operation,
+            VFSFile vfsFile,
+            ContentReader<T> reader,
+            ToLongFunction<T> bytesCount,
+            T lockFailedValue
+    ) throws IOException {
+        VFSOperationEvent event = beginEvent(operation, vfsFile.getPath());
+        long start = System.nanoTime();
         List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(getParentDir(vfsFile.getPath()));
 
-        boolean locked = readLockFileAndParents(vfsFile, dirsOnPath);
-        if (!locked) {
-            return null;
+        PathLock optimisticLock = lockManager.pathLock(dirsOnPath, false, vfsFile.getPath(), false);
+        if (optimisticLock.tryOptimisticRead()) {
+            try (VFSInputStream vfsInputStream = storageEngine.readFileContent(vfsFile.getPath())) {
+                T result = reader.read(vfsInputStream);
+                if (optimisticLock.validate()) {
+                    metrics.onOptimisticRead(true);
+                    onRead(event, start, bytesCount.applyAsLong(result), vfsInputStream.getChunksCount());
+                    return result;
+                }
+            } catch (IOException ex) {
+                if (optimisticLock.validate()) {
+                    onReadFailed(event, ex);
+                    throw ex;
+                }
+            }
+        }
+        metrics.onOptimisticRead(false);
+
+        PathLock pathLock = readLockFileAndParents(vfsFile, dirsOnPath);
+        if (pathLock == null) {
+            onReadFailed(event);
+            return lockFailedValue;
         }
 
-        try (VFSInputStream vfsInputStream = vfsStorageDescriptor.readFileContent(vfsFile.getPath())) {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            int n = 1000;
-            byte[] b = new byte[n];
-            int bytesRead;
-            do {
-                bytesRead = vfsInputStream.readNBytes(b, n);
-                outputStream.write(b, 0, bytesRead);
-            } while (bytesRead == n);
-            return outputStream.toByteArray();
+        try (VFSInputStream vfsInputStream = storageEngine.readFileContent(vfsFile.getPath())) {
+            T result = reader.read(vfsInputStream);
+            onRead(event, start, bytesCount.applyAsLong(result), vfsInputStream.getChunksCount());
+            return result;
+        } catch (IOException ex) {
+            onReadFailed(event, ex);
+            throw ex;
         } finally {
-            vfsFile.getLock().readLock().unlock();
-            unlockReadParents(dirsOnPath.size() - 1, dirsOnPath);
+            pathLock.unlock();
         }
     }
 
-    public void unlockReadParents(int fromIndex, List<VFSDirectory> dirsOnPathFromRoot) {
-        for (int j = fromIndex; j >= 0; j--) {
-            dirsOnPathFromRoot.get(j).getLock().readLock().unlock();
-        }
+    public boolean writeBytesToNewFile(VFSFile vfsFile, byte[] content) throws IOException {
+        return writeContent("writeNew", vfsFile, content, true);
     }
 
-    public void unlockWriteParents(int fromIndex, List<VFSDirectory> dirsOnPathFromRoot) {
-        for (int j = fromIndex; j >= 0; j--) {
-            dirsOnPathFromRoot.get(j).getLock().writeLock().unlock();
-        }
+    public boolean writeBytesToTheEndOfFile(VFSFile vfsFile, byte[] content) throws IOException {
+        return writeContent("append", vfsFile, content, false);
     }
 
-    public boolean writeBytesToNewFile(VFSFile vfsFile, byte[] content) throws IOException {
-        List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(getParentDir(vfsFile.getPath()));
-        boolean locked = writeLockFileAndParents(vfsFile, dirsOnPath);
-        if (!locked) {
-            return false;
+    /**
+     * Replaces the content with the stream extent by extent, the size isn't bound by an array
+     *
+     * @return count of written bytes, -1 if locks can't be taken in time
+     */
+    public long writeStreamToNewFile(VFSFile vfsFile, InputStream content) throws IOException {
+        VFSOperationEvent event = beginEvent("writeStream", vfsFile.getPath());
+        long start = System.nanoTime();
+        List<VFSDirectory> dirsOnPath = findDirsFromRootToDir(getParentDir(vfsFile.getPath()));
+        PathLock pathLock = dirsOnPath == null ? null : writeLockFileReadLockParents(vfsFile, dirsOnPath);
+        if (pathLock == null) {
+            onWriteFailed(event);
+            return -1;
         }
         try {
-            vfsStorageDescriptor.writeNewFileContentInTheEnd(vfsFile.getPath(), content);
-            return true;
+            if (!dirsStillOnPath(dirsOnPath, vfsFile.getPath())) {
+                onWriteFailed(event);
+                return -1;
+            }
+            VFSFileStat oldStat = storageEngine.stat(vfsFile.getPath());
+            long bytesCount;
+            try {
+                bytesCount = storageEngine.writeNewFileContentFrom(vfsFile.getPath(), content);
+            } finally {
+                // a failed stream may have written some extents
+                updateFileTerm(dirsOnPath, vfsFile, oldStat);
+            }
+            onWrite(event, start, bytesCount);
+            return bytesCount;
         } finally {
-            vfsFile.getLock().writeLock().unlock();
-            unlockWriteParents(dirsOnPath.size() - 1, dirsOnPath);
+            pathLock.unlock();
         }
     }
 
-    public boolean writeBytesToTheEndOfFile(VFSFile vfsFile, byte[] content) throws IOException {
-        List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(getParentDir(vfsFile.getPath()));
-        boolean locked = writeLockFileAndParents(vfsFile, dirsOnPath);
-        if (!locked) {
+    private boolean writeContent(String operation, VFSFile vfsFile, byte[] content, boolean replace) throws IOException {
+        VFSOperationEvent event = beginEvent(operation, vfsFile.getPath());
+        long start = System.nanoTime();
+        List<VFSDirectory> dirsOnPath = findDirsFromRootToDir(getParentDir(vfsFile.getPath()));
+        PathLock pathLock = dirsOnPath == null ? null : writeLockFileReadLockParents(vfsFile, dirsOnPath);
+        if (pathLock == null) {
+            onWriteFailed(event);
             return false;
         }
         try {
-            vfsStorageDescriptor.writeBytesToTheEndOfFile(vfsFile.getPath(), content);
+            if (!dirsStillOnPath(dirsOnPath, vfsFile.getPath())) {
+                onWriteFailed(event);
+                return false;
+            }
+            VFSFileStat oldStat = storageEngine.stat(vfsFile.getPath());
+            if (replace) {
+                storageEngine.writeNewFileContentInTheEnd(vfsFile.getPath(), content);
+            } else {
+                storageEngine.writeBytesToTheEndOfFile(vfsFile.getPath(), content);
+            }
+            updateFileTerm(dirsOnPath, vfsFile, oldStat);
+            onWrite(event, start, content.length);
             return true;
         } finally {
-            vfsFile.getLock().writeLock().unlock();
-            unlockWriteParents(dirsOnPath.size() - 1, dirsOnPath);
+            pathLock.unlock();
         }
     }
 
     public boolean addFile(String filePath, byte[] content) {
-        List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(getParentDir(filePath));
+        VFSOperationEvent event = beginEvent("addFile", filePath);
+        long start = System.nanoTime();
+        List<VFSDirectory> dirsOnPath = findDirsFromRootToDir(getParentDir(filePath));
 
-        if (writeLockParents(dirsOnPath)) {
+        PathLock pathLock = dirsOnPath == null ? null : writeLockParents(filePath, dirsOnPath);
+        if (pathLock != null) {
             try {
+                if (!dirsStillOnPath(dirsOnPath, filePath)) {
+                    onWriteFailed(event);
+                    return false;
+                }
                 VFSDirectory parentDir = dirsOnPath.get(dirsOnPath.size() - 1);
-                parentDir.addSubFile(new VFSFile(filePath));
-                vfsStorageDescriptor.rebuildDfsTree(rootVFSDirectory);
-                vfsStorageDescriptor.writeNewFileContentInTheEnd(filePath, content);
+                VFSFile vfsFile = new VFSFile(filePath);
+                long oldTerm = parentDir.getSubFile(filePath) == null
+                        ? 0
+                        : VFSMerkleHash.fileTerm(vfsFile.getName(), storageEngine.stat(filePath));
+                parentDir.addSubFile(vfsFile);
+                storageEngine.rebuildDfsTree(rootVFSDirectory);
+                storageEngine.writeNewFileContentInTheEnd(filePath, content);
+                pathIndex.add(vfsFile);
+                updateMerkleHashes(dirsOnPath,
+                        VFSMerkleHash.fileTerm(vfsFile.getName(), storageEngine.stat(filePath)) - oldTerm);
+                onWrite(event, start, content.length);
                 return true;
             } catch (IOException ex) {
-                System.out.println("VFS is corrupted");
+                metrics.onCorruption();
             } finally {
-                unlockWriteParents(dirsOnPath.size() - 1, dirsOnPath);
+                pathLock.unlock();
             }
         }
+        onWriteFailed(event);
         return false;
 
     }
 
-    public Map<String, List<Long>> getFilesContentBytePositions() {
-        return vfsStorageDescriptor.getFileContentChunkPositions();
-    }
+    /**
+     * @return false if the file doesn't exist or the path wasn't locked in time
+     */
+    public boolean deleteFile(String filePath) {
+        VFSOperationEvent event = beginEvent("delete", filePath);
+        long start = System.nanoTime();
+        List<VFSDirectory> dirsOnPath = findDirsFromRootToDir(getParentDir(filePath));
 
-    public boolean writeLockParents(List<VFSDirectory> dirsOnPath) {
-        for (int i = 0; i < dirsOnPath.size(); i++) {
-            VFSDirectory vfsDirectoryFromRoot = dirsOnPath.get(i);
+        PathLock pathLock = dirsOnPath == null ? null : lockPath(filePath, dirsOnPath, true, filePath, true);
+        if (pathLock != null) {
             try {
-                boolean dirLocked = vfsDirectoryFromRoot.getLock().writeLock().tryLock(
-                        WRITELOCK_TIMEOUT_MS,
-                        TimeUnit.MILLISECONDS
-                );
-                if (!dirLocked) {
-                    unlockWriteParents(i - 1, dirsOnPath);
+                if (!dirsStillOnPath(dirsOnPath, filePath)) {
+                    onWriteFailed(event);
                     return false;
                 }
-            } catch (InterruptedException ex) {
-                unlockWriteParents(i - 1, dirsOnPath);
+                VFSDirectory parentDir = dirsOnPath.get(dirsOnPath.size() - 1);
+                VFSFile removedFile = parentDir.removeSubFile(filePath);
+                if (removedFile != null) {
+                    updateMerkleHashes(dirsOnPath,
+                            -VFSMerkleHash.fileTerm(removedFile.getName(), storageEngine.stat(filePath)));
+                    pathIndex.remove(filePath);
+                    storageEngine.rebuildDfsTree(rootVFSDirectory);
+                    storageEngine.deleteFileContent(filePath);
+                    onWrite(event, start, 0);
+                    return true;
+                }
+            } catch (IOException ex) {
+                metrics.onCorruption();
+            } finally {
+                pathLock.unlock();
+            }
+        }
+        onWriteFailed(event);
+        return false;
+    }
+
+    /**
+     * Moves a file or a directory with its subtree. Contents are not copied, they stay keyed by the file ids,
+     * only the tree is rewritten
+     *
+     * @return false if the source doesn't exist, the target exists or is inside the source,
+     * or the paths weren't locked in time
+     */
+    public boolean rename(String oldPath, String newPath) {
+        VFSOperationEvent event = beginEvent("rename", oldPath);
+        long start = System.nanoTime();
+        if (oldPath.equals(rootVFSDirectory.getPath()) || newPath.startsWith(oldPath + "/") || oldPath.equals(newPath)) {
+            onWriteFailed(event);
+            return false;
+        }
+        List<VFSDirectory> oldDirsOnPath = findDirsFromRootToDir(getParentDir(oldPath));
+        List<VFSDirectory> newDirsOnPath = findDirsFromRootToDir(getParentDir(newPath));
+        if (oldDirsOnPath == null || newDirsOnPath == null) {
+            onWriteFailed(event);
+            return false;
+        }
+        VFSDirectory oldParentDir = oldDirsOnPath.get(oldDirsOnPath.size() - 1);
+        VFSDirectory newParentDir = newDirsOnPath.get(newDirsOnPath.size() - 1);
+        VFSFile movedFile = oldParentDir.getSubFile(oldPath);
+        VFSDirectory movedDir = oldParentDir.getSubDirectory(oldPath);
+        if (movedFile == null && movedDir == null) {
+            onWriteFailed(event);
+            return false;
+        }
+
+        // the moved directory itself is write locked, so readers and writers below it are excluded
+        List<VFSDirectory> lockedDirs = new ArrayList<>(oldDirsOnPath);
+        lockedDirs.addAll(newDirsOnPath);
+        if (movedDir != null) {
+            lockedDirs.add(movedDir);
+        }
+        PathLock pathLock = lockPath(oldPath, lockedDirs, true, movedFile == null ? null : oldPath, true);
+        if (pathLock != null) {
+            try {
+                boolean sourceUnchanged = movedFile != null
+                        ? oldParentDir.getSubFile(oldPath) == movedFile
+                        : oldParentDir.getSubDirectory(oldPath) == movedDir;
+                boolean targetFree = newParentDir.getSubFile(newPath) == null
+                        && newParentDir.getSubDirectory(newPath) == null;
+                // a directory on the paths may have been moved before the locks were taken
+                if (sourceUnchanged && targetFree
+                        && sameDirs(oldDirsOnPath, findDirsFromRootToDir(getParentDir(oldPath)))
+                        && sameDirs(newDirsOnPath, findDirsFromRootToDir(getParentDir(newPath)))) {
+                    if (movedFile != null) {
+                        VFSFileStat stat = storageEngine.stat(oldPath);
+                        oldParentDir.removeSubFile(oldPath);
+                        VFSFile renamedFile = new VFSFile(newPath);
+                        newParentDir.addSubFile(renamedFile);
+                        moveFile(movedFile, renamedFile);
+                        updateMerkleHashes(oldDirsOnPath, -VFSMerkleHash.fileTerm(movedFile.getName(), stat));
+                        updateMerkleHashes(newDirsOnPath, VFSMerkleHash.fileTerm(renamedFile.getName(), stat));
+                    } else {
+                        long hash = movedDir.getMerkleHash();
+                        oldParentDir.removeSubDirectory(oldPath);
+                        VFSDirectory renamedDir = movedDir.movedTo(newPath, this::moveFile);
+                        newParentDir.addSubDirectory(renamedDir);
+                        updateMerkleHashes(oldDirsOnPath, -VFSMerkleHash.directoryTerm(movedDir.getName(), hash));
+                        updateMerkleHashes(newDirsOnPath, VFSMerkleHash.directoryTerm(renamedDir.getName(), hash));
+                    }
+                    storageEngine.rebuildDfsTree(rootVFSDirectory);
+                    onWrite(event, start, 0);
+                    return true;
+                }
+            } catch (IOException ex) {
+                metrics.onCorruption();
+            } finally {
+                pathLock.unlock();
+            }
+        }
+        onWriteFailed(event);
+        return false;
+    }
+
+    // file objects are shared with snapshots, so a moved file is a new object
+    private void moveFile(VFSFile oldFile, VFSFile newFile) {
+        pathIndex.remove(oldFile.getPath());
+        pathIndex.add(newFile);
+        storageEngine.renameFile(oldFile.getPath(), newFile.getPath());
+    }
+
+    // a directory on the path may have been moved or deleted before the locks were taken
+    private boolean dirsStillOnPath(List<VFSDirectory> dirsOnPath, String filePath) {
+        return sameDirs(dirsOnPath, findDirsFromRootToDir(getParentDir(filePath)));
+    }
+
+    private static boolean sameDirs(List<VFSDirectory> dirs, List<VFSDirectory> actualDirs) {
+        if (actualDirs == null || dirs.size() != actualDirs.size()) {
+            return false;
+        }
+        for (int i = 0; i < dirs.size(); i++) {
+            if (dirs.get(i) != actualDirs.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pathPrefix full path prefix, e.g. "~/vfs/root/logs/"
+     * @return files in path order
+     */
+    public List<VFSFile> listPrefix(String pathPrefix) {
+        return pathIndex.listPrefix(pathPrefix);
+    }
+
+    /**
+     * @param glob over full paths or relative to the root directory, e.g. "**&#47;*.log";
+     *             '**&#47;' matches zero or more directories
+     * @return files in path order
+     */
+    public List<VFSFile> find(String glob) {
+        String absoluteGlob = glob.startsWith(VFS_PREFIX_PATH) ? glob : rootVFSDirectory.getPath() + "/" + glob;
+        return pathIndex.find(absoluteGlob);
+    }
+
+    /**
+     * Served from the in-memory index without touching the segments
+     *
+     * @return null if the file has no content
+     */
+    public VFSFileStat stat(String filePath) {
+        return storageEngine.stat(filePath);
+    }
+
+    /**
+     * @param dirPath full directory path
+     * @return total content size of the files under the directory
+     */
+    public long du(String dirPath) {
+        long size = 0;
+        for (VFSFile vfsFile : pathIndex.listPrefix(dirPath + "/")) {
+            VFSFileStat stat = storageEngine.stat(vfsFile.getPath());
+            if (stat != null) {
+                size += stat.getSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Read locks every stripe for the time of copying the tree and the chunk lists, so no write is half seen,
+     * then the snapshot is read without locks. Segments it references are pinned until it is closed.
+     * Buffered appends are flushed first, so the snapshot sees them
+     *
+     * @return null if the stripes weren't locked in time
+     */
+    public VFSSnapshot snapshot() throws IOException {
+        VFSStorageDescriptor storageDescriptor = segmentStorage("Snapshot");
+        VFSOperationEvent event = beginEvent("snapshot", rootVFSDirectory.getPath());
+        PathLock allStripesLock = lockManager.allStripesLock(false);
+        if (!tryLockAllStripes(allStripesLock, LockMode.READ)) {
+            onReadFailed(event);
+            return null;
+        }
+        try {
+            storageDescriptor.flushAppendBuffers();
+            VFSChunkIndex chunkIndex = storageDescriptor.getChunkIndex();
+            Map<String, VFSFileStat> liveFileStats = storageDescriptor.getFileStats();
+            VFSCompactTree tree = VFSCompactTree.of(rootVFSDirectory, chunkIndex::fileIdOf);
+            ChunkList[] chunkLists = new ChunkList[tree.size()];
+            VFSFileStat[] fileStats = new VFSFileStat[tree.size()];
+            Set<Integer> segmentIds = new HashSet<>();
+            tree.forEachFilePath((filePath, node) -> {
+                ChunkList chunkList = chunkIndex.getById(tree.fileIdOf(node));
+                if (chunkList == null) {
+                    return;
+                }
+                chunkLists[node] = chunkList;
+                fileStats[node] = liveFileStats.get(filePath);
+                for (int i = 0; i < chunkList.size(); i++) {
+                    segmentIds.add(VFSSegmentStore.segmentOf(chunkList.addressAt(i)));
+                }
+            });
+            // pinned under the locks: a compaction can't relocate a file and drop its segment in between
+            storageDescriptor.getSegmentStore().pinSegments(segmentIds);
+            VFSSnapshot snapshot = new VFSSnapshot(
+                    tree,
+                    chunkLists,
+                    fileStats,
+                    storageDescriptor.getSegmentStore(),
+                    storageDescriptor.isVerifyChecksums(),
+                    segmentIds,
+                    storageDescriptor.getSegmentStore().getLastSequence()
+            );
+            event.success = true;
+            event.commit();
+            return snapshot;
+        } finally {
+            allStripesLock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    public interface LockedTreeReader {
+        void read(VFSDirectory rootVFSDirectory, VFSStorageEngine storageEngine) throws IOException;
+    }
+
+    /**
+     * Runs the reader under read locks of all stripes, no write runs meanwhile, so the tree and the contents
+     * are read from the storage engine directly and consistently. Writers wait for the whole read,
+     * it stands in for a snapshot where the storage engine has none
+     *
+     * @return false if the stripes weren't locked in time
+     */
+    public boolean readLocked(LockedTreeReader reader) throws IOException {
+        PathLock allStripesLock = lockManager.allStripesLock(false);
+        if (!tryLockAllStripes(allStripesLock, LockMode.READ)) {
+            return false;
+        }
+        try {
+            reader.read(rootVFSDirectory, storageEngine);
+            return true;
+        } finally {
+            allStripesLock.unlock();
+        }
+    }
+
+    /**
+     * Compares the trees under read locks of all stripes of both, subtrees with equal hashes are skipped,
+     * so the cost follows the size of the difference rather than of the trees
+     *
+     * @return null if the stripes weren't locked in time
+     */
+    public VFSTreeDiff diff(VFS other) {
+        PathLock thisLock = lockManager.allStripesLock(false);
+        if (!tryLockAllStripes(thisLock, LockMode.READ)) {
+            return null;
+        }
+        try {
+            PathLock otherLock = other.lockManager.allStripesLock(false);
+            if (!other.tryLockAllStripes(otherLock, LockMode.READ)) {
+                return null;
+            }
+            try {
+                List<String> changedFiles = new ArrayList<>();
+                List<String> onlyInThis = new ArrayList<>();
+                List<String> onlyInOther = new ArrayList<>();
+                diffDirectories(rootVFSDirectory, other.rootVFSDirectory, other, "",
+                        changedFiles, onlyInThis, onlyInOther);
+                return new VFSTreeDiff(changedFiles, onlyInThis, onlyInOther);
+            } finally {
+                otherLock.unlock();
+            }
+        } finally {
+            thisLock.unlock();
+        }
+    }
+
+    // a failure is recorded in the metrics of this VFS, the interrupt flag is restored
+    private boolean tryLockAllStripes(PathLock allStripesLock, LockMode mode) {
+        long waitStart = System.nanoTime();
+        try {
+            if (!allStripesLock.tryLock(READLOCK_TIMEOUT_MS, WRITELOCK_TIMEOUT_MS)) {
+                onLockFailed(rootVFSDirectory.getPath(), mode, allStripesLock.getContendedPath(), false, waitStart);
+                return false;
+            }
+        } catch (InterruptedException ex) {
+            onLockFailed(rootVFSDirectory.getPath(), mode, allStripesLock.getContendedPath(), true, waitStart);
+            return false;
+        }
+        metrics.onLockWait(System.nanoTime() - waitStart);
+        return true;
+    }
+
+    private void diffDirectories(
+            VFSDirectory directory,
+            VFSDirectory otherDirectory,
+            VFS other,
+            String relativePath,
+            List<String> changedFiles,
+            List<String> onlyInThis,
+            List<String> onlyInOther
+    ) {
+        if (directory.getMerkleHash() == otherDirectory.getMerkleHash()) {
+            return;
+        }
+        Map<String, VFSFile> otherFiles = new TreeMap<>();
+        otherDirectory.getSubFiles().forEach(otherFile -> otherFiles.put(otherFile.getName(), otherFile));
+        Map<String, VFSDirectory> otherDirectories = new TreeMap<>();
+        otherDirectory.getSubDirectories().forEach(otherSub -> otherDirectories.put(otherSub.getName(), otherSub));
+
+        for (VFSFile subFile : directory.getSubFiles()) {
+            String path = relativePath + subFile.getName();
+            VFSFile otherFile = otherFiles.remove(subFile.getName());
+            if (otherFile == null) {
+                onlyInThis.add(path);
+            } else if (VFSMerkleHash.fileTerm(subFile.getName(), storageEngine.stat(subFile.getPath()))
+                    != VFSMerkleHash.fileTerm(otherFile.getName(), other.storageEngine.stat(otherFile.getPath()))) {
+                changedFiles.add(path);
+            }
+        }
+        for (VFSDirectory subDirectory : directory.getSubDirectories()) {
+            VFSDirectory otherSub = otherDirectories.remove(subDirectory.getName());
+            if (otherSub == null) {
+                onlyInThis.add(relativePath + subDirectory.getName());
+            } else {
+                diffDirectories(subDirectory, otherSub, other, relativePath + subDirectory.getName() + "/",
+                        changedFiles, onlyInThis, onlyInOther);
+            }
+        }
+        otherFiles.keySet().forEach(name -> onlyInOther.add(relativePath + name));
+        otherDirectories.keySet().forEach(name -> onlyInOther.add(relativePath + name));
+    }
+
+    /**
+     * Checks all stored chunks against their checksums, runs concurrently with reads and writes
+     */
+    public VFSScrubReport scrub() throws IOException {
+        VFSScrubReport report = segmentStorage("Scrub").scrub();
+        if (!report.isClean()) {
+            metrics.onCorruption();
+        }
+        return report;
+    }
+
+    /**
+     * Writes the tree and all contents into an immutable pack, see {@link VFSPack}.
+     * The pack is written from a snapshot, so writers aren't blocked meanwhile
+     *
+     * @return false if the snapshot wasn't taken in time
+     */
+    public boolean seal(Path packPath) throws IOException {
+        try (VFSSnapshot snapshot = snapshot()) {
+            if (snapshot == null) {
+                return false;
+            }
+            VFSPack.write(snapshot, packPath);
+            return true;
+        }
+    }
+
+    /**
+     * Serves reader processes of the store, see {@link VFSSharedReader}, waits for running writers
+     *
+     * @return false if the writers didn't finish in time
+     * @throws IOException if another process is the writer of the store
+     */
+    public boolean enableSharedReaders() throws IOException {
+        VFSStorageDescriptor storageDescriptor = segmentStorage("Shared readers");
+        PathLock allStripesLock = lockManager.allStripesLock(true);
+        if (!tryLockAllStripes(allStripesLock, LockMode.WRITE)) {
+            return false;
+        }
+        try {
+            storageDescriptor.enableSharedReaders();
+            return true;
+        } finally {
+            allStripesLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites files having chunks in a sealed segment into active segments and drops the segment
+     *
+     * @return false if some file wasn't locked in time, the segment is kept then
+     */
+    public boolean compactSegment(int segmentId) throws IOException {
+        VFSStorageDescriptor storageDescriptor = segmentStorage("Compaction");
+        if (!storageDescriptor.getSegmentStore().isSealed(segmentId)) {
+            throw new IllegalArgumentException("Only sealed segment can be compacted: " + segmentId);
+        }
+        for (String filePath : storageDescriptor.filesWithChunksIn(segmentId)) {
+            VFSFile vfsFile = new VFSFile(filePath);
+            List<VFSDirectory> dirsOnPath = findDirsFromRootToDir(getParentDir(filePath));
+            if (dirsOnPath == null) {
+                continue;
+            }
+            PathLock pathLock = writeLockFileReadLockParents(vfsFile, dirsOnPath);
+            if (pathLock == null) {
                 return false;
             }
+            try {
+                storageDescriptor.relocateFileContent(filePath);
+            } finally {
+                pathLock.unlock();
+            }
         }
+        // a file renamed meanwhile is still in the segment under its new path
+        if (!storageDescriptor.filesWithChunksIn(segmentId).isEmpty()) {
+            return false;
+        }
+        storageDescriptor.getSegmentStore().dropSegment(segmentId);
         return true;
     }
 
+    /**
+     * @return copy of the chunk addresses of every file, for inspection, empty if the storage engine has no segments
+     */
+    public Map<String, List<Long>> getFilesContentBytePositions() {
+        Map<String, List<Long>> ret = new HashMap<>();
+        if (storageEngine instanceof VFSStorageDescriptor) {
+            ((VFSStorageDescriptor) storageEngine).getChunkIndex()
+                    .forEach((filePath, chunkList) -> ret.put(filePath, chunkList.addresses()));
+        }
+        return ret;
+    }
+
+    private void onLockFailed(String path, LockMode mode, String contendedPath, boolean interrupted, long waitStart) {
+        metrics.onLockWait(System.nanoTime() - waitStart);
+        if (interrupted) {
+            metrics.onLockInterrupted();
+            Thread.currentThread().interrupt();
+        } else {
+            metrics.onLockTimeout(mode);
+        }
+        VFSLockTimeoutEvent event = new VFSLockTimeoutEvent();
+        if (event.isEnabled()) {
+            event.path = path;
+            event.mode = mode.name();
+            event.contendedPath = contendedPath;
+            event.interrupted = interrupted;
+            event.commit();
+        }
+    }
+
+    private static VFSOperationEvent beginEvent(String operation, String path) {
+        VFSOperationEvent event = new VFSOperationEvent();
+        event.begin();
+        event.operation = operation;
+        event.path = path;
+        return event;
+    }
+
+    private void onRead(VFSOperationEvent event, long start, long bytes, int chunks) {
+        metrics.onRead(System.nanoTime() - start, bytes, chunks);
+        event.bytes = bytes;
+        event.chunks = chunks;
+        event.success = true;
+        event.commit();
+    }
+
+    private void onReadFailed(VFSOperationEvent event) {
+        metrics.onFailedRead();
+        event.commit();
+    }
+
+    private void onReadFailed(VFSOperationEvent event, IOException ex) {
+        if (ex instanceof VFSChunkCorruptedException) {
+            metrics.onCorruption();
+        }
+        onReadFailed(event);
+    }
+
+    private void onWrite(VFSOperationEvent event, long start, long bytes) {
+        metrics.onWrite(System.nanoTime() - start, bytes);
+        event.bytes = bytes;
+        event.chunks = 1;
+        event.success = true;
+        event.commit();
+    }
+
+    private void onWriteFailed(VFSOperationEvent event) {
+        metrics.onFailedWrite();
+        event.commit();
+    }
+
     public VFSDirectory getDirByPath(String dirPath) {
         List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(dirPath);
         return dirsOnPath.get(dirsOnPath.size() - 1);
@@ -262,6 +939,18 @@ public class VFS {
         return parentDir.getSubFile(filePath);
     }
 
+    /**
+     * @return null if a directory on the path doesn't exist
+     */
+    public List<VFSDirectory> findDirsFromRootToDir(String endVfsDirPath) {
+        if (!endVfsDirPath.equals(rootVFSDirectory.getPath())
+                && !endVfsDirPath.startsWith(rootVFSDirectory.getPath() + "/")) {
+            return null;
+        }
+        List<VFSDirectory> dirsOnPath = getDirsFromRootToDir(endVfsDirPath);
+        return dirsOnPath.contains(null) ? null : dirsOnPath;
+    }
+
     public List<VFSDirectory> getDirsFromRootToDir(String endVfsDirPath) {
         List<String> dirNamesOnPath = Arrays.asList(endVfsDirPath.split("/"));
         int vfsPrefixOffset = VFS_PREFIX_PATH.split("/").length;
@@ -273,7 +962,8 @@ public class VFS {
         StringBuilder pathPrefix = new StringBuilder(VFS_PREFIX_PATH + getRootVFSDirectory().getName());
         for (String dirNameOnPath : dirNamesAfterRoot) {
             pathPrefix.append("/").append(dirNameOnPath);
-            VFSDirectory dirOnPath = dirsOnPath.get(dirsOnPath.size() - 1).getSubDirectory(pathPrefix.toString());
+            VFSDirectory parentDir = dirsOnPath.get(dirsOnPath.size() - 1);
+            VFSDirectory dirOnPath = parentDir == null ? null : parentDir.getSubDirectory(pathPrefix.toString());
             dirsOnPath.add(dirOnPath);
         }
         return dirsOnPath;
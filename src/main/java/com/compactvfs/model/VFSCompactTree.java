@@ -0,0 +1,372 @@
+package com.compactvfs.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable tree in parallel int arrays, a node is an index into them. Nodes are numbered breadth first with
+ * the children of a directory sorted by name, so the children are one contiguous range found by binary search.
+ * A name is stored once for the whole tree and nodes refer to it by its rank in the sorted names.
+ *
+ * Footprint: 20 bytes per node (name, parent, first child, children count, file id) plus every distinct name once,
+ * instead of a node object, a full path string and a map entry in the parent per node as in {@link VFSDirectory}.
+ * Paths are built on demand from the parents.
+ *
+ * Backs snapshots, shared readers, packs and exports. The live tree of {@link VFS} is still made of
+ * {@link VFSDirectory} nodes: the locks, the Merkle hashes and the path index hang on them,
+ * so its footprint per file is not reduced yet
+ */
+public final class VFSCompactTree {
+    public static final int ROOT = 0;
+    public static final int NO_NODE = -1;
+    public static final int NO_FILE_ID = -1;
+
+    private final String rootPath;
+    // sorted, a name id is the index of the name here
+    private final String[] names;
+    private final int[] nameIds;
+    private final int[] parents;
+    // -1 for files
+    private final int[] firstChildren;
+    private final int[] childrenCounts;
+    private final int[] fileIds;
+    private final int filesCount;
+
+    private VFSCompactTree(
+            String rootPath,
+            String[] names,
+            int[] nameIds,
+            int[] parents,
+            int[] firstChildren,
+            int[] childrenCounts,
+            int[] fileIds,
+            int filesCount
+    ) {
+        this.rootPath = rootPath;
+        this.names = names;
+        this.nameIds = nameIds;
+        this.parents = parents;
+        this.firstChildren = firstChildren;
+        this.childrenCounts = childrenCounts;
+        this.fileIds = fileIds;
+        this.filesCount = filesCount;
+    }
+
+    public static VFSCompactTree of(VFSDirectory rootDirectory) {
+        return of(rootDirectory, filePath -> NO_FILE_ID);
+    }
+
+    /**
+     * Caller must exclude concurrent changes of the tree
+     */
+    public static VFSCompactTree of(VFSDirectory rootDirectory, ToIntFunction<String> fileIdOf) {
+        Builder builder = new Builder(rootDirectory.getPath());
+        addChildren(builder, ROOT, rootDirectory, fileIdOf);
+        return builder.build();
+    }
+
+    private static void addChildren(Builder builder, int node, VFSDirectory directory, ToIntFunction<String> fileIdOf) {
+        for (VFSFile file : directory.getSubFiles()) {
+            builder.addFile(node, file.getName(), fileIdOf.applyAsInt(file.getPath()));
+        }
+        for (VFSDirectory subDirectory : directory.getSubDirectories()) {
+            addChildren(builder, builder.addDirectory(node, subDirectory.getName()), subDirectory, fileIdOf);
+        }
+    }
+
+    /**
+     * @param rootPath full path of the root directory, e.g. "~/vfs/root"
+     */
+    public static Builder builder(String rootPath) {
+        return new Builder(rootPath);
+    }
+
+    public int size() {
+        return parents.length;
+    }
+
+    public int getFilesCount() {
+        return filesCount;
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public boolean isFile(int node) {
+        return firstChildren[node] < 0;
+    }
+
+    public String nameOf(int node) {
+        if (node == ROOT) {
+            return rootPath.substring(rootPath.lastIndexOf('/') + 1);
+        }
+        return names[nameIds[node]];
+    }
+
+    /**
+     * @return NO_NODE for the root
+     */
+    public int parentOf(int node) {
+        return parents[node];
+    }
+
+    /**
+     * @return NO_FILE_ID for directories and files written without an id
+     */
+    public int fileIdOf(int node) {
+        return fileIds[node];
+    }
+
+    /**
+     * Children of a directory are the nodes [firstChildOf, firstChildOf + childrenCountOf), sorted by name
+     */
+    public int firstChildOf(int node) {
+        return firstChildren[node];
+    }
+
+    public int childrenCountOf(int node) {
+        return childrenCounts[node];
+    }
+
+    public String pathOf(int node) {
+        if (node == ROOT) {
+            return rootPath;
+        }
+        List<String> namesOnPath = new ArrayList<>();
+        for (int cur = node; cur != ROOT; cur = parents[cur]) {
+            namesOnPath.add(names[nameIds[cur]]);
+        }
+        StringBuilder path = new StringBuilder(rootPath);
+        for (int i = namesOnPath.size() - 1; i >= 0; i--) {
+            path.append('/').append(namesOnPath.get(i));
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return NO_NODE if there is no such file or directory
+     */
+    public int nodeOf(String path) {
+        if (path.equals(rootPath)) {
+            return ROOT;
+        }
+        if (!path.startsWith(rootPath + "/")) {
+            return NO_NODE;
+        }
+        String[] namesOnPath = path.substring(rootPath.length() + 1).split("/", -1);
+        int node = ROOT;
+        for (int i = 0; i < namesOnPath.length; i++) {
+            int nameId = Arrays.binarySearch(names, namesOnPath[i]);
+            if (nameId < 0) {
+                return NO_NODE;
+            }
+            boolean last = i == namesOnPath.length - 1;
+            int child = last ? childOf(node, nameId, true) : NO_NODE;
+            if (child == NO_NODE) {
+                child = childOf(node, nameId, false);
+            }
+            if (child == NO_NODE) {
+                return NO_NODE;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private int childOf(int node, int nameId, boolean file) {
+        if (isFile(node)) {
+            return NO_NODE;
+        }
+        long key = childKey(nameId, file);
+        int lo = firstChildren[node];
+        int hi = lo + childrenCounts[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midKey = childKey(nameIds[mid], isFile(mid));
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NO_NODE;
+    }
+
+    // directories go before files of the same name
+    private static long childKey(int nameId, boolean file) {
+        return ((long) nameId << 1) | (file ? 1 : 0);
+    }
+
+    /**
+     * Depth first, a path is built once per file from the path of its directory
+     */
+    public void forEachFilePath(ObjIntConsumer<String> action) {
+        forEachFilePath(ROOT, rootPath, action);
+    }
+
+    private void forEachFilePath(int node, String path, ObjIntConsumer<String> action) {
+        int end = firstChildren[node] + childrenCounts[node];
+        for (int child = firstChildren[node]; child < end; child++) {
+            String childPath = path + "/" + names[nameIds[child]];
+            if (isFile(child)) {
+                action.accept(childPath, child);
+            } else {
+                forEachFilePath(child, childPath, action);
+            }
+        }
+    }
+
+    /**
+     * @return new mutable tree, every node of which is a new object
+     */
+    public VFSDirectory toVFSDirectory() {
+        return toVFSDirectory(ROOT, rootPath);
+    }
+
+    private VFSDirectory toVFSDirectory(int node, String path) {
+        VFSDirectory directory = VFSDirectory.emptyWithPath(path);
+        int end = firstChildren[node] + childrenCounts[node];
+        for (int child = firstChildren[node]; child < end; child++) {
+            String childPath = path + "/" + names[nameIds[child]];
+            if (isFile(child)) {
+                directory.addSubFile(new VFSFile(childPath));
+            } else {
+                directory.addSubDirectory(toVFSDirectory(child, childPath));
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Collects nodes in any order, children of a node may be added before or after it
+     */
+    public static final class Builder {
+        private final String rootPath;
+        private final Map<String, Integer> nameIds = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private final BitSet directories = new BitSet();
+        private int[] nodeNameIds = new int[16];
+        private int[] parents = new int[16];
+        private int[] fileIds = new int[16];
+        private int size = 1;
+        private int filesCount = 0;
+
+        private Builder(String rootPath) {
+            this.rootPath = rootPath;
+            parents[ROOT] = NO_NODE;
+            nodeNameIds[ROOT] = -1;
+            fileIds[ROOT] = NO_FILE_ID;
+            directories.set(ROOT);
+        }
+
+        /**
+         * @return node of the directory for adding its children, valid only for this builder
+         */
+        public int addDirectory(int parent, String name) {
+            int node = add(parent, name, NO_FILE_ID);
+            directories.set(node);
+            return node;
+        }
+
+        public int addFile(int parent, String name, int fileId) {
+            filesCount++;
+            return add(parent, name, fileId);
+        }
+
+        private int add(int parent, String name, int fileId) {
+            if (parent < 0 || parent >= size || !directories.get(parent)) {
+                throw new IllegalArgumentException("Parent is not a directory: " + parent);
+            }
+            if (size == parents.length) {
+                int capacity = size * 2;
+                nodeNameIds = Arrays.copyOf(nodeNameIds, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+                fileIds = Arrays.copyOf(fileIds, capacity);
+            }
+            nodeNameIds[size] = nameIds.computeIfAbsent(name, k -> {
+                names.add(k);
+                return names.size() - 1;
+            });
+            parents[size] = parent;
+            fileIds[size] = fileId;
+            return size++;
+        }
+
+        public VFSCompactTree build() {
+            String[] sortedNames = names.toArray(new String[0]);
+            Arrays.sort(sortedNames);
+            int[] nameRanks = new int[sortedNames.length];
+            for (int i = 0; i < sortedNames.length; i++) {
+                nameRanks[nameIds.get(sortedNames[i])] = i;
+            }
+
+            // children grouped by parent, each group sorted by the child key, node in the low half
+            int[] groupStarts = new int[size + 1];
+            for (int node = 1; node < size; node++) {
+                groupStarts[parents[node] + 1]++;
+            }
+            for (int node = 0; node < size; node++) {
+                groupStarts[node + 1] += groupStarts[node];
+            }
+            int[] groupEnds = Arrays.copyOf(groupStarts, size);
+            long[] keyedChildren = new long[Math.max(0, size - 1)];
+            for (int node = 1; node < size; node++) {
+                long key = childKey(nameRanks[nodeNameIds[node]], !directories.get(node));
+                keyedChildren[groupEnds[parents[node]]++] = (key << 32) | node;
+            }
+
+            int[] order = new int[size];
+            int[] newNodes = new int[size];
+            int[] firstChildren = new int[size];
+            int[] childrenCounts = new int[size];
+            int added = 1;
+            for (int pos = 0; pos < size; pos++) {
+                int node = order[pos];
+                if (!directories.get(node)) {
+                    firstChildren[pos] = -1;
+                    continue;
+                }
+                Arrays.sort(keyedChildren, groupStarts[node], groupStarts[node + 1]);
+                firstChildren[pos] = added;
+                childrenCounts[pos] = groupStarts[node + 1] - groupStarts[node];
+                for (int i = groupStarts[node]; i < groupStarts[node + 1]; i++) {
+                    int child = (int) keyedChildren[i];
+                    newNodes[child] = added;
+                    order[added++] = child;
+                }
+            }
+
+            int[] treeNameIds = new int[size];
+            int[] treeParents = new int[size];
+            int[] treeFileIds = new int[size];
+            treeNameIds[ROOT] = -1;
+            treeParents[ROOT] = NO_NODE;
+            treeFileIds[ROOT] = NO_FILE_ID;
+            for (int pos = 1; pos < size; pos++) {
+                int node = order[pos];
+                treeNameIds[pos] = nameRanks[nodeNameIds[node]];
+                treeParents[pos] = newNodes[parents[node]];
+                treeFileIds[pos] = fileIds[node];
+            }
+            return new VFSCompactTree(
+                    rootPath,
+                    sortedNames,
+                    treeNameIds,
+                    treeParents,
+                    firstChildren,
+                    childrenCounts,
+                    treeFileIds,
+                    filesCount
+            );
+        }
+    }
+}
@@ -1,41 +1,47 @@
 package com.compactvfs.model;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import static java.util.stream.Collectors.toMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class VFSDirectory implements Comparable<VFSDirectory> {
     public static final String VFS_PREFIX_PATH = "~/vfs/";
 
-    private final Map<String, VFSDirectory> pathSubDirectoriesMap;
-    private final Map<String, VFSFile> pathSubFilesMap;
-
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // sorted by path, same order as compareTo of the children
+    private final ConcurrentSkipListMap<String, VFSDirectory> pathSubDirectoriesMap;
+    private final ConcurrentSkipListMap<String, VFSFile> pathSubFilesMap;
+    private final Set<VFSDirectory> subDirectoriesView;
+    private final Set<VFSFile> subFilesView;
+    // kept by VFS on writes, see VFSMerkleHash
+    private final AtomicLong merkleHash = new AtomicLong();
 
     private String path;
 
     public VFSDirectory(String path, Set<VFSDirectory> subDirectories, Set<VFSFile> subFiles) {
         this.path = path;
-        this.pathSubDirectoriesMap = subDirectories.stream()
-                .collect(toMap(VFSDirectory::getPath, dir -> dir, (a, b) -> b, HashMap::new));
-        this.pathSubFilesMap = subFiles.stream()
-                .collect(toMap(VFSFile::getPath, file -> file, (a, b) -> b, HashMap::new));
+        this.pathSubDirectoriesMap = new ConcurrentSkipListMap<>();
+        subDirectories.forEach(dir -> pathSubDirectoriesMap.put(dir.getPath(), dir));
+        this.pathSubFilesMap = new ConcurrentSkipListMap<>();
+        subFiles.forEach(file -> pathSubFilesMap.put(file.getPath(), file));
+        this.subDirectoriesView = new ChildrenView<>(pathSubDirectoriesMap, VFSDirectory.class, VFSDirectory::getPath);
+        this.subFilesView = new ChildrenView<>(pathSubFilesMap, VFSFile.class, VFSFile::getPath);
     }
 
     public static VFSDirectory emptyWithPath(String path) {
         return new VFSDirectory(
                 path,
-                new TreeSet<>(),
-                new TreeSet<>()
+                Set.of(),
+                Set.of()
         );
     }
 
@@ -55,17 +61,95 @@ public class VFSDirectory implements Comparable<VFSDirectory> {
         pathSubFilesMap.put(vfsFile.getPath(), vfsFile);
     }
 
+    /**
+     * @return removed file, null if there was no such file
+     */
+    public VFSFile removeSubFile(String filePath) {
+        return pathSubFilesMap.remove(filePath);
+    }
+
+    /**
+     * @return removed directory, null if there was no such directory
+     */
+    public VFSDirectory removeSubDirectory(String dirPath) {
+        return pathSubDirectoriesMap.remove(dirPath);
+    }
+
+    /**
+     * @return sorted read-only view, iteration is weakly consistent with concurrent adds and copies nothing
+     */
     public Set<VFSDirectory> getSubDirectories() {
-        return new TreeSet<>(pathSubDirectoriesMap.values());
+        return subDirectoriesView;
     }
 
+    /**
+     * @return sorted read-only view, iteration is weakly consistent with concurrent adds and copies nothing
+     */
     public Set<VFSFile> getSubFiles() {
-        return new TreeSet<>(pathSubFilesMap.values());
+        return subFilesView;
+    }
+
+    /**
+     * @param startAfterPath path of the last file of the previous page, null for the first page
+     */
+    public List<VFSFile> listSubFiles(String startAfterPath, int limit) {
+        return page(pathSubFilesMap, startAfterPath, limit);
+    }
+
+    /**
+     * @param startAfterPath path of the last directory of the previous page, null for the first page
+     */
+    public List<VFSDirectory> listSubDirectories(String startAfterPath, int limit) {
+        return page(pathSubDirectoriesMap, startAfterPath, limit);
+    }
+
+    private static <T> List<T> page(ConcurrentSkipListMap<String, T> children, String startAfterPath, int limit) {
+        Map<String, T> tail = startAfterPath == null ? children : children.tailMap(startAfterPath, false);
+        List<T> ret = new ArrayList<>(Math.min(limit, 64));
+        for (T child : tail.values()) {
+            if (ret.size() == limit) {
+                break;
+            }
+            ret.add(child);
+        }
+        return ret;
+    }
+
+    /**
+     * @param onFileMoved gets every old file with its copy
+     * @return copy of the subtree under the new path, files are new objects
+     */
+    public VFSDirectory movedTo(String newPath, BiConsumer<VFSFile, VFSFile> onFileMoved) {
+        VFSDirectory copy = emptyWithPath(newPath);
+        pathSubFilesMap.forEach((subPath, subFile) -> {
+            VFSFile movedFile = new VFSFile(newPath + "/" + subFile.getName());
+            copy.addSubFile(movedFile);
+            onFileMoved.accept(subFile, movedFile);
+        });
+        pathSubDirectoriesMap.forEach((subPath, subDirectory) ->
+                copy.addSubDirectory(subDirectory.movedTo(newPath + "/" + subDirectory.getName(), onFileMoved))
+        );
+        // names below the directory are the same, so is the hash
+        copy.merkleHash.set(merkleHash.get());
+        return copy;
+    }
+
+    /**
+     * @return hash of the names and contents of the subtree, 0 for trees not owned by a VFS
+     */
+    public long getMerkleHash() {
+        return merkleHash.get();
     }
 
-    // todo: encapsulate in VFS
-    public ReadWriteLock getLock() {
-        return lock;
+    void setMerkleHash(long hash) {
+        merkleHash.set(hash);
+    }
+
+    /**
+     * @return hash before the addition
+     */
+    long addToMerkleHash(long delta) {
+        return merkleHash.getAndAdd(delta);
     }
 
     public String getPath() {
@@ -84,18 +168,17 @@ public class VFSDirectory implements Comparable<VFSDirectory> {
 
     public List<VFSFile> getAllSubFilesRecursive() {
         List<VFSFile> allSubFiles = new ArrayList<>();
-        Stack<VFSDirectory> dfsStack = new Stack<>();
-        dfsStack.push(this);
-        while (!dfsStack.isEmpty()) {
-            VFSDirectory currentDir = dfsStack.pop();
-            allSubFiles.addAll(currentDir.getSubFiles());
-            for (VFSDirectory subDir : currentDir.getSubDirectories()) {
-                dfsStack.push(subDir);
-            }
-        }
+        new VFSTreeSpliterator(this).forEachRemaining(allSubFiles::add);
         return allSubFiles;
     }
 
+    /**
+     * @param parallel if true, subtrees are walked by the common fork join pool
+     */
+    public Stream<VFSFile> walkFiles(boolean parallel) {
+        return StreamSupport.stream(new VFSTreeSpliterator(this), parallel);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -127,9 +210,6 @@ public class VFSDirectory implements Comparable<VFSDirectory> {
         if (!equals(rhs)) {
             return false;
         }
-        if (getSubFiles().size() != rhs.getSubFiles().size()) {
-            return false;
-        }
         if (getSubDirectories().size() != rhs.getSubDirectories().size()) {
             return false;
         }
@@ -138,14 +218,46 @@ public class VFSDirectory implements Comparable<VFSDirectory> {
         }
 
         boolean ret = true;
-        TreeSet<VFSDirectory> sortedDirectories = new TreeSet<>(getSubDirectories());
-        TreeSet<VFSDirectory> rhsSortedDirectories = new TreeSet<>(rhs.getSubDirectories());
-        Iterator<VFSDirectory> rhsIterator = rhsSortedDirectories.iterator();
-        for (VFSDirectory subDirectory : sortedDirectories) {
+        Iterator<VFSDirectory> rhsIterator = rhs.getSubDirectories().iterator();
+        for (VFSDirectory subDirectory : getSubDirectories()) {
             ret &= subDirectory.compareStructure(rhsIterator.next());
         }
 
         return ret;
     }
 
+    private static class ChildrenView<T> extends AbstractSet<T> {
+        private final ConcurrentSkipListMap<String, T> children;
+        private final Class<T> childClass;
+        private final Function<T, String> pathOf;
+
+        private ChildrenView(ConcurrentSkipListMap<String, T> children, Class<T> childClass, Function<T, String> pathOf) {
+            this.children = children;
+            this.childClass = childClass;
+            this.pathOf = pathOf;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return Collections.unmodifiableCollection(children.values()).iterator();
+        }
+
+        @Override
+        public int size() {
+            return children.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return children.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!childClass.isInstance(o)) {
+                return false;
+            }
+            return o.equals(children.get(pathOf.apply(childClass.cast(o))));
+        }
+    }
 }
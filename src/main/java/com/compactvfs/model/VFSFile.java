@@ -1,13 +1,8 @@
 package com.compactvfs.model;
 
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 public class VFSFile implements Comparable<VFSFile> {
     private String path;
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-
     public VFSFile(String path) {
         this.path = path;
     }
@@ -16,11 +11,6 @@ public class VFSFile implements Comparable<VFSFile> {
         return path;
     }
 
-    //todo: encapsulate in VFS
-    public ReadWriteLock getLock() {
-        return lock;
-    }
-
     @SuppressWarnings("unused")
     public void setPath(String path) {
         this.path = path;
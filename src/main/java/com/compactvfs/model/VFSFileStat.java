@@ -0,0 +1,104 @@
+package com.compactvfs.model;
+
+import static com.compactvfs.storage.VFSSegmentStore.combineChecksums;
+
+/**
+ * Immutable metadata of a file content, replaced on every write, times are epoch millis.
+ * The change sequence is the sequence of the last record written for the file, it grows with every write
+ * of the store, so files changed after a point are the ones with a greater sequence.
+ * The content checksum is the crc32c of the whole content, combined from the chunk checksums
+ */
+public class VFSFileStat {
+    private final long size;
+    private final int chunksCount;
+    private final long creationTime;
+    private final long modificationTime;
+    private final long changeSequence;
+    private final int contentChecksum;
+
+    public VFSFileStat(
+            long size,
+            int chunksCount,
+            long creationTime,
+            long modificationTime,
+            long changeSequence,
+            int contentChecksum
+    ) {
+        this.size = size;
+        this.chunksCount = chunksCount;
+        this.creationTime = creationTime;
+        this.modificationTime = modificationTime;
+        this.changeSequence = changeSequence;
+        this.contentChecksum = contentChecksum;
+    }
+
+    public static VFSFileStat created(long size, long time, long sequence, int checksum) {
+        return new VFSFileStat(size, 1, time, time, sequence, checksum);
+    }
+
+    /**
+     * @param previous null if the file had no content
+     */
+    public static VFSFileStat replaced(VFSFileStat previous, long size, long time, long sequence, int checksum) {
+        return previous == null
+                ? created(size, time, sequence, checksum)
+                : new VFSFileStat(size, 1, previous.creationTime, time, sequence, checksum);
+    }
+
+    /**
+     * @param previous null if the file had no content
+     * @param appendedChecksum checksum of the appended content only
+     */
+    public static VFSFileStat appended(
+            VFSFileStat previous,
+            long appendedSize,
+            long time,
+            long sequence,
+            int appendedChecksum
+    ) {
+        return previous == null
+                ? created(appendedSize, time, sequence, appendedChecksum)
+                : new VFSFileStat(
+                        previous.size + appendedSize,
+                        previous.chunksCount + 1,
+                        previous.creationTime,
+                        time,
+                        sequence,
+                        combineChecksums(previous.contentChecksum, appendedChecksum, appendedSize)
+                );
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunksCount() {
+        return chunksCount;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getModificationTime() {
+        return modificationTime;
+    }
+
+    public long getChangeSequence() {
+        return changeSequence;
+    }
+
+    public int getContentChecksum() {
+        return contentChecksum;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size +
+                " chunks=" + chunksCount +
+                " created=" + creationTime +
+                " modified=" + modificationTime +
+                " sequence=" + changeSequence +
+                " crc32c=" + Integer.toHexString(contentChecksum);
+    }
+}
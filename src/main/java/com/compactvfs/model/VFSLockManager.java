@@ -0,0 +1,191 @@
+package com.compactvfs.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Fixed table of StampedLocks shared by all nodes of a VFS, a node is mapped to a stripe by its path.
+ * Memory is proportional to the stripes count, not to the tree size.
+ *
+ * Several nodes on one path may share a stripe and StampedLock is not reentrant, so a {@link PathLock}
+ * takes every distinct stripe once, in ascending stripe order. The order is global, hence deadlock free
+ * just like the root-to-leaf order of per-node locks
+ */
+public class VFSLockManager {
+    public static final int DEFAULT_STRIPES_COUNT = 1024;
+
+    private final StampedLock[] stripes;
+    private final int mask;
+
+    public VFSLockManager() {
+        this(DEFAULT_STRIPES_COUNT);
+    }
+
+    /**
+     * @param stripesCount rounded up to a power of two
+     */
+    public VFSLockManager(int stripesCount) {
+        if (stripesCount <= 0) {
+            throw new IllegalArgumentException("Stripes count must be positive: " + stripesCount);
+        }
+        int size = Integer.highestOneBit(stripesCount);
+        if (size < stripesCount) {
+            size <<= 1;
+        }
+        stripes = new StampedLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new StampedLock();
+        }
+        mask = size - 1;
+    }
+
+    public int getStripesCount() {
+        return stripes.length;
+    }
+
+    public int stripeOf(String nodePath) {
+        int h = nodePath.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @param filePath null if only directories are locked
+     */
+    public PathLock pathLock(
+            List<VFSDirectory> dirsOnPath,
+            boolean parentsExclusive,
+            String filePath,
+            boolean fileExclusive
+    ) {
+        int nodesCount = dirsOnPath.size() + (filePath == null ? 0 : 1);
+        // stripe index in the high half keeps the node index (and so the path) after sorting
+        long[] stripeAndNode = new long[nodesCount];
+        for (int i = 0; i < dirsOnPath.size(); i++) {
+            stripeAndNode[i] = ((long) stripeOf(dirsOnPath.get(i).getPath()) << 32) | i;
+        }
+        if (filePath != null) {
+            stripeAndNode[nodesCount - 1] = ((long) stripeOf(filePath) << 32) | (nodesCount - 1);
+        }
+        Arrays.sort(stripeAndNode);
+
+        PathLock pathLock = new PathLock(nodesCount);
+        int prevStripe = -1;
+        for (long entry : stripeAndNode) {
+            int stripe = (int) (entry >>> 32);
+            int node = (int) entry;
+            boolean isFile = filePath != null && node == nodesCount - 1;
+            boolean exclusive = isFile ? fileExclusive : parentsExclusive;
+            if (stripe == prevStripe) {
+                pathLock.exclusive[pathLock.size - 1] |= exclusive;
+                continue;
+            }
+            pathLock.locks[pathLock.size] = stripes[stripe];
+            pathLock.exclusive[pathLock.size] = exclusive;
+            pathLock.paths[pathLock.size] = isFile ? filePath : dirsOnPath.get(node).getPath();
+            pathLock.size++;
+            prevStripe = stripe;
+        }
+        return pathLock;
+    }
+
+    /**
+     * Every stripe in ascending order, read locked all stripes exclude every writer of the tree and contents
+     */
+    public PathLock allStripesLock(boolean exclusive) {
+        PathLock pathLock = new PathLock(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            pathLock.locks[i] = stripes[i];
+            pathLock.exclusive[i] = exclusive;
+            pathLock.paths[i] = "stripe " + i;
+        }
+        pathLock.size = stripes.length;
+        return pathLock;
+    }
+
+    /**
+     * Locks of one operation over the nodes of a path, not thread safe, not reusable
+     */
+    public static class PathLock {
+        private final StampedLock[] locks;
+        private final boolean[] exclusive;
+        private final String[] paths;
+        private final long[] stamps;
+        private int size = 0;
+        private int lockedCount = 0;
+        private String contendedPath;
+
+        private PathLock(int capacity) {
+            locks = new StampedLock[capacity];
+            exclusive = new boolean[capacity];
+            paths = new String[capacity];
+            stamps = new long[capacity];
+        }
+
+        /**
+         * Takes all stripes or none of them
+         */
+        public boolean tryLock(long readTimeoutMs, long writeTimeoutMs) throws InterruptedException {
+            for (int i = 0; i < size; i++) {
+                boolean locked;
+                try {
+                    locked = exclusive[i]
+                            ? locks[i].asWriteLock().tryLock(writeTimeoutMs, TimeUnit.MILLISECONDS)
+                            : locks[i].asReadLock().tryLock(readTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    contendedPath = paths[i];
+                    unlock();
+                    throw ex;
+                }
+                if (!locked) {
+                    contendedPath = paths[i];
+                    unlock();
+                    return false;
+                }
+                lockedCount++;
+            }
+            return true;
+        }
+
+        public void unlock() {
+            for (int i = lockedCount - 1; i >= 0; i--) {
+                if (exclusive[i]) {
+                    locks[i].asWriteLock().unlock();
+                } else {
+                    locks[i].asReadLock().unlock();
+                }
+            }
+            lockedCount = 0;
+        }
+
+        /**
+         * @return false if any stripe is write locked now
+         */
+        public boolean tryOptimisticRead() {
+            for (int i = 0; i < size; i++) {
+                stamps[i] = locks[i].tryOptimisticRead();
+                if (stamps[i] == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if no stripe was write locked since {@link #tryOptimisticRead()}
+         */
+        public boolean validate() {
+            for (int i = size - 1; i >= 0; i--) {
+                if (!locks[i].validate(stamps[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getContendedPath() {
+            return contendedPath;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.compactvfs.model;
+
+/**
+ * Hash of a directory is the sum of the terms of its children, a term mixes the child name with the content
+ * hash of a file or the hash of a directory. A sum is updated by the difference of one term, so a write adds
+ * the change of its file term to the parent and the change of every directory term up to the root, O(depth).
+ * Concurrent updates of one directory commute: every writer carries the exact old and new hash it saw.
+ *
+ * Content hash of a file is its size and the crc32c of the whole content, no content is read to keep it
+ */
+final class VFSMerkleHash {
+    private static final long FILE_SALT = 0x6A09E667F3BCC908L;
+    private static final long DIRECTORY_SALT = 0xBB67AE8584CAA73BL;
+    private static final long NO_CONTENT = 0x3C6EF372FE94F82BL;
+
+    private VFSMerkleHash() {
+    }
+
+    /**
+     * @param stat null if the file has no content
+     */
+    static long fileTerm(String name, VFSFileStat stat) {
+        long contentHash = stat == null
+                ? NO_CONTENT
+                : mix(stat.getSize() ^ mix(stat.getContentChecksum() & 0xFFFFFFFFL));
+        return mix(nameHash(name) ^ mix(contentHash + FILE_SALT));
+    }
+
+    static long directoryTerm(String name, long directoryHash) {
+        return mix(nameHash(name) ^ mix(directoryHash + DIRECTORY_SALT));
+    }
+
+    // 64-bit FNV-1a
+    private static long nameHash(String name) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    // splitmix64 finalizer
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,229 @@
+package com.compactvfs.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * Sorted index of all file paths plus per-extension sorted indexes.
+ * A prefix query is a range of the sorted map, a glob query is a range of the smallest index
+ * that can hold its matches (by literal prefix and literal extension), so both cost O(log n + candidates)
+ */
+public class VFSPathIndex {
+    // greater than any char that may follow a prefix in a path
+    private static final char PREFIX_RANGE_END = Character.MAX_VALUE;
+
+    private final ConcurrentSkipListMap<String, VFSFile> files = new ConcurrentSkipListMap<>();
+    private final Map<String, ConcurrentSkipListMap<String, VFSFile>> filesByExtension = new ConcurrentHashMap<>();
+
+    public static VFSPathIndex of(VFSDirectory rootDirectory) {
+        VFSPathIndex index = new VFSPathIndex();
+        rootDirectory.walkFiles(false).forEach(index::add);
+        return index;
+    }
+
+    public void add(VFSFile vfsFile) {
+        files.put(vfsFile.getPath(), vfsFile);
+        String extension = extensionOf(vfsFile.getPath());
+        if (extension != null) {
+            filesByExtension
+                    .computeIfAbsent(extension, k -> new ConcurrentSkipListMap<>())
+                    .put(vfsFile.getPath(), vfsFile);
+        }
+    }
+
+    public void remove(String filePath) {
+        files.remove(filePath);
+        String extension = extensionOf(filePath);
+        if (extension != null) {
+            Map<String, VFSFile> sameExtensionFiles = filesByExtension.get(extension);
+            if (sameExtensionFiles != null) {
+                sameExtensionFiles.remove(filePath);
+            }
+        }
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public List<VFSFile> listPrefix(String pathPrefix) {
+        return new ArrayList<>(prefixRange(files, pathPrefix).values());
+    }
+
+    /**
+     * Glob syntax: '*' any chars except '/', '**' any chars, '**&#47;' zero or more directories,
+     * '?' one char except '/', '{a,b}' alternatives, '[abc]' char class
+     *
+     * @param absoluteGlob glob over full vfs paths
+     */
+    public List<VFSFile> find(String absoluteGlob) {
+        String literalPrefix = literalPrefixOf(absoluteGlob);
+        String extension = literalExtensionOf(absoluteGlob);
+
+        NavigableMap<String, VFSFile> candidates = files;
+        if (extension != null) {
+            candidates = filesByExtension.get(extension);
+            if (candidates == null) {
+                return List.of();
+            }
+        }
+        Pattern pattern = Pattern.compile(globToRegex(absoluteGlob));
+        List<VFSFile> ret = new ArrayList<>();
+        for (Map.Entry<String, VFSFile> candidate : prefixRange(candidates, literalPrefix).entrySet()) {
+            if (pattern.matcher(candidate.getKey()).matches()) {
+                ret.add(candidate.getValue());
+            }
+        }
+        return ret;
+    }
+
+    private static NavigableMap<String, VFSFile> prefixRange(NavigableMap<String, VFSFile> sortedFiles, String prefix) {
+        if (prefix.isEmpty()) {
+            return sortedFiles;
+        }
+        return sortedFiles.subMap(prefix, true, prefix + PREFIX_RANGE_END, false);
+    }
+
+    /**
+     * Dot-files are indexed too: "*.log" matches ".log", '*' may match no chars
+     */
+    static String extensionOf(String filePath) {
+        int slashIndex = filePath.lastIndexOf('/');
+        int dotIndex = filePath.lastIndexOf('.');
+        if (dotIndex <= slashIndex || dotIndex == filePath.length() - 1) {
+            return null;
+        }
+        return filePath.substring(dotIndex + 1);
+    }
+
+    private static boolean isGlobSpecial(char c) {
+        return c == '*' || c == '?' || c == '{' || c == '[' || c == '\\';
+    }
+
+    static String literalPrefixOf(String glob) {
+        int i = 0;
+        while (i < glob.length() && !isGlobSpecial(glob.charAt(i))) {
+            i++;
+        }
+        return glob.substring(0, i);
+    }
+
+    /**
+     * @return extension if every match must end with it, e.g. "log" for "**&#47;*.log"
+     */
+    static String literalExtensionOf(String glob) {
+        int dotIndex = glob.lastIndexOf('.');
+        if (dotIndex < 0 || dotIndex < glob.lastIndexOf('/') || isInsideGroup(glob, dotIndex)) {
+            return null;
+        }
+        String extension = glob.substring(dotIndex + 1);
+        if (extension.isEmpty() || extension.chars().anyMatch(c -> isGlobSpecial((char) c) || isGroupEnd((char) c))) {
+            return null;
+        }
+        return extension;
+    }
+
+    private static boolean isGroupEnd(char c) {
+        return c == '}' || c == ']' || c == ',';
+    }
+
+    // e.g. the dot of "{a.log,b.txt}" or "[c.]" is one of the alternatives, not the start of the extension
+    private static boolean isInsideGroup(String glob, int index) {
+        int depth = 0;
+        for (int i = 0; i < index; i++) {
+            switch (glob.charAt(i)) {
+                case '\\':
+                    i++;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth = Math.max(0, depth - 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return depth > 0;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inAlternatives = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                            regex.append("(?:.*/)?");
+                            i += 2;
+                        } else {
+                            regex.append(".*");
+                            i++;
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '{':
+                    regex.append("(?:");
+                    inAlternatives = true;
+                    break;
+                case '}':
+                    regex.append(inAlternatives ? ")" : "\\}");
+                    inAlternatives = false;
+                    break;
+                case ',':
+                    regex.append(inAlternatives ? "|" : ",");
+                    break;
+                case '[':
+                    int closeIndex = glob.indexOf(']', i + 1);
+                    if (closeIndex < 0) {
+                        regex.append("\\[");
+                    } else {
+                        regex.append('[');
+                        int classStart = i + 1;
+                        if (glob.charAt(classStart) == '!') {
+                            regex.append('^');
+                            classStart++;
+                        }
+                        appendClassChars(regex, glob.substring(classStart, closeIndex));
+                        regex.append(']');
+                        i = closeIndex;
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    // chars of a glob class are literal except ranges: '[' would nest a class, "&&" intersect classes
+    private static void appendClassChars(StringBuilder regex, String classChars) {
+        for (int i = 0; i < classChars.length(); i++) {
+            char c = classChars.charAt(i);
+            if (c == '\\' || c == '[' || c == '&') {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.compactvfs.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.compactvfs.storage.VFSChunkIndex.ChunkList;
+import com.compactvfs.storage.VFSInputStream;
+import com.compactvfs.storage.VFSSegmentStore;
+
+/**
+ * Immutable view of the tree and the file contents at one point in time, see {@link VFS#snapshot()}.
+ * Reads take no locks: the chunk lists are copied, segments are append-only and the segments
+ * referenced by the snapshot are pinned, so compaction doesn't delete them until the snapshot is closed.
+ * The tree is a {@link VFSCompactTree}, chunk lists and stats are arrays indexed by its nodes.
+ * Every write of the store up to {@link #getSequence()} is seen, none after it
+ */
+public class VFSSnapshot implements Closeable {
+    private final VFSCompactTree tree;
+    private final ChunkList[] chunkLists;
+    private final VFSFileStat[] fileStats;
+    private final VFSSegmentStore segmentStore;
+    private final boolean verifyChecksums;
+    private final Set<Integer> pinnedSegmentIds;
+    private final long sequence;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    VFSSnapshot(
+            VFSCompactTree tree,
+            ChunkList[] chunkLists,
+            VFSFileStat[] fileStats,
+            VFSSegmentStore segmentStore,
+            boolean verifyChecksums,
+            Set<Integer> pinnedSegmentIds,
+            long sequence
+    ) {
+        this.tree = tree;
+        this.chunkLists = chunkLists;
+        this.fileStats = fileStats;
+        this.segmentStore = segmentStore;
+        this.verifyChecksums = verifyChecksums;
+        this.pinnedSegmentIds = pinnedSegmentIds;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return last change sequence of the store seen by the snapshot, see {@link VFSFileStat#getChangeSequence()}
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public VFSCompactTree getTree() {
+        return tree;
+    }
+
+    /**
+     * @return new mutable copy of the tree, built on every call
+     */
+    public VFSDirectory getRootVFSDirectory() {
+        return tree.toVFSDirectory();
+    }
+
+    /**
+     * @return null if the file had no content
+     */
+    public ChunkList getChunkList(String filePath) {
+        int node = fileNodeOf(filePath);
+        return node == VFSCompactTree.NO_NODE ? null : chunkLists[node];
+    }
+
+    /**
+     * @param node file node of {@link #getTree()}
+     * @return null if the file had no content
+     */
+    public ChunkList getChunkList(int node) {
+        return chunkLists[node];
+    }
+
+    /**
+     * @return null if the file had no content
+     */
+    public VFSFileStat stat(String filePath) {
+        int node = fileNodeOf(filePath);
+        return node == VFSCompactTree.NO_NODE ? null : fileStats[node];
+    }
+
+    /**
+     * @param node file node of {@link #getTree()}
+     * @return null if the file had no content
+     */
+    public VFSFileStat stat(int node) {
+        return fileStats[node];
+    }
+
+    public VFSInputStream readFileContent(String filePath) throws IOException {
+        return readFileContent(fileNodeOf(filePath));
+    }
+
+    /**
+     * @param node file node of {@link #getTree()}
+     */
+    public VFSInputStream readFileContent(int node) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Snapshot is closed");
+        }
+        return new VFSInputStream(node == VFSCompactTree.NO_NODE ? null : chunkLists[node], segmentStore, verifyChecksums);
+    }
+
+    private int fileNodeOf(String filePath) {
+        int node = tree.nodeOf(filePath);
+        return node == VFSCompactTree.NO_NODE || !tree.isFile(node) ? VFSCompactTree.NO_NODE : node;
+    }
+
+    public byte[] readBytesFrom(VFSFile vfsFile) throws IOException {
+        try (VFSInputStream vfsInputStream = readFileContent(vfsFile.getPath())) {
+            return vfsInputStream.readAllBytes();
+        }
+    }
+
+    /**
+     * Releases the pinned segments, content streams of the snapshot must be closed before
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            segmentStore.unpinSegments(pinnedSegmentIds);
+        }
+    }
+}
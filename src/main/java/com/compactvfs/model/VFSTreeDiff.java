@@ -0,0 +1,46 @@
+package com.compactvfs.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Paths are relative to the roots, a directory present on one side only is reported as one path
+ */
+public class VFSTreeDiff {
+    private final List<String> changedFiles;
+    private final List<String> onlyInThis;
+    private final List<String> onlyInOther;
+
+    public VFSTreeDiff(List<String> changedFiles, List<String> onlyInThis, List<String> onlyInOther) {
+        this.changedFiles = Collections.unmodifiableList(new ArrayList<>(changedFiles));
+        this.onlyInThis = Collections.unmodifiableList(new ArrayList<>(onlyInThis));
+        this.onlyInOther = Collections.unmodifiableList(new ArrayList<>(onlyInOther));
+    }
+
+    /**
+     * @return files on both sides with different contents
+     */
+    public List<String> getChangedFiles() {
+        return changedFiles;
+    }
+
+    public List<String> getOnlyInThis() {
+        return onlyInThis;
+    }
+
+    public List<String> getOnlyInOther() {
+        return onlyInOther;
+    }
+
+    public boolean isEmpty() {
+        return changedFiles.isEmpty() && onlyInThis.isEmpty() && onlyInOther.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "changed=" + changedFiles +
+                " onlyInThis=" + onlyInThis +
+                " onlyInOther=" + onlyInOther;
+    }
+}
@@ -0,0 +1,83 @@
+package com.compactvfs.model;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Depth-first walk over files of a subtree. Splits by handing over half of the not yet visited
+ * directories, so parallel streams spread whole subtrees over workers without materializing the file list
+ */
+public class VFSTreeSpliterator implements Spliterator<VFSFile> {
+    private final Deque<VFSDirectory> pendingDirs;
+    private Iterator<VFSFile> currentFiles = Collections.emptyIterator();
+
+    public VFSTreeSpliterator(VFSDirectory rootDirectory) {
+        pendingDirs = new ArrayDeque<>();
+        pendingDirs.push(rootDirectory);
+    }
+
+    private VFSTreeSpliterator(Deque<VFSDirectory> pendingDirs) {
+        this.pendingDirs = pendingDirs;
+    }
+
+    private boolean openNextDir() {
+        VFSDirectory dir = pendingDirs.poll();
+        if (dir == null) {
+            return false;
+        }
+        for (VFSDirectory subDir : dir.getSubDirectories()) {
+            pendingDirs.push(subDir);
+        }
+        currentFiles = dir.getSubFiles().iterator();
+        return true;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super VFSFile> action) {
+        while (!currentFiles.hasNext()) {
+            if (!openNextDir()) {
+                return false;
+            }
+        }
+        action.accept(currentFiles.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super VFSFile> action) {
+        do {
+            currentFiles.forEachRemaining(action);
+        } while (openNextDir());
+    }
+
+    @Override
+    public Spliterator<VFSFile> trySplit() {
+        // a single pending directory is opened to find out if it has subdirectories to share
+        while (pendingDirs.size() == 1 && !currentFiles.hasNext()) {
+            openNextDir();
+        }
+        int splitSize = pendingDirs.size() / 2;
+        if (splitSize == 0) {
+            return null;
+        }
+        Deque<VFSDirectory> splitDirs = new ArrayDeque<>(splitSize);
+        for (int i = 0; i < splitSize; i++) {
+            splitDirs.add(pendingDirs.pollLast());
+        }
+        return new VFSTreeSpliterator(splitDirs);
+    }
+
+    @Override
+    public long estimateSize() {
+        return pendingDirs.isEmpty() && !currentFiles.hasNext() ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL;
+    }
+}
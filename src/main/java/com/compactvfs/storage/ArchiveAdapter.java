@@ -0,0 +1,256 @@
+package com.compactvfs.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.compactvfs.metrics.VFSMetrics;
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFile;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static com.compactvfs.model.VFSDirectory.emptyWithPath;
+import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
+
+/**
+ * Imports zip and tar streams in one pass without extracting them: the content of an entry goes to the segments
+ * extent by extent as it is read, the tree is built in memory and written once at the end.
+ * An import interrupted by a crash loads as an empty tree, records of files missing in the tree are skipped on load.
+ *
+ * Entries with absolute paths or ".." are skipped and counted in {@link VFSMetrics#getSkippedArchiveEntries()}
+ * of the imported VFS, a later entry with the same path replaces the earlier one
+ */
+public class ArchiveAdapter {
+    private static final int TAR_BLOCK_BYTES = 512;
+
+    public static VFS fromZip(InputStream in, String rootName, Path descriptorDirPath) throws IOException {
+        ArchiveImport archiveImport = new ArchiveImport(rootName, descriptorDirPath);
+        ZipInputStream zipInputStream = new ZipInputStream(in, StandardCharsets.UTF_8);
+        ZipEntry entry;
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                archiveImport.addDirectory(entry.getName());
+            } else {
+                archiveImport.addFile(entry.getName(), zipInputStream);
+            }
+        }
+        return archiveImport.finish();
+    }
+
+    /**
+     * Reads ustar and GNU tar: long names, pax paths and base-256 sizes, links and devices are skipped.
+     * A stream ending at a header boundary ends the archive like the end-of-archive blocks
+     */
+    public static VFS fromTar(InputStream in, String rootName, Path descriptorDirPath) throws IOException {
+        ArchiveImport archiveImport = new ArchiveImport(rootName, descriptorDirPath);
+        byte[] header = new byte[TAR_BLOCK_BYTES];
+        String longName = null;
+        while (true) {
+            int headerBytesCount = in.readNBytes(header, 0, TAR_BLOCK_BYTES);
+            if (headerBytesCount == 0 || (headerBytesCount == TAR_BLOCK_BYTES && isZeroBlock(header))) {
+                break;
+            }
+            if (headerBytesCount < TAR_BLOCK_BYTES) {
+                throw new EOFException("Tar ends inside a header");
+            }
+            long size = parseTarNumber(header, 124, 12);
+            byte type = header[156];
+            String name = longName != null ? longName : tarNameOf(header);
+            longName = null;
+            TarEntryInputStream content = new TarEntryInputStream(in, size);
+            if (type == 'L') {
+                longName = trimNul(new String(content.readAllBytes(), StandardCharsets.UTF_8));
+            } else if (type == 'x') {
+                longName = paxPathOf(new String(content.readAllBytes(), StandardCharsets.UTF_8));
+            } else if (type == '5') {
+                archiveImport.addDirectory(name);
+            } else if (type == '0' || type == 0 || type == '7') {
+                archiveImport.addFile(name, content);
+            } else {
+                archiveImport.skip();
+            }
+            content.skipRest();
+            in.skipNBytes((TAR_BLOCK_BYTES - size % TAR_BLOCK_BYTES) % TAR_BLOCK_BYTES);
+        }
+        return archiveImport.finish();
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String tarNameOf(byte[] header) {
+        String name = trimNul(new String(header, 0, 100, StandardCharsets.UTF_8));
+        boolean ustar = new String(header, 257, 5, StandardCharsets.US_ASCII).equals("ustar");
+        String prefix = ustar ? trimNul(new String(header, 345, 155, StandardCharsets.UTF_8)) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    // octal, or base-256 if the high bit of the first byte is set
+    private static long parseTarNumber(byte[] header, int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) | (b - '0');
+            } else if (b == 0 || (b == ' ' && value > 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    // records are "[length] key=value\n"
+    private static String paxPathOf(String paxHeader) {
+        for (String record : paxHeader.split("\n")) {
+            int keyStart = record.indexOf(' ') + 1;
+            if (record.startsWith("path=", keyStart)) {
+                return record.substring(keyStart + "path=".length());
+            }
+        }
+        return null;
+    }
+
+    private static String trimNul(String s) {
+        int end = s.indexOf('\0');
+        return end < 0 ? s : s.substring(0, end);
+    }
+
+    private static class ArchiveImport {
+        private final VFSDirectory rootDirectory;
+        private final VFSStorageDescriptor storageDescriptor;
+
+        private ArchiveImport(String rootName, Path descriptorDirPath) throws IOException {
+            rootDirectory = emptyWithPath(VFS_PREFIX_PATH + rootName);
+            storageDescriptor = initTreeFrom(rootDirectory, descriptorDirPath);
+        }
+
+        private void addDirectory(String entryName) {
+            String[] names = namesOf(entryName);
+            if (names == null) {
+                skip();
+                return;
+            }
+            directoryOf(names, names.length);
+        }
+
+        private void addFile(String entryName, InputStream content) throws IOException {
+            String[] names = namesOf(entryName);
+            VFSDirectory parentDirectory = names == null ? null : directoryOf(names, names.length - 1);
+            if (parentDirectory == null || names.length == 0) {
+                skip();
+                return;
+            }
+            String filePath = parentDirectory.getPath() + "/" + names[names.length - 1];
+            if (parentDirectory.getSubDirectory(filePath) != null) {
+                skip();
+                return;
+            }
+            storageDescriptor.writeNewFileContentFrom(filePath, content);
+            parentDirectory.addSubFile(new VFSFile(filePath));
+        }
+
+        private void skip() {
+            storageDescriptor.getMetrics().onArchiveEntrySkipped();
+        }
+
+        /**
+         * @return null for absolute paths and paths with ".."
+         */
+        private static String[] namesOf(String entryName) {
+            if (entryName.startsWith("/")) {
+                return null;
+            }
+            String[] names = Arrays.stream(entryName.split("/"))
+                    .filter(name -> !name.isEmpty() && !name.equals("."))
+                    .toArray(String[]::new);
+            return Arrays.asList(names).contains("..") ? null : names;
+        }
+
+        /**
+         * Creates missing directories of the first namesCount names
+         *
+         * @return null if a file is in the way
+         */
+        private VFSDirectory directoryOf(String[] names, int namesCount) {
+            VFSDirectory directory = rootDirectory;
+            for (int i = 0; i < namesCount; i++) {
+                String dirPath = directory.getPath() + "/" + names[i];
+                VFSDirectory subDirectory = directory.getSubDirectory(dirPath);
+                if (subDirectory == null) {
+                    if (directory.getSubFile(dirPath) != null) {
+                        return null;
+                    }
+                    subDirectory = emptyWithPath(dirPath);
+                    directory.addSubDirectory(subDirectory);
+                }
+                directory = subDirectory;
+            }
+            return directory;
+        }
+
+        private VFS finish() throws IOException {
+            storageDescriptor.rebuildDfsTree(rootDirectory);
+            return new VFS(rootDirectory, storageDescriptor);
+        }
+    }
+
+    private static class TarEntryInputStream extends InputStream {
+        private final InputStream in;
+        private long bytesLeft;
+
+        private TarEntryInputStream(InputStream in, long size) {
+            this.in = in;
+            this.bytesLeft = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (bytesLeft == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Tar ends inside an entry");
+            }
+            bytesLeft--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (bytesLeft == 0) {
+                return -1;
+            }
+            int bytesRead = in.read(b, off, (int) Math.min(len, bytesLeft));
+            if (bytesRead < 0) {
+                throw new EOFException("Tar ends inside an entry");
+            }
+            bytesLeft -= bytesRead;
+            return bytesRead;
+        }
+
+        private void skipRest() throws IOException {
+            in.skipNBytes(bytesLeft);
+            bytesLeft = 0;
+        }
+    }
+}
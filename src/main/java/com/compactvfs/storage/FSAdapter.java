@@ -1,15 +1,24 @@
 package com.compactvfs.storage;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.stream.Stream;
 
 import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSCompactTree;
 import com.compactvfs.model.VFSDirectory;
 import com.compactvfs.model.VFSFile;
+import com.compactvfs.model.VFSFileStat;
+import com.compactvfs.model.VFSSnapshot;
 
 import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
 import static com.compactvfs.model.VFSDirectory.emptyWithPath;
@@ -17,6 +26,7 @@ import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
 import static java.util.stream.Collectors.toList;
 
 public class FSAdapter {
+    private static final long MTIME_PROBE_MILLIS = 1_600_000_001_999L;
 
     public static VFS fromFS(Path dirPath, Path descriptorDirPath) throws IOException {
         String vfsPath = VFS_PREFIX_PATH + dirPath.getFileName();
@@ -66,17 +76,317 @@ public class FSAdapter {
         return rootVfsDirectory;
     }
 
+    @FunctionalInterface
+    private interface ContentReader {
+        byte[] read(VFSFile vfsFile) throws IOException;
+    }
+
+    // contents of the nodes of a compact tree, taken from a snapshot or from a storage engine under locks
+    private interface TreeContent {
+        VFSFileStat stat(int node);
+
+        VFSInputStream readFileContent(int node) throws IOException;
+    }
+
+    private static TreeContent snapshotContent(VFSSnapshot snapshot) {
+        return new TreeContent() {
+            @Override
+            public VFSFileStat stat(int node) {
+                return snapshot.stat(node);
+            }
+
+            @Override
+            public VFSInputStream readFileContent(int node) throws IOException {
+                return snapshot.readFileContent(node);
+            }
+        };
+    }
+
+    // caller holds the read locks of all stripes, see VFS.readLocked
+    private static TreeContent engineContent(VFSCompactTree tree, VFSStorageEngine storageEngine) {
+        return new TreeContent() {
+            @Override
+            public VFSFileStat stat(int node) {
+                return storageEngine.stat(tree.pathOf(node));
+            }
+
+            @Override
+            public VFSInputStream readFileContent(int node) throws IOException {
+                return storageEngine.readFileContent(tree.pathOf(node));
+            }
+        };
+    }
+
+    /**
+     * Exports a snapshot, so writers aren't blocked for the whole export. Storage engines without snapshots
+     * are exported under read locks of the whole tree. Falls back to locked reads of the live tree file by file
+     * if neither can be taken
+     */
     public static void toFS(VFS vfs, Path dirPath) {
-        toFSHelper(vfs, vfs.getRootVFSDirectory(), Paths.get(dirPath.toString(), vfs.getRootVFSDirectory().getName()));
+        if (vfs.getStorageEngine() instanceof VFSStorageDescriptor) {
+            try (VFSSnapshot snapshot = vfs.snapshot()) {
+                if (snapshot != null) {
+                    toFS(snapshot, dirPath);
+                    return;
+                }
+            } catch (IOException ex) {
+                System.out.println("Can't take or release snapshot, ex: " + ex.getMessage());
+            }
+        } else {
+            try {
+                boolean exported = vfs.readLocked((rootVFSDirectory, storageEngine) -> {
+                    VFSCompactTree tree = VFSCompactTree.of(rootVFSDirectory);
+                    toFSHelper(engineContent(tree, storageEngine), tree, VFSCompactTree.ROOT, rootDirPathOf(tree, dirPath));
+                });
+                if (exported) {
+                    return;
+                }
+            } catch (IOException ex) {
+                System.out.println("Can't export locked tree, ex: " + ex.getMessage());
+            }
+        }
+        toFSHelper(vfs::readBytesFrom, vfs.getRootVFSDirectory(), rootDirPathOf(vfs.getRootVFSDirectory(), dirPath));
+    }
+
+    /**
+     * Walks the compact tree of the snapshot, no node objects are built
+     */
+    public static void toFS(VFSSnapshot snapshot, Path dirPath) {
+        VFSCompactTree tree = snapshot.getTree();
+        toFSHelper(snapshotContent(snapshot), tree, VFSCompactTree.ROOT, rootDirPathOf(tree, dirPath));
+    }
+
+    private static void toFSHelper(TreeContent content, VFSCompactTree tree, int node, Path rootDirPath) {
+        try {
+            Files.createDirectories(rootDirPath);
+        } catch (IOException ex) {
+            System.out.println("Can't create directory with path " + rootDirPath);
+            return;
+        }
+        int end = tree.firstChildOf(node) + tree.childrenCountOf(node);
+        for (int child = tree.firstChildOf(node); child < end; child++) {
+            Path fsChildPath = Paths.get(rootDirPath + "/" + tree.nameOf(child));
+            if (!tree.isFile(child)) {
+                toFSHelper(content, tree, child, fsChildPath);
+                continue;
+            }
+            try (VFSInputStream inputStream = content.readFileContent(child);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(fsChildPath))) {
+                inputStream.transferTo(out);
+            } catch (IOException ex) {
+                System.out.println("Can't write to/create file with path " + fsChildPath);
+            }
+        }
+    }
+
+    /**
+     * Brings a mirror written by a previous sync up to date with a snapshot of the vfs, the first sync
+     * writes every file. Then only files with a change sequence after sinceSequence are written, plus files the mirror lacks or holds
+     * with another size or modification time (renamed files, an interrupted sync). The mirror is walked once
+     * for its attributes, no mirror content is read; files and directories not in the tree are deleted.
+     * Files relocated by a compaction count as changed
+     *
+     * Storage engines without snapshots are synced under read locks of the whole tree
+     *
+     * @param sinceSequence sequence returned by the previous sync, -1 for the first one
+     * @return sequence to pass to the next sync, sinceSequence if the snapshot or the locks can't be taken
+     */
+    public static long syncToFS(VFS vfs, Path dirPath, long sinceSequence) {
+        if (!(vfs.getStorageEngine() instanceof VFSStorageDescriptor)) {
+            return syncLockedToFS(vfs, dirPath, sinceSequence);
+        }
+        try (VFSSnapshot snapshot = vfs.snapshot()) {
+            if (snapshot == null) {
+                return sinceSequence;
+            }
+            return syncToFS(snapshot, dirPath, sinceSequence) ? snapshot.getSequence() : sinceSequence;
+        } catch (IOException ex) {
+            System.out.println("Can't take or release snapshot, ex: " + ex.getMessage());
+            return sinceSequence;
+        }
+    }
+
+    // no write runs under the locks, so the last change sequence of the files is the sequence of the sync
+    private static long syncLockedToFS(VFS vfs, Path dirPath, long sinceSequence) {
+        long[] syncedSequence = {sinceSequence};
+        try {
+            vfs.readLocked((rootVFSDirectory, storageEngine) -> {
+                VFSCompactTree tree = VFSCompactTree.of(rootVFSDirectory);
+                TreeContent content = engineContent(tree, storageEngine);
+                if (!syncTree(content, tree, dirPath, sinceSequence)) {
+                    return;
+                }
+                tree.forEachFilePath((filePath, node) -> {
+                    VFSFileStat stat = content.stat(node);
+                    if (stat != null) {
+                        syncedSequence[0] = Math.max(syncedSequence[0], stat.getChangeSequence());
+                    }
+                });
+            });
+        } catch (IOException ex) {
+            System.out.println("Can't sync locked tree, ex: " + ex.getMessage());
+        }
+        return syncedSequence[0];
+    }
+
+    /**
+     * @return false if some file or directory couldn't be synced
+     */
+    public static boolean syncToFS(VFSSnapshot snapshot, Path dirPath, long sinceSequence) {
+        return syncTree(snapshotContent(snapshot), snapshot.getTree(), dirPath, sinceSequence);
+    }
+
+    private static boolean syncTree(TreeContent content, VFSCompactTree tree, Path dirPath, long sinceSequence) {
+        Path rootDirPath = rootDirPathOf(tree, dirPath);
+        BasicFileAttributes[] mirrorAttributes = new BasicFileAttributes[tree.size()];
+        long mtimePrecisionMillis;
+        try {
+            Files.createDirectories(rootDirPath);
+            mtimePrecisionMillis = mtimePrecisionMillisOf(rootDirPath);
+            walkMirror(tree, rootDirPath, mirrorAttributes);
+        } catch (IOException ex) {
+            System.out.println("Can't walk mirror with path " + rootDirPath + ", ex: " + ex.getMessage());
+            return false;
+        }
+        return syncHelper(content, tree, VFSCompactTree.ROOT, rootDirPath, sinceSequence, mirrorAttributes, mtimePrecisionMillis);
+    }
+
+    /**
+     * Modification times of the mirror are stored at the precision of its file system: 1 ms for most of them,
+     * whole seconds on ext3 or HFS+, even seconds on FAT. The probe is a time with an odd second and 999 ms,
+     * so truncation and rounding to either unit are seen
+     */
+    private static long mtimePrecisionMillisOf(Path rootDirPath) throws IOException {
+        Files.setLastModifiedTime(rootDirPath, FileTime.fromMillis(MTIME_PROBE_MILLIS));
+        long storedMillis = Files.getLastModifiedTime(rootDirPath).toMillis();
+        return Math.abs(MTIME_PROBE_MILLIS - storedMillis) + 1;
+    }
+
+    // keeps the attributes of mirror files present in the tree, deletes the rest
+    private static void walkMirror(
+            VFSCompactTree tree,
+            Path rootDirPath,
+            BasicFileAttributes[] mirrorAttributes
+    ) throws IOException {
+        Files.walkFileTree(rootDirPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                int node = nodeOf(tree, rootDirPath, dir);
+                if (node != VFSCompactTree.NO_NODE && !tree.isFile(node)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                deleteRecursively(dir);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                int node = nodeOf(tree, rootDirPath, file);
+                if (node != VFSCompactTree.NO_NODE && tree.isFile(node)) {
+                    mirrorAttributes[node] = attrs;
+                } else {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static int nodeOf(VFSCompactTree tree, Path rootDirPath, Path mirrorPath) {
+        Path relativePath = rootDirPath.relativize(mirrorPath);
+        if (relativePath.toString().isEmpty()) {
+            return VFSCompactTree.ROOT;
+        }
+        StringBuilder vfsPath = new StringBuilder(tree.getRootPath());
+        for (Path name : relativePath) {
+            vfsPath.append('/').append(name);
+        }
+        return tree.nodeOf(vfsPath.toString());
+    }
+
+    private static void deleteRecursively(Path dirPath) throws IOException {
+        Files.walkFileTree(dirPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean syncHelper(
+            TreeContent content,
+            VFSCompactTree tree,
+            int node,
+            Path rootDirPath,
+            long sinceSequence,
+            BasicFileAttributes[] mirrorAttributes,
+            long mtimePrecisionMillis
+    ) {
+        try {
+            Files.createDirectories(rootDirPath);
+        } catch (IOException ex) {
+            System.out.println("Can't create directory with path " + rootDirPath);
+            return false;
+        }
+        boolean synced = true;
+        int end = tree.firstChildOf(node) + tree.childrenCountOf(node);
+        for (int child = tree.firstChildOf(node); child < end; child++) {
+            Path fsChildPath = Paths.get(rootDirPath + "/" + tree.nameOf(child));
+            if (!tree.isFile(child)) {
+                synced &= syncHelper(content, tree, child, fsChildPath, sinceSequence, mirrorAttributes, mtimePrecisionMillis);
+                continue;
+            }
+            VFSFileStat stat = content.stat(child);
+            BasicFileAttributes attributes = mirrorAttributes[child];
+            boolean upToDate = stat == null || (stat.getChangeSequence() <= sinceSequence
+                    && attributes != null
+                    && attributes.size() == stat.getSize()
+                    && Math.abs(attributes.lastModifiedTime().toMillis() - stat.getModificationTime()) < mtimePrecisionMillis);
+            if (upToDate) {
+                continue;
+            }
+            try (VFSInputStream inputStream = content.readFileContent(child);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(fsChildPath))) {
+                inputStream.transferTo(out);
+            } catch (IOException ex) {
+                System.out.println("Can't write to/create file with path " + fsChildPath);
+                synced = false;
+                continue;
+            }
+            try {
+                Files.setLastModifiedTime(fsChildPath, FileTime.fromMillis(stat.getModificationTime()));
+            } catch (IOException ex) {
+                System.out.println("Can't set modification time of file with path " + fsChildPath);
+            }
+        }
+        return synced;
+    }
+
+    private static Path rootDirPathOf(VFSDirectory rootVFSDirectory, Path dirPath) {
+        return Paths.get(dirPath.toString(), rootVFSDirectory.getName());
+    }
+
+    private static Path rootDirPathOf(VFSCompactTree tree, Path dirPath) {
+        return Paths.get(dirPath.toString(), tree.nameOf(VFSCompactTree.ROOT));
     }
 
-    private static void toFSHelper(VFS vfs, VFSDirectory vfsDirectory, Path rootDirPath) {
+    private static void toFSHelper(ContentReader contentReader, VFSDirectory vfsDirectory, Path rootDirPath) {
         try {
             Files.createDirectories(rootDirPath);
             for (VFSFile vfsSubFile : vfsDirectory.getSubFiles()) {
                 Path fsSubFilePath = Paths.get(rootDirPath + "/" + vfsSubFile.getName());
                 try {
-                    byte[] bytesContent = vfs.readBytesFrom(vfsSubFile);
+                    byte[] bytesContent = contentReader.read(vfsSubFile);
                     if (bytesContent != null) {
                         Files.write(fsSubFilePath, bytesContent);
                     }
@@ -86,7 +396,7 @@ public class FSAdapter {
             }
             for (VFSDirectory vfsSubDirectory : vfsDirectory.getSubDirectories()) {
                 Path fsSubDirPath = Paths.get(rootDirPath + "/" + vfsSubDirectory.getName());
-                toFSHelper(vfs, vfsSubDirectory, fsSubDirPath);
+                toFSHelper(contentReader, vfsSubDirectory, fsSubDirPath);
             }
         } catch (IOException ex) {
             System.out.println("Can't create directory with path " + rootDirPath);
@@ -0,0 +1,21 @@
+package com.compactvfs.storage;
+
+import java.io.IOException;
+
+import static com.compactvfs.storage.VFSSegmentStore.offsetOf;
+import static com.compactvfs.storage.VFSSegmentStore.segmentOf;
+
+public class VFSChunkCorruptedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long chunkAddress;
+
+    public VFSChunkCorruptedException(long chunkAddress) {
+        super("Chunk checksum mismatch, segment: " + segmentOf(chunkAddress) + " offset: " + offsetOf(chunkAddress));
+        this.chunkAddress = chunkAddress;
+    }
+
+    public long getChunkAddress() {
+        return chunkAddress;
+    }
+}
@@ -0,0 +1,391 @@
+package com.compactvfs.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Chunk addresses and content lengths of every file in primitive arrays, no boxed longs or list per file.
+ * A path is mapped once to a compact file id, the id indexes a table of {@link ChunkList}s.
+ * Ids are stable like inode numbers: records in the segments are keyed by them, the tree file maps paths to them,
+ * so a rename only moves the path of the id.
+ *
+ * Footprint: 16 bytes per chunk (address + end offset), up to 32 while the arrays of a file have free capacity,
+ * plus about 150 bytes per file (path entry, boxed id, table slot, chunk list and two array headers).
+ *
+ * A chunk list is immutable for readers: an append fills the next free slot of the arrays and publishes
+ * a new list with a larger count, so readers of the old list never see a change. Ids are not reused,
+ * a reader holding the id of a deleted file can't read content of another file
+ */
+public class VFSChunkIndex {
+    private static final int INITIAL_TABLE_SIZE = 1024;
+    private static final int MUTATION_STRIPES = 64;
+
+    private final Map<String, Integer> fileIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextFileId = new AtomicInteger();
+    // write locked only to grow the table, slot updates hold the read lock
+    private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+    private volatile AtomicReferenceArray<ChunkList> chunkLists = new AtomicReferenceArray<>(INITIAL_TABLE_SIZE);
+    // an append writes into arrays shared with the previous list, so updates of one file are serialized
+    private final Object[] mutationLocks = new Object[MUTATION_STRIPES];
+
+    public VFSChunkIndex() {
+        for (int i = 0; i < MUTATION_STRIPES; i++) {
+            mutationLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return null if the file has no content
+     */
+    public ChunkList get(String filePath) {
+        Integer fileId = fileIds.get(filePath);
+        return fileId == null ? null : getById(fileId);
+    }
+
+    /**
+     * @return null if the file has no content
+     */
+    public ChunkList getById(int fileId) {
+        AtomicReferenceArray<ChunkList> table = chunkLists;
+        return fileId < 0 || fileId >= table.length() ? null : table.get(fileId);
+    }
+
+    /**
+     * @return -1 if the file has no id
+     */
+    public int fileIdOf(String filePath) {
+        Integer fileId = fileIds.get(filePath);
+        return fileId == null ? -1 : fileId;
+    }
+
+    /**
+     * @return id of the file, a new one if it had none
+     */
+    public int fileIdFor(String filePath) {
+        // the table grows before the id is published, readers of the path never index beyond it
+        return fileIds.computeIfAbsent(filePath, k -> {
+            int fileId = nextFileId.getAndIncrement();
+            ensureCapacity(fileId);
+            return fileId;
+        });
+    }
+
+    /**
+     * Restores an id read from the tree file, later new ids are greater
+     */
+    public void register(String filePath, int fileId) {
+        ensureCapacity(fileId);
+        nextFileId.accumulateAndGet(fileId + 1, Math::max);
+        fileIds.put(filePath, fileId);
+    }
+
+    /**
+     * Ids below it were given out, they are never reused even after a restart
+     */
+    public int getNextFileId() {
+        return nextFileId.get();
+    }
+
+    public void setNextFileId(int fileId) {
+        nextFileId.accumulateAndGet(fileId, Math::max);
+    }
+
+    /**
+     * Moves the id with its chunks to the new path, caller excludes writers of both paths
+     *
+     * @return false if the old path has no id
+     */
+    public boolean rename(String oldFilePath, String newFilePath) {
+        Integer fileId = fileIds.remove(oldFilePath);
+        if (fileId == null) {
+            return false;
+        }
+        fileIds.put(newFilePath, fileId);
+        return true;
+    }
+
+    /**
+     * @return count of files with an id
+     */
+    public int size() {
+        return fileIds.size();
+    }
+
+    /**
+     * Drops all previous chunks of the file
+     */
+    public void replace(String filePath, long address, int contentLength) {
+        replaceById(fileIdFor(filePath), address, contentLength);
+    }
+
+    public void append(String filePath, long address, int contentLength) {
+        appendById(fileIdFor(filePath), address, contentLength);
+    }
+
+    /**
+     * Id based updates are for indexes without paths, e.g. of a shared reader, see {@link VFSSharedReader}
+     */
+    public void replaceById(int fileId, long address, int contentLength) {
+        ensureCapacity(fileId);
+        synchronized (mutationLocks[fileId % MUTATION_STRIPES]) {
+            setChunkList(fileId, ChunkList.EMPTY.append(address, contentLength));
+        }
+    }
+
+    public void appendById(int fileId, long address, int contentLength) {
+        ensureCapacity(fileId);
+        synchronized (mutationLocks[fileId % MUTATION_STRIPES]) {
+            ChunkList chunkList = chunkLists.get(fileId);
+            setChunkList(fileId, (chunkList == null ? ChunkList.EMPTY : chunkList).append(address, contentLength));
+        }
+    }
+
+    /**
+     * Id based updates collected aside, e.g. of a log entries batch of a shared reader: a file goes from its list
+     * before the batch to its list after it, readers never see a part of the updates of one file
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Drops the chunks, a path mapped to the id keeps it
+     */
+    public void removeById(int fileId) {
+        if (fileId >= chunkLists.length()) {
+            return;
+        }
+        synchronized (mutationLocks[fileId % MUTATION_STRIPES]) {
+            setChunkList(fileId, null);
+        }
+    }
+
+    /**
+     * Drops the id and the chunks of the file
+     *
+     * @return false if the file had no id
+     */
+    public boolean remove(String filePath) {
+        Integer fileId = fileIds.remove(filePath);
+        if (fileId == null) {
+            return false;
+        }
+        synchronized (mutationLocks[fileId % MUTATION_STRIPES]) {
+            setChunkList(fileId, null);
+        }
+        return true;
+    }
+
+    public void retainAll(Set<String> filePaths) {
+        for (String filePath : new ArrayList<>(fileIds.keySet())) {
+            if (!filePaths.contains(filePath)) {
+                remove(filePath);
+            }
+        }
+    }
+
+    public void clear() {
+        tableLock.writeLock().lock();
+        try {
+            fileIds.clear();
+            nextFileId.set(0);
+            chunkLists = new AtomicReferenceArray<>(INITIAL_TABLE_SIZE);
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Weakly consistent with concurrent updates
+     */
+    public void forEach(BiConsumer<String, ChunkList> action) {
+        fileIds.forEach((filePath, fileId) -> {
+            ChunkList chunkList = getById(fileId);
+            if (chunkList != null) {
+                action.accept(filePath, chunkList);
+            }
+        });
+    }
+
+    public long getChunksCount() {
+        long[] chunksCount = new long[1];
+        forEach((filePath, chunkList) -> chunksCount[0] += chunkList.size());
+        return chunksCount[0];
+    }
+
+    private void setChunkList(int fileId, ChunkList chunkList) {
+        tableLock.readLock().lock();
+        try {
+            chunkLists.set(fileId, chunkList);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    private void ensureCapacity(int fileId) {
+        if (fileId < chunkLists.length()) {
+            return;
+        }
+        tableLock.writeLock().lock();
+        try {
+            AtomicReferenceArray<ChunkList> table = chunkLists;
+            if (fileId < table.length()) {
+                return;
+            }
+            AtomicReferenceArray<ChunkList> grownTable = new AtomicReferenceArray<>(
+                    Math.max(table.length() * 2, fileId + 1)
+            );
+            for (int i = 0; i < table.length(); i++) {
+                grownTable.set(i, table.get(i));
+            }
+            chunkLists = grownTable;
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Not thread safe, one batch per writer of the index
+     */
+    public final class Batch {
+        // null for a removed file
+        private final Map<Integer, ChunkList> updatedChunkLists = new HashMap<>();
+
+        private Batch() {
+        }
+
+        public void replace(int fileId, long address, int contentLength) {
+            updatedChunkLists.put(fileId, ChunkList.EMPTY.append(address, contentLength));
+        }
+
+        public void append(int fileId, long address, int contentLength) {
+            ChunkList chunkList = updatedChunkLists.containsKey(fileId) ? updatedChunkLists.get(fileId) : getById(fileId);
+            updatedChunkLists.put(fileId, (chunkList == null ? ChunkList.EMPTY : chunkList).append(address, contentLength));
+        }
+
+        public void remove(int fileId) {
+            updatedChunkLists.put(fileId, null);
+        }
+
+        public void apply() {
+            updatedChunkLists.forEach((fileId, chunkList) -> {
+                ensureCapacity(fileId);
+                synchronized (mutationLocks[fileId % MUTATION_STRIPES]) {
+                    setChunkList(fileId, chunkList);
+                }
+            });
+            updatedChunkLists.clear();
+        }
+    }
+
+    /**
+     * Chunks of one file in content order, immutable
+     */
+    public static final class ChunkList {
+        static final ChunkList EMPTY = new ChunkList(new long[0], new long[0], 0);
+
+        private final long[] addresses;
+        // content offset right after the chunk, prefix sums of the content lengths
+        private final long[] endOffsets;
+        private final int size;
+
+        private ChunkList(long[] addresses, long[] endOffsets, int size) {
+            this.addresses = addresses;
+            this.endOffsets = endOffsets;
+            this.size = size;
+        }
+
+        /**
+         * Shares the arrays if they have free capacity, caller must be the only writer of the file
+         */
+        private ChunkList append(long address, int contentLength) {
+            long[] newAddresses = addresses;
+            long[] newEndOffsets = endOffsets;
+            if (size == addresses.length) {
+                int capacity = Math.max(2, size * 2);
+                newAddresses = new long[capacity];
+                newEndOffsets = new long[capacity];
+                System.arraycopy(addresses, 0, newAddresses, 0, size);
+                System.arraycopy(endOffsets, 0, newEndOffsets, 0, size);
+            }
+            newAddresses[size] = address;
+            newEndOffsets[size] = getContentLength() + contentLength;
+            return new ChunkList(newAddresses, newEndOffsets, size + 1);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public long addressAt(int index) {
+            checkIndex(index);
+            return addresses[index];
+        }
+
+        public int contentLengthAt(int index) {
+            checkIndex(index);
+            return (int) (endOffsets[index] - startOffsetAt(index));
+        }
+
+        /**
+         * @return content offset of the first byte of the chunk
+         */
+        public long startOffsetAt(int index) {
+            checkIndex(index);
+            return index == 0 ? 0 : endOffsets[index - 1];
+        }
+
+        public long getContentLength() {
+            return size == 0 ? 0 : endOffsets[size - 1];
+        }
+
+        /**
+         * @return index of the chunk holding the content offset, size() if the offset is beyond the content
+         */
+        public int chunkIndexOf(long contentOffset) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (endOffsets[mid] <= contentOffset) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        public List<Long> addresses() {
+            List<Long> ret = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                ret.add(addresses[i]);
+            }
+            return Collections.unmodifiableList(ret);
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Chunk index " + index + ", chunks count " + size);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return addresses().toString();
+        }
+    }
+}
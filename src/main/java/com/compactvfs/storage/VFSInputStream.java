@@ -1,24 +1,218 @@
 package com.compactvfs.storage;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import com.compactvfs.storage.VFSChunkIndex.ChunkList;
+import com.compactvfs.storage.VFSRecordCodec.ChunkHeader;
+
+import static com.compactvfs.storage.VFSRecordCodec.decodeChunkHeader;
+import static com.compactvfs.storage.VFSRecordCodec.readAtMost;
+import static com.compactvfs.storage.VFSRecordCodec.readFully;
+import static com.compactvfs.storage.VFSSegmentStore.CHUNK_HEADER_BYTES;
+import static com.compactvfs.storage.VFSSegmentStore.checksumOf;
+import static com.compactvfs.storage.VFSSegmentStore.offsetOf;
+import static com.compactvfs.storage.VFSSegmentStore.segmentOf;
 
 public class VFSInputStream implements AutoCloseable {
-    private final List<Long> contentChunkPositions;
-    private final RandomAccessFile storage;
+    private final ChunkList chunkList;
+    private final VFSSegmentStore segmentStore;
+    private final boolean verifyChecksums;
+    // buffered appends not written yet or a content kept in memory, read as a last in-memory chunk
+    private final ByteBuffer pendingTail;
+    // segments are opened on first access, most files live in one or two of them
+    // positional reads, no seek + read pairs
+    private final Map<Integer, FileChannel> openSegments = new ConcurrentHashMap<>();
 
     private int posInChunkContent = 0;
     private int chunkIndex = 0;
 
+    // with verification a chunk is read and checked as a whole, then served from memory
+    private int verifiedChunkIndex = -1;
+    private byte[] verifiedChunk;
+
+    // readahead window over one segment: chunks of a file appended one after another lie close to each other,
+    // so one large read serves the headers and contents of several chunks
+    private byte[] window = new byte[0];
+    private int windowSegmentId = -1;
+    private long windowStart;
+    private int windowLength;
+    private int readaheadBytes = MIN_READAHEAD_BYTES;
+    private int physicalReadsCount = 0;
+
+    static final int MIN_READAHEAD_BYTES = 16 * 1024;
+    static final int MAX_READAHEAD_BYTES = 1024 * 1024;
+    static final int MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
+
+    public VFSInputStream(ChunkList chunkList, VFSSegmentStore segmentStore) throws IOException {
+        this(chunkList, segmentStore, false);
+    }
+
+    public VFSInputStream(
+            ChunkList chunkList,
+            VFSSegmentStore segmentStore,
+            boolean verifyChecksums
+    ) throws IOException {
+        this(chunkList, segmentStore, verifyChecksums, new byte[0]);
+    }
+
+    /**
+     * @param pendingTail content appended after the chunks and not written to the segments yet
+     */
+    public VFSInputStream(
+            ChunkList chunkList,
+            VFSSegmentStore segmentStore,
+            boolean verifyChecksums,
+            byte[] pendingTail
+    ) throws IOException {
+        this(chunkList, segmentStore, verifyChecksums, ByteBuffer.wrap(pendingTail));
+        if (this.chunkList.isEmpty() && pendingTail.length == 0) {
+            throw new IOException("No vfsFile content, storage: " + segmentStore.getSegmentsDir());
+        }
+    }
+
+    private VFSInputStream(
+            ChunkList chunkList,
+            VFSSegmentStore segmentStore,
+            boolean verifyChecksums,
+            ByteBuffer pendingTail
+    ) {
+        this.chunkList = chunkList == null || chunkList.isEmpty() ? ChunkList.EMPTY : chunkList;
+        this.segmentStore = segmentStore;
+        this.verifyChecksums = verifyChecksums;
+        this.pendingTail = pendingTail.slice();
+    }
+
+    /**
+     * Stream over a content kept by a storage engine in memory, e.g. off-heap, an empty buffer is an empty content.
+     * The bytes between position and limit must not change while the stream is used
+     */
+    public static VFSInputStream ofMemory(ByteBuffer content) {
+        return new VFSInputStream(null, null, false, content.asReadOnlyBuffer());
+    }
+
+    private boolean isPendingTail(int index) {
+        return index == chunkList.size();
+    }
+
+    private FileChannel segmentOfChunk(long chunkAddress) throws IOException {
+        int segmentId = segmentOf(chunkAddress);
+        FileChannel storage = openSegments.get(segmentId);
+        return storage != null ? storage : openSegment(segmentId);
+    }
+
+    // parallel range reads may open segments concurrently
+    private synchronized FileChannel openSegment(int segmentId) throws IOException {
+        FileChannel storage = openSegments.get(segmentId);
+        if (storage == null) {
+            storage = FileChannel.open(segmentStore.segmentPath(segmentId), StandardOpenOption.READ);
+            openSegments.put(segmentId, storage);
+        }
+        return storage;
+    }
+
+    /**
+     * Serves the bytes from the readahead window if possible. A miss moving forward in the window segment
+     * is sequential access and doubles the next window, any other miss starts from the minimal window.
+     * Reads not smaller than the largest window go directly into the destination
+     */
+    private void readAt(long chunkAddress, long offsetInChunk, ByteBuffer dst) throws IOException {
+        int segmentId = segmentOf(chunkAddress);
+        long position = offsetOf(chunkAddress) + offsetInChunk;
+        int len = dst.remaining();
+        if (segmentId == windowSegmentId && position >= windowStart && position + len <= windowStart + windowLength) {
+            dst.put(window, (int) (position - windowStart), len);
+            dst.flip();
+            return;
+        }
+        physicalReadsCount++;
+        if (len >= MAX_READAHEAD_BYTES) {
+            readFully(segmentOfChunk(chunkAddress), position, dst);
+            return;
+        }
+        boolean sequential = segmentId == windowSegmentId && position >= windowStart;
+        readaheadBytes = sequential ? Math.min(readaheadBytes * 2, MAX_READAHEAD_BYTES) : MIN_READAHEAD_BYTES;
+        int windowSize = Math.max(readaheadBytes, len);
+        if (window.length < windowSize) {
+            window = new byte[windowSize];
+        }
+        windowSegmentId = segmentId;
+        windowStart = position;
+        // the tail of a segment is shorter than the window
+        windowLength = readAtMost(segmentOfChunk(chunkAddress), position, ByteBuffer.wrap(window, 0, windowSize));
+        if (windowLength < len) {
+            windowSegmentId = -1;
+            throw new EOFException("Chunk " + chunkAddress + " ends after the segment end");
+        }
+        dst.put(window, 0, len);
+        dst.flip();
+    }
 
-    public VFSInputStream(List<Long> contentChunkPositions, String storagePath) throws IOException {
-        this.contentChunkPositions = contentChunkPositions;
-        if (contentChunkPositions == null || contentChunkPositions.isEmpty()) {
-            throw new IOException("No vfsFile content, storage: " + storagePath);
+    /**
+     * Content length comes from the index, the chunk header isn't read
+     */
+    private byte[] readChunk(int index) throws IOException {
+        ByteBuffer chunkContent = ByteBuffer.allocate(chunkList.contentLengthAt(index));
+        readAt(chunkList.addressAt(index), CHUNK_HEADER_BYTES, chunkContent);
+        return chunkContent.array();
+    }
+
+    private byte[] readVerifiedChunk(int index) throws IOException {
+        if (verifiedChunkIndex != index) {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_BYTES + chunkList.contentLengthAt(index));
+            readAt(chunkList.addressAt(index), 0, chunk);
+            verifiedChunk = verifiedContentOf(index, chunk);
+            verifiedChunkIndex = index;
+        }
+        return verifiedChunk;
+    }
+
+    /**
+     * @param chunk flipped header and content of the chunk
+     */
+    private byte[] verifiedContentOf(int index, ByteBuffer chunk) throws VFSChunkCorruptedException {
+        int contentBytesCount = chunkList.contentLengthAt(index);
+        ChunkHeader header = decodeChunkHeader(chunk);
+        byte[] chunkContent = new byte[contentBytesCount];
+        chunk.get(chunkContent);
+        if (header.getContentLength() != contentBytesCount
+                || checksumOf(chunkContent, 0, contentBytesCount) != header.getChecksum()) {
+            throw new VFSChunkCorruptedException(chunkList.addressAt(index));
+        }
+        return chunkContent;
+    }
+
+    private int chunkContentBytesCount(int index) throws IOException {
+        if (isPendingTail(index)) {
+            return pendingTail.remaining();
+        }
+        if (verifyChecksums) {
+            return readVerifiedChunk(index).length;
+        }
+        return chunkList.contentLengthAt(index);
+    }
+
+    private void readChunkContent(int index, int posInChunk, byte[] b, int off, int len) throws IOException {
+        if (isPendingTail(index)) {
+            pendingTail.get(posInChunk, b, off, len);
+        } else if (verifyChecksums) {
+            System.arraycopy(readVerifiedChunk(index), posInChunk, b, off, len);
+        } else {
+            readAt(chunkList.addressAt(index), CHUNK_HEADER_BYTES + posInChunk, ByteBuffer.wrap(b, off, len));
         }
-        storage = new RandomAccessFile(storagePath, "r");
     }
 
     /**
@@ -29,25 +223,22 @@ public class VFSInputStream implements AutoCloseable {
      * @return count of read bytes
      */
     public int readNBytes(byte[] b, int n) throws IOException {
-        int nChunks = contentChunkPositions.size();
+        int nChunks = getChunksCount();
         int bytesLeft = n;
         while (bytesLeft >= 0) {
             if (chunkIndex >= nChunks) {
                 seekBegin();
                 return n - bytesLeft;
             }
-            long chunkInitPos = contentChunkPositions.get(chunkIndex);
-            storage.seek(chunkInitPos);
-            int chunkContentBytesCount = storage.readInt();
+            int chunkContentBytesCount = chunkContentBytesCount(chunkIndex);
             int chunkContentBytesLeft = chunkContentBytesCount - posInChunkContent;
 
-            storage.seek(chunkInitPos + Integer.BYTES + posInChunkContent);
             if (bytesLeft < chunkContentBytesLeft) {
-                storage.read(b, n - bytesLeft, bytesLeft);
+                readChunkContent(chunkIndex, posInChunkContent, b, n - bytesLeft, bytesLeft);
                 posInChunkContent += bytesLeft;
                 return n;
             } else {
-                storage.read(b, n - bytesLeft, chunkContentBytesLeft);
+                readChunkContent(chunkIndex, posInChunkContent, b, n - bytesLeft, chunkContentBytesLeft);
                 bytesLeft -= chunkContentBytesLeft;
                 chunkIndex++;
                 posInChunkContent = 0;
@@ -56,27 +247,207 @@ public class VFSInputStream implements AutoCloseable {
         throw new AssertionError("Read must be completed");
     }
 
+    /**
+     * Positional read, the position of {@link #readNBytes} doesn't move.
+     * Chunk ranges go from the channel straight into the buffer, without intermediate copies for direct buffers
+     *
+     * @return count of read bytes, -1 if the offset is at or after the end of the content
+     */
+    public int read(long contentOffset, ByteBuffer dst) throws IOException {
+        return (int) read(contentOffset, new ByteBuffer[]{dst});
+    }
+
+    /**
+     * Scattering variant of {@link #read(long, ByteBuffer)}, buffers are filled in order
+     */
+    public long read(long contentOffset, ByteBuffer[] dsts) throws IOException {
+        long contentLength = getContentLength();
+        if (contentOffset < 0) {
+            throw new IllegalArgumentException("Negative content offset: " + contentOffset);
+        }
+        if (contentOffset >= contentLength) {
+            return -1;
+        }
+        long offset = contentOffset;
+        int index = chunkList.chunkIndexOf(offset);
+        int dstIndex = 0;
+        while (offset < contentLength) {
+            while (dstIndex < dsts.length && !dsts[dstIndex].hasRemaining()) {
+                dstIndex++;
+            }
+            if (dstIndex == dsts.length) {
+                break;
+            }
+            long chunkStart = isPendingTail(index) ? chunkList.getContentLength() : chunkList.startOffsetAt(index);
+            long chunkEnd = chunkStart + chunkContentBytesCount(index);
+            if (offset >= chunkEnd) {
+                index++;
+                continue;
+            }
+            ByteBuffer dst = dsts[dstIndex];
+            int len = (int) Math.min(dst.remaining(), chunkEnd - offset);
+            copyChunkContent(index, (int) (offset - chunkStart), dst, len);
+            offset += len;
+        }
+        return offset - contentOffset;
+    }
+
+    private void copyChunkContent(int index, int posInChunk, ByteBuffer dst, int len) throws IOException {
+        if (isPendingTail(index)) {
+            dst.put(pendingTail.slice(posInChunk, len));
+        } else if (verifyChecksums) {
+            dst.put(readVerifiedChunk(index), posInChunk, len);
+        } else {
+            long chunkAddress = chunkList.addressAt(index);
+            ByteBuffer dstRange = dst.duplicate();
+            dstRange.limit(dstRange.position() + len);
+            physicalReadsCount++;
+            readFully(segmentOfChunk(chunkAddress), offsetOf(chunkAddress) + CHUNK_HEADER_BYTES + posInChunk, dstRange);
+            dst.position(dst.position() + len);
+        }
+    }
+
+    /**
+     * Parallel variant of {@link #read(long, ByteBuffer)}: the range is split at chunk boundaries, so at extents
+     * of large files, and into pieces of at most rangeBytes, the pieces are read by tasks of the executor
+     * with positional reads of shared channels. The readahead window isn't used, a verified chunk is read
+     * as a whole by one task
+     *
+     * @return count of read bytes, -1 if the offset is at or after the end of the content
+     */
+    public long readParallel(long contentOffset, ByteBuffer dst, int rangeBytes, Executor executor) throws IOException {
+        long contentLength = getContentLength();
+        if (contentOffset < 0 || rangeBytes <= 0) {
+            throw new IllegalArgumentException("Invalid range read: offset " + contentOffset + ", range " + rangeBytes);
+        }
+        if (contentOffset >= contentLength) {
+            return -1;
+        }
+        long end = Math.min(contentLength, contentOffset + dst.remaining());
+        List<CompletableFuture<Void>> rangeReads = new ArrayList<>();
+        long offset = contentOffset;
+        while (offset < end) {
+            int index = chunkList.chunkIndexOf(offset);
+            long chunkStart = isPendingTail(index) ? chunkList.getContentLength() : chunkList.startOffsetAt(index);
+            long chunkEnd = chunkStart + (isPendingTail(index) ? pendingTail.remaining() : chunkList.contentLengthAt(index));
+            long rangeEnd = Math.min(end, verifyChecksums ? chunkEnd : Math.min(chunkEnd, offset + rangeBytes));
+            ByteBuffer dstRange = dst.duplicate();
+            dstRange.position(dst.position() + (int) (offset - contentOffset));
+            dstRange.limit(dstRange.position() + (int) (rangeEnd - offset));
+            int posInChunk = (int) (offset - chunkStart);
+            rangeReads.add(CompletableFuture.runAsync(() -> {
+                try {
+                    readRange(index, posInChunk, dstRange);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, executor));
+            offset = rangeEnd;
+        }
+        try {
+            CompletableFuture.allOf(rangeReads.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            throw ex;
+        }
+        physicalReadsCount += rangeReads.size();
+        dst.position(dst.position() + (int) (end - contentOffset));
+        return end - contentOffset;
+    }
+
+    // thread safe: no readahead window, no verified chunk cache
+    private void readRange(int index, int posInChunk, ByteBuffer dstRange) throws IOException {
+        if (isPendingTail(index)) {
+            dstRange.put(pendingTail.slice(posInChunk, dstRange.remaining()));
+            return;
+        }
+        long chunkAddress = chunkList.addressAt(index);
+        if (verifyChecksums) {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_BYTES + chunkList.contentLengthAt(index));
+            readFully(segmentOfChunk(chunkAddress), offsetOf(chunkAddress), chunk);
+            dstRange.put(verifiedContentOf(index, chunk), posInChunk, dstRange.remaining());
+            return;
+        }
+        readFully(segmentOfChunk(chunkAddress), offsetOf(chunkAddress) + CHUNK_HEADER_BYTES + posInChunk, dstRange);
+    }
+
+    /**
+     * Writes the whole content chunk by chunk, for contents too large for {@link #readAllBytes()}
+     *
+     * @return count of written bytes
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        for (int i = 0; i < chunkList.size(); i++) {
+            out.write(verifyChecksums ? readVerifiedChunk(i) : readChunk(i));
+        }
+        writePendingTail(out);
+        return getContentLength();
+    }
+
+    public long getContentLength() {
+        return chunkList.getContentLength() + pendingTail.remaining();
+    }
+
+    public int getChunksCount() {
+        return chunkList.size() + (pendingTail.hasRemaining() ? 1 : 0);
+    }
+
+    /**
+     * @return reads that went to the segment files, not served by the readahead window
+     */
+    public int getPhysicalReadsCount() {
+        return physicalReadsCount;
+    }
+
     private void seekBegin() {
         chunkIndex = 0;
         posInChunkContent = 0;
     }
 
+    /**
+     * @throws IOException if the content doesn't fit an array, such files are read by ranges
+     */
     public byte[] readAllBytes() throws IOException {
+        if (getContentLength() > MAX_ARRAY_BYTES) {
+            throw new IOException("Content of " + getContentLength() + " bytes doesn't fit an array, read it by ranges");
+        }
         ByteArrayOutputStream contentStream = new ByteArrayOutputStream();
 
-        for (Long chunkPos : contentChunkPositions) {
-            storage.seek(chunkPos);
-            int contentBytesCount = storage.readInt();
-            byte[] chunkContent = new byte[contentBytesCount];
-            storage.read(chunkContent, 0, contentBytesCount);
-            contentStream.write(chunkContent);
+        for (int i = 0; i < chunkList.size(); i++) {
+            contentStream.write(verifyChecksums ? readVerifiedChunk(i) : readChunk(i));
         }
+        writePendingTail(contentStream);
         return contentStream.toByteArray();
     }
 
+    // an off-heap tail is copied through a bounded array
+    private void writePendingTail(OutputStream out) throws IOException {
+        if (pendingTail.hasArray()) {
+            out.write(pendingTail.array(), pendingTail.arrayOffset(), pendingTail.remaining());
+            return;
+        }
+        byte[] piece = new byte[Math.min(pendingTail.remaining(), MIN_READAHEAD_BYTES)];
+        for (int pos = 0; pos < pendingTail.remaining(); pos += piece.length) {
+            int len = Math.min(piece.length, pendingTail.remaining() - pos);
+            pendingTail.get(pos, piece, 0, len);
+            out.write(piece, 0, len);
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        storage.close();
+        IOException closeException = null;
+        for (FileChannel storage : openSegments.values()) {
+            try {
+                storage.close();
+            } catch (IOException ex) {
+                closeException = ex;
+            }
+        }
+        if (closeException != null) {
+            throw closeException;
+        }
     }
 }
-
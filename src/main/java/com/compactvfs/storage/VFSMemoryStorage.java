@@ -0,0 +1,215 @@
+package com.compactvfs.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.compactvfs.metrics.VFSMetrics;
+import com.compactvfs.model.VFSCompactTree;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFileStat;
+
+import static com.compactvfs.storage.VFSInputStream.MAX_ARRAY_BYTES;
+import static com.compactvfs.storage.VFSSegmentStore.checksumOf;
+import static com.compactvfs.storage.VFSSegmentStore.combineChecksums;
+import static com.compactvfs.storage.VFSStorageDescriptor.DEFAULT_EXTENT_BYTES;
+
+/**
+ * Keeps every file content in one direct buffer outside of the heap and the tree in compact form, nothing survives
+ * the process. Appends fill the spare capacity of the buffer, a full buffer is copied into one of double capacity.
+ * Bytes before the published length are never changed, so a stream keeps reading the content it was opened with.
+ * Memory of dropped buffers is returned when they are collected.
+ *
+ * A file is limited to an array size, about 2 GiB
+ */
+public class VFSMemoryStorage implements VFSStorageEngine {
+    private static final int MIN_CAPACITY = 64;
+    private static final int STREAM_PIECE_BYTES = 64 * 1024;
+
+    private final Map<String, MemoryFile> files = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private volatile VFSCompactTree tree;
+    private volatile int extentBytes = DEFAULT_EXTENT_BYTES;
+    private final VFSMetrics metrics = new VFSMetrics();
+
+    public VFSMemoryStorage(VFSDirectory vfsDirectory) {
+        rebuildDfsTree(vfsDirectory);
+    }
+
+    @Override
+    public VFSInputStream readFileContent(String vfsFilePath) throws IOException {
+        MemoryFile file = files.get(vfsFilePath);
+        if (file == null) {
+            throw new IOException("No vfsFile content in memory: " + vfsFilePath);
+        }
+        return VFSInputStream.ofMemory(file.content.slice(0, file.length));
+    }
+
+    @Override
+    public void writeNewFileContentInTheEnd(String vfsFilePath, byte[] newContent) throws IOException {
+        ByteBuffer content = allocate(newContent.length);
+        content.put(0, newContent);
+        long now = System.currentTimeMillis();
+        VFSFileStat previousStat = stat(vfsFilePath);
+        publish(vfsFilePath, new MemoryFile(
+                content,
+                newContent.length,
+                VFSFileStat.replaced(previousStat, newContent.length, now, sequence.incrementAndGet(),
+                        checksumOf(newContent, 0, newContent.length))
+        ));
+    }
+
+    @Override
+    public long writeNewFileContentFrom(String vfsFilePath, InputStream newContent) throws IOException {
+        ByteBuffer content = allocate(0);
+        int length = 0;
+        int checksum = 0;
+        byte[] piece = new byte[STREAM_PIECE_BYTES];
+        int pieceLength;
+        try {
+            while ((pieceLength = newContent.readNBytes(piece, 0, piece.length)) > 0) {
+                content = ensureCapacity(content, length, pieceLength);
+                content.put(length, piece, 0, pieceLength);
+                checksum = combineChecksums(checksum, checksumOf(piece, 0, pieceLength), pieceLength);
+                length += pieceLength;
+            }
+        } catch (IOException ex) {
+            allocatedBytes.addAndGet(-content.capacity());
+            throw ex;
+        }
+        long now = System.currentTimeMillis();
+        publish(vfsFilePath, new MemoryFile(
+                content,
+                length,
+                VFSFileStat.replaced(stat(vfsFilePath), length, now, sequence.incrementAndGet(), checksum)
+        ));
+        return length;
+    }
+
+    @Override
+    public void writeBytesToTheEndOfFile(String vfsFilePath, byte[] additionalContent) throws IOException {
+        MemoryFile file = files.get(vfsFilePath);
+        ByteBuffer content = file == null ? allocate(additionalContent.length) : file.content;
+        int length = file == null ? 0 : file.length;
+        content = ensureCapacity(content, length, additionalContent.length);
+        content.put(length, additionalContent);
+        long now = System.currentTimeMillis();
+        files.put(vfsFilePath, new MemoryFile(
+                content,
+                length + additionalContent.length,
+                VFSFileStat.appended(file == null ? null : file.stat, additionalContent.length, now,
+                        sequence.incrementAndGet(), checksumOf(additionalContent, 0, additionalContent.length))
+        ));
+    }
+
+    @Override
+    public void deleteFileContent(String vfsFilePath) {
+        MemoryFile file = files.remove(vfsFilePath);
+        if (file != null) {
+            allocatedBytes.addAndGet(-file.content.capacity());
+        }
+    }
+
+    @Override
+    public void renameFile(String oldVfsFilePath, String newVfsFilePath) {
+        MemoryFile file = files.remove(oldVfsFilePath);
+        if (file != null) {
+            files.put(newVfsFilePath, file);
+        }
+    }
+
+    @Override
+    public void rebuildDfsTree(VFSDirectory vfsDirectory) {
+        tree = VFSCompactTree.of(vfsDirectory);
+    }
+
+    @Override
+    public VFSDirectory loadTree() {
+        return tree.toVFSDirectory();
+    }
+
+    @Override
+    public VFSFileStat stat(String vfsFilePath) {
+        MemoryFile file = files.get(vfsFilePath);
+        return file == null ? null : file.stat;
+    }
+
+    @Override
+    public int getExtentBytes() {
+        return extentBytes;
+    }
+
+    @Override
+    public VFSMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setExtentBytes(int extentBytes) {
+        if (extentBytes <= 0) {
+            throw new IllegalArgumentException("Invalid extent size: " + extentBytes);
+        }
+        this.extentBytes = extentBytes;
+    }
+
+    @Override
+    public void clearStorage() {
+        files.clear();
+        allocatedBytes.set(0);
+    }
+
+    /**
+     * @return capacity of the buffers of all files, spare capacity included
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    private void publish(String vfsFilePath, MemoryFile file) {
+        MemoryFile previousFile = files.put(vfsFilePath, file);
+        if (previousFile != null) {
+            allocatedBytes.addAndGet(-previousFile.content.capacity());
+        }
+    }
+
+    private ByteBuffer allocate(int minCapacity) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < minCapacity) {
+            capacity = capacity > MAX_ARRAY_BYTES / 2 ? MAX_ARRAY_BYTES : capacity * 2;
+        }
+        allocatedBytes.addAndGet(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return the same buffer if the bytes fit, else a larger copy of its first length bytes,
+     * the given buffer is then no longer counted as allocated
+     */
+    private ByteBuffer ensureCapacity(ByteBuffer content, int length, int additionalLength) throws IOException {
+        if ((long) length + additionalLength > MAX_ARRAY_BYTES) {
+            throw new IOException("Can't keep more than " + MAX_ARRAY_BYTES + " bytes of one file in memory");
+        }
+        if (length + additionalLength <= content.capacity()) {
+            return content;
+        }
+        ByteBuffer grown = allocate(length + additionalLength);
+        grown.put(0, content, 0, length);
+        allocatedBytes.addAndGet(-content.capacity());
+        return grown;
+    }
+
+    private static class MemoryFile {
+        private final ByteBuffer content;
+        private final int length;
+        private final VFSFileStat stat;
+
+        private MemoryFile(ByteBuffer content, int length, VFSFileStat stat) {
+            this.content = content;
+            this.length = length;
+            this.stat = stat;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.compactvfs.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.compactvfs.model.VFSCompactTree;
+import com.compactvfs.model.VFSSnapshot;
+import com.compactvfs.storage.VFSChunkIndex.ChunkList;
+
+/**
+ * Immutable single file form of a store for trees that are only read after they are built.
+ * Opening maps the file and reads the header, there is no record scan.
+ *
+ * Layout: header, perfect hash seeds [int] per bucket, slots [long content offset][long content length]
+ * [long path offset][int path length] (path length -1 for a free slot), UTF-8 paths, contents contiguous
+ * in DFS order of the tree (files of a directory, then its subdirectories), tree.
+ * A path is hashed to a bucket, the seed of the bucket places it in its slot, so a lookup reads
+ * one seed and one slot and compares the path once
+ */
+public class VFSPack implements Closeable {
+    private static final int MAGIC = 0x56465350;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = Long.BYTES * 3 + Integer.BYTES;
+    private static final int COPY_BUFFER_BYTES = 1024 * 1024;
+    private static final int MAX_SEED = 1 << 24;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final FileChannel channel;
+    // whole pack if it fits into one mapping, else everything before the contents
+    private final MappedByteBuffer mapped;
+    private final boolean contentsMapped;
+    private final int filesCount;
+    private final int bucketsCount;
+    private final int slotsCount;
+    private final long seedsOffset;
+    private final long slotsOffset;
+    private final long treeOffset;
+    private final int treeLength;
+    private volatile VFSCompactTree tree;
+
+    private VFSPack(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        VFSRecordCodec.readFully(channel, 0, header);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a VFS pack");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported VFS pack version: " + version);
+        }
+        filesCount = header.getInt();
+        bucketsCount = header.getInt();
+        slotsCount = header.getInt();
+        seedsOffset = header.getLong();
+        slotsOffset = header.getLong();
+        long contentsOffset = header.getLong();
+        treeOffset = header.getLong();
+        treeLength = header.getInt();
+        contentsMapped = channel.size() <= Integer.MAX_VALUE;
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, contentsMapped ? channel.size() : contentsOffset);
+    }
+
+    public static VFSPack open(Path packPath) throws IOException {
+        FileChannel channel = FileChannel.open(packPath, StandardOpenOption.READ);
+        try {
+            return new VFSPack(channel);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes the tree and the contents of the snapshot, the pack is written aside and moved to the path
+     */
+    public static void write(VFSSnapshot snapshot, Path packPath) throws IOException {
+        VFSCompactTree snapshotTree = snapshot.getTree();
+        List<String> filePaths = new ArrayList<>(snapshotTree.getFilesCount());
+        List<Integer> fileNodes = new ArrayList<>(snapshotTree.getFilesCount());
+        ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+        writeTree(snapshotTree, VFSCompactTree.ROOT, snapshotTree.getRootPath(), new DataOutputStream(treeBytes), filePaths, fileNodes);
+
+        int filesCount = filePaths.size();
+        byte[][] pathBytes = new byte[filesCount][];
+        long[] hashes = new long[filesCount];
+        long[] contentLengths = new long[filesCount];
+        long pathsBytesCount = 0;
+        long contentsBytesCount = 0;
+        for (int i = 0; i < filesCount; i++) {
+            pathBytes[i] = filePaths.get(i).getBytes(StandardCharsets.UTF_8);
+            hashes[i] = hashOf(pathBytes[i], 0, pathBytes[i].length);
+            ChunkList chunkList = snapshot.getChunkList(fileNodes.get(i));
+            contentLengths[i] = chunkList == null ? 0 : chunkList.getContentLength();
+            pathsBytesCount += pathBytes[i].length;
+            contentsBytesCount += contentLengths[i];
+        }
+        int bucketsCount = Math.max(1, (filesCount + 2) / 3);
+        int slotsCount = Math.max(1, filesCount + filesCount / 4 + 1);
+        int[] slotFiles = new int[slotsCount];
+        int[] seeds = placeKeys(hashes, bucketsCount, slotFiles);
+
+        long seedsOffset = HEADER_BYTES;
+        long slotsOffset = seedsOffset + (long) Integer.BYTES * bucketsCount;
+        long pathsOffset = slotsOffset + (long) SLOT_BYTES * slotsCount;
+        long contentsOffset = pathsOffset + pathsBytesCount;
+        long treeOffset = contentsOffset + contentsBytesCount;
+        long[] pathOffsets = new long[filesCount];
+        long[] contentOffsets = new long[filesCount];
+        long pathOffset = 0;
+        for (int i = 0; i < filesCount; i++) {
+            pathOffsets[i] = pathsOffset + pathOffset;
+            pathOffset += pathBytes[i].length;
+            contentOffsets[i] = i == 0 ? contentsOffset : contentOffsets[i - 1] + contentLengths[i - 1];
+        }
+
+        Path tmpPackPath = packPath.resolveSibling(packPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPackPath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(filesCount);
+            out.writeInt(bucketsCount);
+            out.writeInt(slotsCount);
+            out.writeLong(seedsOffset);
+            out.writeLong(slotsOffset);
+            out.writeLong(contentsOffset);
+            out.writeLong(treeOffset);
+            out.writeInt(treeBytes.size());
+            out.write(new byte[HEADER_BYTES - out.size()]);
+            for (int seed : seeds) {
+                out.writeInt(seed);
+            }
+            for (int file : slotFiles) {
+                out.writeLong(file < 0 ? 0 : contentOffsets[file]);
+                out.writeLong(file < 0 ? 0 : contentLengths[file]);
+                out.writeLong(file < 0 ? 0 : pathOffsets[file]);
+                out.writeInt(file < 0 ? -1 : pathBytes[file].length);
+            }
+            for (byte[] path : pathBytes) {
+                out.write(path);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_BYTES);
+            for (int i = 0; i < filesCount; i++) {
+                if (contentLengths[i] > 0) {
+                    copyContent(snapshot, fileNodes.get(i), contentLengths[i], buffer, out);
+                }
+            }
+            treeBytes.writeTo(out);
+        }
+        Files.move(tmpPackPath, packPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // files of the directory first, then its subdirectories, the order of the contents
+    private static void writeTree(
+            VFSCompactTree tree,
+            int node,
+            String path,
+            DataOutputStream out,
+            List<String> filePaths,
+            List<Integer> fileNodes
+    ) throws IOException {
+        writeName(out, node == VFSCompactTree.ROOT ? path : tree.nameOf(node));
+        int end = tree.firstChildOf(node) + tree.childrenCountOf(node);
+        int filesCount = 0;
+        for (int child = tree.firstChildOf(node); child < end; child++) {
+            filesCount += tree.isFile(child) ? 1 : 0;
+        }
+        out.writeInt(filesCount);
+        for (int child = tree.firstChildOf(node); child < end; child++) {
+            if (tree.isFile(child)) {
+                writeName(out, tree.nameOf(child));
+                filePaths.add(path + "/" + tree.nameOf(child));
+                fileNodes.add(child);
+            }
+        }
+        out.writeInt(tree.childrenCountOf(node) - filesCount);
+        for (int child = tree.firstChildOf(node); child < end; child++) {
+            if (!tree.isFile(child)) {
+                writeTree(tree, child, path + "/" + tree.nameOf(child), out, filePaths, fileNodes);
+            }
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(nameBytes.length);
+        out.write(nameBytes);
+    }
+
+    private static void copyContent(
+            VFSSnapshot snapshot,
+            int node,
+            long contentLength,
+            ByteBuffer buffer,
+            DataOutputStream out
+    ) throws IOException {
+        try (VFSInputStream inputStream = snapshot.readFileContent(node)) {
+            long offset = 0;
+            while (offset < contentLength) {
+                buffer.clear();
+                if (contentLength - offset < buffer.capacity()) {
+                    buffer.limit((int) (contentLength - offset));
+                }
+                int bytesRead = inputStream.read(offset, buffer);
+                if (bytesRead < 0) {
+                    throw new IOException("Content of node " + node + " ends at " + offset + " of " + contentLength);
+                }
+                out.write(buffer.array(), 0, bytesRead);
+                offset += bytesRead;
+            }
+        }
+    }
+
+    /**
+     * Hash and displace: buckets are placed from the largest, each gets the first seed
+     * moving all its keys to free slots
+     *
+     * @param slotFiles filled with the key of every slot, -1 for a free slot
+     * @return seed of every bucket
+     */
+    private static int[] placeKeys(long[] hashes, int bucketsCount, int[] slotFiles) {
+        int[] bucketSizes = new int[bucketsCount];
+        int[] bucketOfKey = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            bucketOfKey[i] = (int) Long.remainderUnsigned(mix(hashes[i]), bucketsCount);
+            bucketSizes[bucketOfKey[i]]++;
+        }
+        int[] bucketStarts = new int[bucketsCount + 1];
+        for (int bucket = 0; bucket < bucketsCount; bucket++) {
+            bucketStarts[bucket + 1] = bucketStarts[bucket] + bucketSizes[bucket];
+        }
+        int[] bucketKeys = new int[hashes.length];
+        int[] fill = Arrays.copyOf(bucketStarts, bucketsCount);
+        for (int i = 0; i < hashes.length; i++) {
+            bucketKeys[fill[bucketOfKey[i]]++] = i;
+        }
+        // size in the high half, larger buckets first
+        long[] bucketOrder = new long[bucketsCount];
+        for (int bucket = 0; bucket < bucketsCount; bucket++) {
+            bucketOrder[bucket] = ((long) (Integer.MAX_VALUE - bucketSizes[bucket]) << 32) | bucket;
+        }
+        Arrays.sort(bucketOrder);
+
+        Arrays.fill(slotFiles, -1);
+        int[] seeds = new int[bucketsCount];
+        int[] bucketSlots = new int[hashes.length];
+        for (long entry : bucketOrder) {
+            int bucket = (int) entry;
+            int start = bucketStarts[bucket];
+            int size = bucketSizes[bucket];
+            if (size == 0) {
+                continue;
+            }
+            int seed = 0;
+            while (!fits(hashes, bucketKeys, start, size, seed, slotFiles, bucketSlots)) {
+                if (++seed == MAX_SEED) {
+                    throw new IllegalStateException("Can't place bucket of " + size + " paths, duplicate paths?");
+                }
+            }
+            seeds[bucket] = seed;
+            for (int i = 0; i < size; i++) {
+                slotFiles[bucketSlots[i]] = bucketKeys[start + i];
+            }
+        }
+        return seeds;
+    }
+
+    private static boolean fits(
+            long[] hashes,
+            int[] bucketKeys,
+            int start,
+            int size,
+            int seed,
+            int[] slotFiles,
+            int[] bucketSlots
+    ) {
+        for (int i = 0; i < size; i++) {
+            int slot = slotOf(hashes[bucketKeys[start + i]], seed, slotFiles.length);
+            if (slotFiles[slot] >= 0) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (bucketSlots[j] == slot) {
+                    return false;
+                }
+            }
+            bucketSlots[i] = slot;
+        }
+        return true;
+    }
+
+    private static int slotOf(long hash, int seed, int slotsCount) {
+        return (int) Long.remainderUnsigned(mix(hash + (seed + 1) * GOLDEN_GAMMA), slotsCount);
+    }
+
+    // FNV-1a
+    private static long hashOf(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // murmur3 finalizer
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public int getFilesCount() {
+        return filesCount;
+    }
+
+    /**
+     * @return read-only content of the file, a view of the mapped pack if it fits into one mapping, null if there is no such file
+     */
+    public ByteBuffer contentOf(String filePath) throws IOException {
+        byte[] pathBytes = filePath.getBytes(StandardCharsets.UTF_8);
+        long hash = hashOf(pathBytes, 0, pathBytes.length);
+        int bucket = (int) Long.remainderUnsigned(mix(hash), bucketsCount);
+        int seed = mapped.getInt((int) (seedsOffset + (long) Integer.BYTES * bucket));
+        int slotPosition = (int) (slotsOffset + (long) SLOT_BYTES * slotOf(hash, seed, slotsCount));
+        long contentOffset = mapped.getLong(slotPosition);
+        long contentLength = mapped.getLong(slotPosition + Long.BYTES);
+        long pathOffset = mapped.getLong(slotPosition + Long.BYTES * 2);
+        int pathLength = mapped.getInt(slotPosition + Long.BYTES * 3);
+        if (pathLength != pathBytes.length) {
+            return null;
+        }
+        for (int i = 0; i < pathLength; i++) {
+            if (mapped.get((int) pathOffset + i) != pathBytes[i]) {
+                return null;
+            }
+        }
+        if (contentsMapped) {
+            return mapped.slice((int) contentOffset, (int) contentLength).asReadOnlyBuffer();
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, contentOffset, contentLength);
+    }
+
+    /**
+     * @return null if there is no such file
+     */
+    public byte[] readBytes(String filePath) throws IOException {
+        ByteBuffer content = contentOf(filePath);
+        if (content == null) {
+            return null;
+        }
+        byte[] ret = new byte[content.remaining()];
+        content.get(ret);
+        return ret;
+    }
+
+    /**
+     * Parsed on the first call, the file id of a file node is its index in DFS order
+     */
+    public VFSCompactTree getTree() throws IOException {
+        VFSCompactTree ret = tree;
+        if (ret == null) {
+            ByteBuffer treeBytes = ByteBuffer.allocate(treeLength);
+            VFSRecordCodec.readFully(channel, treeOffset, treeBytes);
+            VFSCompactTree.Builder builder = VFSCompactTree.builder(readName(treeBytes));
+            readTree(treeBytes, builder, VFSCompactTree.ROOT, new int[1]);
+            ret = builder.build();
+            tree = ret;
+        }
+        return ret;
+    }
+
+    private static void readTree(ByteBuffer treeBytes, VFSCompactTree.Builder builder, int node, int[] nextFileIndex) {
+        int filesCount = treeBytes.getInt();
+        for (int i = 0; i < filesCount; i++) {
+            builder.addFile(node, readName(treeBytes), nextFileIndex[0]++);
+        }
+        int dirsCount = treeBytes.getInt();
+        for (int i = 0; i < dirsCount; i++) {
+            int dirNode = builder.addDirectory(node, readName(treeBytes));
+            readTree(treeBytes, builder, dirNode, nextFileIndex);
+        }
+    }
+
+    private static String readName(ByteBuffer treeBytes) {
+        byte[] nameBytes = new byte[treeBytes.getInt()];
+        treeBytes.get(nameBytes);
+        return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,254 @@
+package com.compactvfs.storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.compactvfs.storage.VFSSegmentStore.CHUNK_HEADER_BYTES;
+import static com.compactvfs.storage.VFSSegmentStore.checksumOf;
+
+/**
+ * Encodes and decodes segment records with whole buffers instead of field by field
+ * RandomAccessFile calls, every readInt/writeInt of which is a syscall per byte.
+ * An append is one gathering write of the header and the content,
+ * a chunk header is decoded from a buffer read by a positional read.
+ * Fields are big-endian like RandomAccessFile writes them.
+ * The header starts with a crc32c of the rest of it up to the content, so a record boundary can be told
+ * from random bytes: recovery cuts only a tail after which no record parses
+ */
+public class VFSRecordCodec {
+    // header checksum, file id, sequence, record type and timestamp before the chunk header
+    public static final int RECORD_META_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES + Byte.BYTES + Long.BYTES;
+    public static final int RECORD_HEADER_BYTES = RECORD_META_BYTES + CHUNK_HEADER_BYTES;
+
+    /**
+     * @return header of the record up to the content, ready to be written
+     */
+    public static ByteBuffer encodeHeader(
+            int fileId,
+            long sequence,
+            byte recordType,
+            long timestamp,
+            byte[] content
+    ) {
+        return encodeHeader(fileId, sequence, recordType, timestamp, content.length, checksumOf(content, 0, content.length));
+    }
+
+    /**
+     * @param checksum crc32c of the content
+     */
+    public static ByteBuffer encodeHeader(
+            int fileId,
+            long sequence,
+            byte recordType,
+            long timestamp,
+            int contentLength,
+            int checksum
+    ) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        header.position(Integer.BYTES);
+        header.putInt(fileId);
+        header.putLong(sequence);
+        header.put(recordType);
+        header.putLong(timestamp);
+        header.putInt(contentLength);
+        header.putInt(checksum);
+        header.putInt(0, headerChecksumOf(header.array(), 0));
+        return header.flip();
+    }
+
+    // crc32c of the header after its checksum field
+    private static int headerChecksumOf(byte[] header, int offset) {
+        return checksumOf(header, offset + Integer.BYTES, RECORD_HEADER_BYTES - Integer.BYTES);
+    }
+
+    /**
+     * @return offset of the chunk header in the header buffer
+     */
+    public static int chunkHeaderOffset(ByteBuffer header) {
+        return header.limit() - CHUNK_HEADER_BYTES;
+    }
+
+    /**
+     * Writes all remaining bytes of the buffers starting at the position
+     */
+    public static void writeFully(FileChannel channel, long position, ByteBuffer... buffers) throws IOException {
+        channel.position(position);
+        long bytesLeft = 0;
+        for (ByteBuffer buffer : buffers) {
+            bytesLeft += buffer.remaining();
+        }
+        while (bytesLeft > 0) {
+            bytesLeft -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Positional read, doesn't move the channel position, so a channel can be shared by readers
+     */
+    public static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new EOFException("Segment ends at " + position);
+            }
+            position += bytesRead;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Positional read stopping at the end of the file
+     *
+     * @return count of read bytes
+     */
+    public static int readAtMost(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        int bytesCount = 0;
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position + bytesCount);
+            if (bytesRead < 0) {
+                break;
+            }
+            bytesCount += bytesRead;
+        }
+        return bytesCount;
+    }
+
+    /**
+     * @param header flipped buffer of {@link VFSSegmentStore#CHUNK_HEADER_BYTES}
+     */
+    public static ChunkHeader decodeChunkHeader(ByteBuffer header) {
+        return new ChunkHeader(header.getInt(), header.getInt());
+    }
+
+    /**
+     * Reads the next record header of a sequentially read segment
+     *
+     * @param recordStart offset of the record in the segment
+     * @param length bytes of the segment that may be parsed
+     * @return null if the record doesn't fit into the length or its header checksum doesn't match
+     * @throws EOFException if the stream ends before the length
+     */
+    public static RecordHeader readRecordHeader(DataInputStream in, long recordStart, long length) throws IOException {
+        if (recordStart + RECORD_HEADER_BYTES > length) {
+            return null;
+        }
+        byte[] header = new byte[RECORD_HEADER_BYTES];
+        in.readFully(header);
+        return decodeRecordHeader(ByteBuffer.wrap(header), 0, recordStart, length);
+    }
+
+    /**
+     * @param position of the record header in the buffer, which holds at least {@link #RECORD_HEADER_BYTES} from it
+     * @param recordStart offset of the record in the segment
+     * @param length bytes of the segment that may be parsed
+     * @return null if the record doesn't fit into the length or its header checksum doesn't match
+     */
+    public static RecordHeader decodeRecordHeader(ByteBuffer buffer, int position, long recordStart, long length) {
+        if (buffer.hasArray()) {
+            if (buffer.getInt(position) != headerChecksumOf(buffer.array(), buffer.arrayOffset() + position)) {
+                return null;
+            }
+        } else {
+            byte[] header = new byte[RECORD_HEADER_BYTES];
+            buffer.get(position, header);
+            if (buffer.getInt(position) != headerChecksumOf(header, 0)) {
+                return null;
+            }
+        }
+        int fileId = buffer.getInt(position + Integer.BYTES);
+        long sequence = buffer.getLong(position + 2 * Integer.BYTES);
+        byte recordType = buffer.get(position + 2 * Integer.BYTES + Long.BYTES);
+        long timestamp = buffer.getLong(position + 2 * Integer.BYTES + Long.BYTES + Byte.BYTES);
+        long contentOffset = recordStart + RECORD_META_BYTES;
+        int contentBytesCount = buffer.getInt(position + RECORD_META_BYTES);
+        int checksum = buffer.getInt(position + RECORD_META_BYTES + Integer.BYTES);
+        if (contentBytesCount < 0 || contentOffset + CHUNK_HEADER_BYTES + contentBytesCount > length) {
+            return null;
+        }
+        return new RecordHeader(fileId, sequence, recordType, timestamp, contentOffset, contentBytesCount, checksum);
+    }
+
+    public static class ChunkHeader {
+        private final int contentLength;
+        private final int checksum;
+
+        private ChunkHeader(int contentLength, int checksum) {
+            this.contentLength = contentLength;
+            this.checksum = checksum;
+        }
+
+        public int getContentLength() {
+            return contentLength;
+        }
+
+        public int getChecksum() {
+            return checksum;
+        }
+    }
+
+    public static class RecordHeader {
+        private final int fileId;
+        private final long sequence;
+        private final byte type;
+        private final long timestamp;
+        private final long contentOffset;
+        private final int contentLength;
+        private final int checksum;
+
+        private RecordHeader(
+                int fileId,
+                long sequence,
+                byte type,
+                long timestamp,
+                long contentOffset,
+                int contentLength,
+                int checksum
+        ) {
+            this.fileId = fileId;
+            this.sequence = sequence;
+            this.type = type;
+            this.timestamp = timestamp;
+            this.contentOffset = contentOffset;
+            this.contentLength = contentLength;
+            this.checksum = checksum;
+        }
+
+        public int getFileId() {
+            return fileId;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return offset of the chunk header in the segment
+         */
+        public long getContentOffset() {
+            return contentOffset;
+        }
+
+        public int getContentLength() {
+            return contentLength;
+        }
+
+        public int getChecksum() {
+            return checksum;
+        }
+
+        public long getRecordEnd() {
+            return contentOffset + CHUNK_HEADER_BYTES + contentLength;
+        }
+    }
+}
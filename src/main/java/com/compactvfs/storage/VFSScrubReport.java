@@ -0,0 +1,58 @@
+package com.compactvfs.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.compactvfs.storage.VFSSegmentStore.SegmentScrubResult;
+
+public class VFSScrubReport {
+    private final List<SegmentScrubResult> segmentResults;
+    private final Set<String> damagedFiles;
+    private final long durationNanos;
+
+    public VFSScrubReport(List<SegmentScrubResult> segmentResults, Set<String> damagedFiles, long durationNanos) {
+        this.segmentResults = Collections.unmodifiableList(new ArrayList<>(segmentResults));
+        this.damagedFiles = Collections.unmodifiableSet(new TreeSet<>(damagedFiles));
+        this.durationNanos = durationNanos;
+    }
+
+    public List<SegmentScrubResult> getSegmentResults() {
+        return segmentResults;
+    }
+
+    /**
+     * @return files with at least one live chunk that is corrupted or lies in a torn segment part
+     */
+    public Set<String> getDamagedFiles() {
+        return damagedFiles;
+    }
+
+    public boolean isClean() {
+        return damagedFiles.isEmpty()
+                && segmentResults.stream().allMatch(result -> result.getDamagedChunks().isEmpty() && result.getTornOffset() < 0);
+    }
+
+    public long getChunksVerified() {
+        return segmentResults.stream().mapToLong(SegmentScrubResult::getChunksVerified).sum();
+    }
+
+    public long getBytesScanned() {
+        return segmentResults.stream().mapToLong(SegmentScrubResult::getBytesScanned).sum();
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "segments=" + segmentResults.size() +
+                " chunks=" + getChunksVerified() +
+                " bytes=" + getBytesScanned() +
+                " damagedFiles=" + damagedFiles +
+                " durationMs=" + durationNanos / 1_000_000;
+    }
+}
@@ -0,0 +1,807 @@
+package com.compactvfs.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import com.compactvfs.metrics.VFSMetrics;
+import com.compactvfs.metrics.VFSSegmentCorruptedEvent;
+import com.compactvfs.storage.VFSRecordCodec.RecordHeader;
+
+import static com.compactvfs.storage.VFSRecordCodec.RECORD_HEADER_BYTES;
+import static com.compactvfs.storage.VFSRecordCodec.chunkHeaderOffset;
+import static com.compactvfs.storage.VFSRecordCodec.decodeRecordHeader;
+import static com.compactvfs.storage.VFSRecordCodec.encodeHeader;
+import static com.compactvfs.storage.VFSRecordCodec.readAtMost;
+import static com.compactvfs.storage.VFSRecordCodec.readFully;
+import static com.compactvfs.storage.VFSRecordCodec.readRecordHeader;
+import static com.compactvfs.storage.VFSRecordCodec.writeFully;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Content area split into segment files of a bounded size, listed in a manifest.
+ * Several segments are open for appends at once, each behind its own lock, so appends of
+ * different threads don't contend on one file end. A full segment is sealed and never written again,
+ * it can be scanned, verified or dropped independently.
+ *
+ * Record: [int header crc32c][int file id][long sequence][byte record type][long timestamp][int content length]
+ * [int content crc32c][content], chunk address points to the content length, see {@link #address(int, long)}
+ */
+public class VFSSegmentStore {
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_ACTIVE_SEGMENTS = 4;
+    public static final int CHUNK_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+
+    public static final byte RECORD_APPEND = 0;
+    // drops all previous chunks of the file
+    public static final byte RECORD_REPLACE = 1;
+    // drops the file, has empty content
+    public static final byte RECORD_DELETE = 2;
+
+    // 2: records keyed by file id instead of path, 3: record headers have a checksum
+    private static final int MANIFEST_VERSION = 3;
+    private static final String MANIFEST_FILE_NAME = "manifest";
+    private static final String SEGMENT_FILE_PREFIX = "segment_";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+
+    private static final int SEQUENTIAL_READ_BUFFER_BYTES = 1024 * 1024;
+
+    // reflected Castagnoli polynomial of CRC32C
+    private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path segmentsDir;
+    private final long segmentSize;
+    private final ActiveSegment[] activeSegments;
+    // segment id -> sealed
+    private final Map<Integer, Boolean> manifest = new TreeMap<>();
+    // segment id -> count of snapshots reading it
+    private final Map<Integer, Integer> pinCounts = new HashMap<>();
+    // dropped from the manifest, the file is deleted when the last pin is released
+    private final Set<Integer> retiredSegmentIds = new HashSet<>();
+    private final AtomicInteger nextSegmentId = new AtomicInteger();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private boolean readOnly = false;
+
+    private VFSSegmentStore(Path segmentsDir, long segmentSize, int activeSegmentsCount) {
+        if (segmentSize <= 0 || segmentSize > OFFSET_MASK) {
+            throw new IllegalArgumentException("Segment size must be in (0, 2^" + OFFSET_BITS + "): " + segmentSize);
+        }
+        if (activeSegmentsCount <= 0) {
+            throw new IllegalArgumentException("Active segments count must be positive: " + activeSegmentsCount);
+        }
+        this.segmentsDir = segmentsDir;
+        this.segmentSize = segmentSize;
+        this.activeSegments = new ActiveSegment[activeSegmentsCount];
+        for (int i = 0; i < activeSegmentsCount; i++) {
+            activeSegments[i] = new ActiveSegment();
+        }
+    }
+
+    /**
+     * Removes any previous content of the directory
+     */
+    public static VFSSegmentStore create(Path segmentsDir, long segmentSize, int activeSegmentsCount) throws IOException {
+        deleteSegmentsDir(segmentsDir);
+        Files.createDirectories(segmentsDir);
+        VFSSegmentStore store = new VFSSegmentStore(segmentsDir, segmentSize, activeSegmentsCount);
+        store.writeManifest();
+        return store;
+    }
+
+    public static VFSSegmentStore open(Path segmentsDir) throws IOException {
+        VFSSegmentStore store = readManifest(segmentsDir);
+        store.deleteUnlistedSegments();
+        return store;
+    }
+
+    /**
+     * For readers of a store written by another process: no recovery, no appends
+     */
+    public static VFSSegmentStore openReadOnly(Path segmentsDir) throws IOException {
+        VFSSegmentStore store = readManifest(segmentsDir);
+        store.readOnly = true;
+        return store;
+    }
+
+    private static VFSSegmentStore readManifest(Path segmentsDir) throws IOException {
+        Path manifestPath = segmentsDir.resolve(MANIFEST_FILE_NAME);
+        if (!Files.exists(manifestPath)) {
+            throw new IOException("No segments manifest: " + manifestPath);
+        }
+        VFSSegmentStore store;
+        try (RandomAccessFile manifestFile = new RandomAccessFile(manifestPath.toFile(), "r")) {
+            int version = manifestFile.readInt();
+            if (version != MANIFEST_VERSION) {
+                throw new IOException("Unsupported segments manifest version: " + version);
+            }
+            long segmentSize = manifestFile.readLong();
+            int activeSegmentsCount = manifestFile.readInt();
+            store = new VFSSegmentStore(segmentsDir, segmentSize, activeSegmentsCount);
+            int segmentsCount = manifestFile.readInt();
+            for (int i = 0; i < segmentsCount; i++) {
+                int segmentId = manifestFile.readInt();
+                boolean sealed = manifestFile.readBoolean();
+                store.manifest.put(segmentId, sealed);
+                store.nextSegmentId.set(Math.max(store.nextSegmentId.get(), segmentId + 1));
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Segments retired while pinned by a snapshot, or created right before a crash, aren't in the manifest
+     */
+    private void deleteUnlistedSegments() throws IOException {
+        try (Stream<Path> segmentFiles = Files.list(segmentsDir)) {
+            for (Path segmentFile : segmentFiles.collect(toList())) {
+                String fileName = segmentFile.getFileName().toString();
+                if (!fileName.startsWith(SEGMENT_FILE_PREFIX) || !fileName.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    continue;
+                }
+                int segmentId = Integer.parseInt(fileName.substring(
+                        SEGMENT_FILE_PREFIX.length(),
+                        fileName.length() - SEGMENT_FILE_SUFFIX.length()
+                ));
+                if (!manifest.containsKey(segmentId)) {
+                    Files.delete(segmentFile);
+                }
+            }
+        }
+    }
+
+    public static long address(int segmentId, long offset) {
+        return ((long) segmentId << OFFSET_BITS) | offset;
+    }
+
+    public static int segmentOf(long address) {
+        return (int) (address >>> OFFSET_BITS);
+    }
+
+    public static long offsetOf(long address) {
+        return address & OFFSET_MASK;
+    }
+
+    public Path getSegmentsDir() {
+        return segmentsDir;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public Path segmentPath(int segmentId) {
+        return segmentsDir.resolve(SEGMENT_FILE_PREFIX + segmentId + SEGMENT_FILE_SUFFIX);
+    }
+
+    public synchronized List<Integer> getSegmentIds() {
+        return new ArrayList<>(manifest.keySet());
+    }
+
+    public synchronized boolean isSealed(int segmentId) {
+        return Boolean.TRUE.equals(manifest.get(segmentId));
+    }
+
+    /**
+     * @param timestamp epoch millis of the write
+     * @return address of the content
+     */
+    public long append(int fileId, byte recordType, long timestamp, byte[] content) throws IOException {
+        return append(
+                reserveSequence(),
+                fileId,
+                recordType,
+                timestamp,
+                content,
+                0,
+                content.length,
+                checksumOf(content, 0, content.length)
+        );
+    }
+
+    /**
+     * Appends the content range [offset, offset + length) as one record, without copying it
+     *
+     * @param sequence from {@link #reserveSequence()}, records of one file must be appended in sequence order
+     * @param checksum {@link #checksumOf} the range, computed by the caller that keeps it
+     * @return address of the content
+     */
+    public long append(
+            long sequence,
+            int fileId,
+            byte recordType,
+            long timestamp,
+            byte[] content,
+            int offset,
+            int length,
+            int checksum
+    ) throws IOException {
+        if (readOnly) {
+            throw new IllegalStateException("Segment store is opened read only: " + segmentsDir);
+        }
+        ActiveSegment activeSegment = lockActiveSegment();
+        try {
+            boolean segmentFull = activeSegment.length > 0 && activeSegment.length + length > segmentSize;
+            if (activeSegment.file == null || segmentFull) {
+                rollSegment(activeSegment);
+            }
+            ByteBuffer header = encodeHeader(fileId, sequence, recordType, timestamp, length, checksum);
+            long contentOffset = activeSegment.length + chunkHeaderOffset(header);
+            long recordBytesCount = header.remaining() + length;
+            writeFully(activeSegment.file, activeSegment.length, header, ByteBuffer.wrap(content, offset, length));
+            activeSegment.length += recordBytesCount;
+            return address(activeSegment.segmentId, contentOffset);
+        } finally {
+            activeSegment.lock.unlock();
+        }
+    }
+
+    /**
+     * Sequences order the records of the store, recovery replays them by sequence
+     */
+    public long reserveSequence() {
+        return nextSequence.getAndIncrement();
+    }
+
+    /**
+     * @return greatest sequence given out, -1 for an empty store
+     */
+    public long getLastSequence() {
+        return nextSequence.get() - 1;
+    }
+
+    /**
+     * Tries every active segment without waiting first, so concurrent appenders spread over them
+     */
+    private ActiveSegment lockActiveSegment() {
+        int start = ThreadLocalRandom.current().nextInt(activeSegments.length);
+        for (int i = 0; i < activeSegments.length; i++) {
+            ActiveSegment activeSegment = activeSegments[(start + i) % activeSegments.length];
+            if (activeSegment.lock.tryLock()) {
+                return activeSegment;
+            }
+        }
+        ActiveSegment activeSegment = activeSegments[start];
+        activeSegment.lock.lock();
+        return activeSegment;
+    }
+
+    private void rollSegment(ActiveSegment activeSegment) throws IOException {
+        int newSegmentId = nextSegmentId.getAndIncrement();
+        FileChannel newFile = FileChannel.open(
+                segmentPath(newSegmentId),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        synchronized (this) {
+            if (activeSegment.file != null) {
+                manifest.put(activeSegment.segmentId, true);
+            }
+            manifest.put(newSegmentId, false);
+            writeManifest();
+        }
+        if (activeSegment.file != null) {
+            activeSegment.file.close();
+        }
+        activeSegment.file = newFile;
+        activeSegment.segmentId = newSegmentId;
+        activeSegment.length = 0;
+    }
+
+    /**
+     * Reads all records of a segment sequentially with large reads.
+     * A torn record at the end of an active segment (crash during append) is cut off, only if no record parses
+     * after it: an unparsable record followed by intact ones is corruption and the scan fails.
+     * A sealed segment was complete, so an unparsable record there is corruption: the records before it
+     * are returned, the file is left alone, the corruption is counted and the scrub reports its torn offset
+     *
+     * @throws IOException if an active segment has an unparsable record before intact ones
+     */
+    public List<SegmentRecord> scanSegment(int segmentId, VFSMetrics metrics) throws IOException {
+        List<SegmentRecord> records = new ArrayList<>();
+        Path segmentPath = segmentPath(segmentId);
+        long length = Files.size(segmentPath);
+        long recordStart = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(segmentPath),
+                SEQUENTIAL_READ_BUFFER_BYTES
+        ))) {
+            while (recordStart < length) {
+                RecordHeader header;
+                try {
+                    header = readRecordHeader(in, recordStart, length);
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (header == null) {
+                    break;
+                }
+                records.add(new SegmentRecord(
+                        header.getFileId(),
+                        header.getSequence(),
+                        header.getType(),
+                        header.getTimestamp(),
+                        address(segmentId, header.getContentOffset()),
+                        header.getContentLength(),
+                        header.getChecksum()
+                ));
+                in.skipNBytes(header.getContentLength());
+                recordStart = header.getRecordEnd();
+            }
+        }
+        if (recordStart < length) {
+            if (isSealed(segmentId)) {
+                metrics.onCorruption();
+                VFSSegmentCorruptedEvent event = new VFSSegmentCorruptedEvent();
+                event.segmentId = segmentId;
+                event.offset = recordStart;
+                event.commit();
+            } else {
+                long nextRecordStart = findRecordAfter(segmentPath, recordStart, length);
+                if (nextRecordStart >= 0) {
+                    throw new IOException("Can't parse record of active segment " + segmentId + " at offset " +
+                            recordStart + ", a record at offset " + nextRecordStart + " follows it");
+                }
+                try (FileChannel segment = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+                    segment.truncate(recordStart);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Tries every offset after the position, a record must have a matching header and content checksum
+     *
+     * @return offset of the first intact record after the position, -1 if there is none
+     */
+    private static long findRecordAfter(Path segmentPath, long position, long length) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(SEQUENTIAL_READ_BUFFER_BYTES);
+        try (FileChannel segment = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+            long windowStart = position + 1;
+            while (windowStart + RECORD_HEADER_BYTES <= length) {
+                window.clear();
+                int bytesCount = readAtMost(segment, windowStart, window);
+                for (int i = 0; i + RECORD_HEADER_BYTES <= bytesCount; i++) {
+                    RecordHeader header = decodeRecordHeader(window, i, windowStart + i, length);
+                    if (header != null && hasIntactContent(segment, header)) {
+                        return windowStart + i;
+                    }
+                }
+                windowStart += Math.max(1, bytesCount - RECORD_HEADER_BYTES + 1);
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasIntactContent(FileChannel segment, RecordHeader header) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(header.getContentLength());
+        readFully(segment, header.getContentOffset() + CHUNK_HEADER_BYTES, content);
+        return checksumOf(content.array(), 0, header.getContentLength()) == header.getChecksum();
+    }
+
+    /**
+     * Scans all segments in parallel and makes active segments with free space available for appends
+     *
+     * @param metrics counts corrupted sealed segments
+     * @return records of all segments ordered by sequence
+     */
+    public List<SegmentRecord> recover(VFSMetrics metrics) throws IOException {
+        List<Integer> segmentIds = getSegmentIds();
+        List<List<SegmentRecord>> segmentsRecords;
+        try {
+            segmentsRecords = segmentIds.parallelStream()
+                    .map(segmentId -> {
+                        try {
+                            return scanSegment(segmentId, metrics);
+                        } catch (IOException ex) {
+                            throw new SegmentScanException(segmentId, ex);
+                        }
+                    })
+                    .collect(toList());
+        } catch (SegmentScanException ex) {
+            throw new IOException("Can't scan segment " + ex.segmentId + ", ex: " + ex.getCause().getMessage());
+        }
+
+        List<SegmentRecord> records = new ArrayList<>();
+        segmentsRecords.forEach(records::addAll);
+        records.sort((lhs, rhs) -> Long.compare(lhs.getSequence(), rhs.getSequence()));
+        if (!records.isEmpty()) {
+            nextSequence.set(records.get(records.size() - 1).getSequence() + 1);
+        }
+
+        int slot = 0;
+        for (int segmentId : segmentIds) {
+            if (!isSealed(segmentId) && slot < activeSegments.length) {
+                ActiveSegment activeSegment = activeSegments[slot++];
+                activeSegment.file = FileChannel.open(
+                        segmentPath(segmentId),
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE
+                );
+                activeSegment.segmentId = segmentId;
+                activeSegment.length = activeSegment.file.size();
+            } else if (!isSealed(segmentId)) {
+                synchronized (this) {
+                    manifest.put(segmentId, true);
+                }
+            }
+        }
+        synchronized (this) {
+            writeManifest();
+        }
+        return records;
+    }
+
+    public static int checksumOf(byte[] content, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(content, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checksum of two concatenated contents from their checksums, no content is read (zlib crc32_combine).
+     * So the checksum of a whole file doesn't depend on how its content was split into chunks
+     *
+     * @param secondLength length of the second content
+     */
+    public static int combineChecksums(int firstChecksum, int secondChecksum, long secondLength) {
+        if (secondLength <= 0) {
+            return firstChecksum;
+        }
+        // operator appending one zero bit, then two and four
+        int[] odd = new int[32];
+        int[] even = new int[32];
+        odd[0] = CRC32C_POLYNOMIAL;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = 1 << (n - 1);
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        int checksum = firstChecksum;
+        long bytesLeft = secondLength;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((bytesLeft & 1) != 0) {
+                checksum = gf2MatrixTimes(even, checksum);
+            }
+            bytesLeft >>= 1;
+            if (bytesLeft == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((bytesLeft & 1) != 0) {
+                checksum = gf2MatrixTimes(odd, checksum);
+            }
+            bytesLeft >>= 1;
+        } while (bytesLeft != 0);
+        return checksum ^ secondChecksum;
+    }
+
+    private static int gf2MatrixTimes(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * @return bytes of completely written records, appends in progress are beyond it
+     */
+    public long committedLength(int segmentId) throws IOException {
+        for (ActiveSegment activeSegment : activeSegments) {
+            if (activeSegment.segmentId == segmentId && activeSegment.file != null) {
+                return activeSegment.length;
+            }
+        }
+        if (!isSealed(segmentId)) {
+            // being rolled right now, nothing is written yet
+            return 0;
+        }
+        return Files.size(segmentPath(segmentId));
+    }
+
+    /**
+     * Reads the committed part of a segment sequentially with large reads and verifies every chunk checksum.
+     * Takes no locks, segments are append-only
+     */
+    public SegmentScrubResult scrubSegment(int segmentId) throws IOException {
+        long length = committedLength(segmentId);
+        SegmentScrubResult result = new SegmentScrubResult(segmentId);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(segmentPath(segmentId)),
+                SEQUENTIAL_READ_BUFFER_BYTES
+        ))) {
+            long position = 0;
+            byte[] content = new byte[0];
+            while (position < length) {
+                long recordStart = position;
+                RecordHeader header;
+                try {
+                    header = readRecordHeader(in, recordStart, length);
+                    if (header == null) {
+                        result.tornOffset = recordStart;
+                        break;
+                    }
+                    int contentBytesCount = header.getContentLength();
+                    if (content.length < contentBytesCount) {
+                        content = new byte[contentBytesCount];
+                    }
+                    in.readFully(content, 0, contentBytesCount);
+                } catch (EOFException ex) {
+                    result.tornOffset = recordStart;
+                    break;
+                }
+                if (checksumOf(content, 0, header.getContentLength()) != header.getChecksum()) {
+                    result.damagedChunks.add(address(segmentId, header.getContentOffset()));
+                }
+                result.chunksVerified++;
+                position = header.getRecordEnd();
+            }
+            result.bytesScanned = position;
+        }
+        return result;
+    }
+
+    /**
+     * Segment must be sealed and hold no live chunks.
+     * A segment pinned by a snapshot leaves the manifest at once, its file is deleted on the last unpin
+     */
+    public void dropSegment(int segmentId) throws IOException {
+        synchronized (this) {
+            if (!isSealed(segmentId)) {
+                throw new IllegalArgumentException("Only sealed segment can be dropped: " + segmentId);
+            }
+            manifest.remove(segmentId);
+            writeManifest();
+            if (pinCounts.containsKey(segmentId)) {
+                retiredSegmentIds.add(segmentId);
+                return;
+            }
+        }
+        Files.deleteIfExists(segmentPath(segmentId));
+    }
+
+    /**
+     * Keeps the segment files until {@link #unpinSegments(Collection)}, segments must be in the manifest
+     */
+    public synchronized void pinSegments(Collection<Integer> segmentIds) {
+        for (int segmentId : segmentIds) {
+            if (!manifest.containsKey(segmentId)) {
+                throw new IllegalArgumentException("No segment to pin: " + segmentId);
+            }
+        }
+        segmentIds.forEach(segmentId -> pinCounts.merge(segmentId, 1, Integer::sum));
+    }
+
+    public void unpinSegments(Collection<Integer> segmentIds) throws IOException {
+        List<Integer> segmentIdsToDelete = new ArrayList<>();
+        synchronized (this) {
+            for (int segmentId : segmentIds) {
+                Integer pinCount = pinCounts.get(segmentId);
+                if (pinCount == null) {
+                    continue;
+                }
+                if (pinCount > 1) {
+                    pinCounts.put(segmentId, pinCount - 1);
+                } else {
+                    pinCounts.remove(segmentId);
+                    if (retiredSegmentIds.remove(segmentId)) {
+                        segmentIdsToDelete.add(segmentId);
+                    }
+                }
+            }
+        }
+        for (int segmentId : segmentIdsToDelete) {
+            Files.deleteIfExists(segmentPath(segmentId));
+        }
+    }
+
+    public synchronized boolean isPinned(int segmentId) {
+        return pinCounts.containsKey(segmentId);
+    }
+
+    public void close() throws IOException {
+        for (ActiveSegment activeSegment : activeSegments) {
+            activeSegment.lock.lock();
+            try {
+                if (activeSegment.file != null) {
+                    activeSegment.file.close();
+                    activeSegment.file = null;
+                }
+            } finally {
+                activeSegment.lock.unlock();
+            }
+        }
+    }
+
+    public void clear() throws IOException {
+        close();
+        synchronized (this) {
+            manifest.clear();
+            pinCounts.clear();
+            retiredSegmentIds.clear();
+        }
+        deleteSegmentsDir(segmentsDir);
+    }
+
+    private void writeManifest() throws IOException {
+        Path manifestPath = segmentsDir.resolve(MANIFEST_FILE_NAME);
+        Path tmpManifestPath = segmentsDir.resolve(MANIFEST_FILE_NAME + ".tmp");
+        try (RandomAccessFile manifestFile = new RandomAccessFile(tmpManifestPath.toFile(), "rw")) {
+            manifestFile.setLength(0);
+            manifestFile.writeInt(MANIFEST_VERSION);
+            manifestFile.writeLong(segmentSize);
+            manifestFile.writeInt(activeSegments.length);
+            manifestFile.writeInt(manifest.size());
+            for (Map.Entry<Integer, Boolean> segment : manifest.entrySet()) {
+                manifestFile.writeInt(segment.getKey());
+                manifestFile.writeBoolean(segment.getValue());
+            }
+        }
+        Files.move(tmpManifestPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteSegmentsDir(Path segmentsDir) throws IOException {
+        if (!Files.exists(segmentsDir)) {
+            return;
+        }
+        try (Stream<Path> segmentFiles = Files.list(segmentsDir)) {
+            for (Path segmentFile : segmentFiles.collect(toList())) {
+                Files.delete(segmentFile);
+            }
+        }
+        Files.delete(segmentsDir);
+    }
+
+    private static class ActiveSegment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile FileChannel file;
+        private volatile int segmentId;
+        // written under the lock, read by scrub
+        private volatile long length;
+    }
+
+    public static class SegmentScrubResult {
+        private final int segmentId;
+        private final List<Long> damagedChunks = new ArrayList<>();
+        private long chunksVerified;
+        private long bytesScanned;
+        private long tornOffset = -1;
+
+        private SegmentScrubResult(int segmentId) {
+            this.segmentId = segmentId;
+        }
+
+        public int getSegmentId() {
+            return segmentId;
+        }
+
+        /**
+         * @return addresses of chunks with checksum mismatch
+         */
+        public List<Long> getDamagedChunks() {
+            return damagedChunks;
+        }
+
+        public long getChunksVerified() {
+            return chunksVerified;
+        }
+
+        public long getBytesScanned() {
+            return bytesScanned;
+        }
+
+        /**
+         * @return offset of the first unparsable record, -1 if the segment is parsed to the end
+         */
+        public long getTornOffset() {
+            return tornOffset;
+        }
+    }
+
+    public static class SegmentRecord {
+        private final int fileId;
+        private final long sequence;
+        private final byte type;
+        private final long timestamp;
+        private final long address;
+        private final int contentLength;
+        private final int checksum;
+
+        public SegmentRecord(
+                int fileId,
+                long sequence,
+                byte type,
+                long timestamp,
+                long address,
+                int contentLength,
+                int checksum
+        ) {
+            this.fileId = fileId;
+            this.sequence = sequence;
+            this.type = type;
+            this.timestamp = timestamp;
+            this.address = address;
+            this.contentLength = contentLength;
+            this.checksum = checksum;
+        }
+
+        public int getFileId() {
+            return fileId;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return one of RECORD_APPEND, RECORD_REPLACE, RECORD_DELETE
+         */
+        public byte getType() {
+            return type;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getAddress() {
+            return address;
+        }
+
+        public int getContentLength() {
+            return contentLength;
+        }
+
+        public int getChecksum() {
+            return checksum;
+        }
+    }
+
+    private static class SegmentScanException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int segmentId;
+
+        private SegmentScanException(int segmentId, IOException cause) {
+            super(cause);
+            this.segmentId = segmentId;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.compactvfs.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static com.compactvfs.storage.VFSRecordCodec.writeFully;
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_APPEND;
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_REPLACE;
+
+/**
+ * Writer side of the chunk index shared with reader processes, see {@link VFSSharedReader}.
+ *
+ * The writer holds an exclusive {@link FileLock} on writer.lock of the segments directory, a second writer fails.
+ * The index is a log of chunk updates in shared.index: [long entries count][long tree version] header
+ * and entries [int file id][byte record type][long address][int content length]. An entry is written before
+ * the count covering it, the header is written under an exclusive lock of its region and read by readers under
+ * a shared one, so a reader never applies a torn entry. A new writer session writes the log aside
+ * from its chunk index and moves it over the previous one, readers notice the new file and rebuild
+ */
+public class VFSSharedIndex implements Closeable {
+    static final String INDEX_FILE_NAME = "shared.index";
+    static final String WRITER_LOCK_FILE_NAME = "writer.lock";
+    static final int HEADER_BYTES = 64;
+    static final int ENTRY_BYTES = Integer.BYTES + Byte.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final Path segmentsDir;
+    private final FileChannel writerLockChannel;
+    private final FileLock writerLock;
+    private FileChannel indexChannel;
+    private long entriesCount;
+    private long treeVersion;
+
+    private VFSSharedIndex(Path segmentsDir, FileChannel writerLockChannel, FileLock writerLock) {
+        this.segmentsDir = segmentsDir;
+        this.writerLockChannel = writerLockChannel;
+        this.writerLock = writerLock;
+    }
+
+    /**
+     * Takes the writer lock before the store is opened, so a second writer can't recover the store under the first
+     */
+    public static VFSSharedIndex lockWriter(Path segmentsDir) throws IOException {
+        Files.createDirectories(segmentsDir);
+        FileChannel writerLockChannel = FileChannel.open(
+                segmentsDir.resolve(WRITER_LOCK_FILE_NAME),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE
+        );
+        FileLock writerLock;
+        try {
+            writerLock = writerLockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            writerLock = null;
+        }
+        if (writerLock == null) {
+            writerLockChannel.close();
+            throw new IOException("Can't take writer lock, store is opened by another writer: " + segmentsDir);
+        }
+        return new VFSSharedIndex(segmentsDir, writerLockChannel, writerLock);
+    }
+
+    /**
+     * Starts a new log with every chunk of the index, caller must exclude writers
+     */
+    public synchronized void rewrite(VFSChunkIndex chunkIndex) throws IOException {
+        Path tmpIndexPath = segmentsDir.resolve(INDEX_FILE_NAME + ".tmp");
+        FileChannel newIndexChannel = FileChannel.open(
+                tmpIndexPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        long[] newEntriesCount = new long[1];
+        long[] position = {HEADER_BYTES};
+        ByteBuffer entries = ByteBuffer.allocate(ENTRY_BYTES * 1024);
+        try {
+            chunkIndex.forEach((filePath, chunkList) -> {
+                int fileId = chunkIndex.fileIdOf(filePath);
+                for (int i = 0; i < chunkList.size(); i++) {
+                    if (entries.remaining() < ENTRY_BYTES) {
+                        try {
+                            position[0] += flush(newIndexChannel, position[0], entries);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                    byte recordType = i == 0 ? RECORD_REPLACE : RECORD_APPEND;
+                    putEntry(entries, fileId, recordType, chunkList.addressAt(i), chunkList.contentLengthAt(i));
+                    newEntriesCount[0]++;
+                }
+            });
+            flush(newIndexChannel, position[0], entries);
+            writeHeader(newIndexChannel, newEntriesCount[0], 0);
+            newIndexChannel.force(true);
+        } catch (UncheckedIOException ex) {
+            newIndexChannel.close();
+            throw ex.getCause();
+        } catch (IOException ex) {
+            newIndexChannel.close();
+            throw ex;
+        }
+        Files.move(tmpIndexPath, segmentsDir.resolve(INDEX_FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+        indexChannel = newIndexChannel;
+        entriesCount = newEntriesCount[0];
+        treeVersion = 0;
+    }
+
+    public synchronized void publish(int fileId, byte recordType, long address, int contentLength) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+        putEntry(entry, fileId, recordType, address, contentLength);
+        writeFully(indexChannel, HEADER_BYTES + entriesCount * ENTRY_BYTES, entry.flip());
+        entriesCount++;
+        writeHeader(indexChannel, entriesCount, treeVersion);
+    }
+
+    /**
+     * Readers reread the tree file on the next refresh
+     */
+    public synchronized void publishTree() throws IOException {
+        treeVersion++;
+        writeHeader(indexChannel, entriesCount, treeVersion);
+    }
+
+    private static void putEntry(ByteBuffer buffer, int fileId, byte recordType, long address, int contentLength) {
+        buffer.putInt(fileId);
+        buffer.put(recordType);
+        buffer.putLong(address);
+        buffer.putInt(contentLength);
+    }
+
+    private static int flush(FileChannel channel, long position, ByteBuffer entries) throws IOException {
+        entries.flip();
+        int bytesCount = entries.remaining();
+        writeFully(channel, position, entries);
+        entries.clear();
+        return bytesCount;
+    }
+
+    private static void writeHeader(FileChannel channel, long entriesCount, long treeVersion) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putLong(entriesCount);
+        header.putLong(treeVersion);
+        header.position(HEADER_BYTES);
+        FileLock headerLock = channel.lock(0, HEADER_BYTES, false);
+        try {
+            writeFully(channel, 0, header.flip());
+        } finally {
+            headerLock.release();
+        }
+    }
+
+    /**
+     * Releases the writer lock, the log stays for readers
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+        writerLock.release();
+        writerLockChannel.close();
+    }
+}
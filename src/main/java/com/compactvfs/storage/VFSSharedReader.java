@@ -0,0 +1,160 @@
+package com.compactvfs.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+import com.compactvfs.model.VFSCompactTree;
+
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_APPEND;
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_DELETE;
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_REPLACE;
+import static com.compactvfs.storage.VFSSharedIndex.ENTRY_BYTES;
+import static com.compactvfs.storage.VFSSharedIndex.HEADER_BYTES;
+import static com.compactvfs.storage.VFSSharedIndex.INDEX_FILE_NAME;
+
+/**
+ * Read access to a store of another process, the writer must have shared readers on,
+ * see {@link VFSStorageDescriptor#loadWriter(Path)}. Contents are read from the segment files of the writer,
+ * the reader keeps only a chunk index and a {@link VFSCompactTree}.
+ *
+ * {@link #refresh()} maps shared.index and applies only the entries published since the previous refresh,
+ * the tree file is reread only if the writer changed the tree. Appends buffered by the writer are seen after
+ * the writer flushes them. One reader per process: file locks of one JVM can't overlap
+ */
+public class VFSSharedReader implements Closeable {
+    private final Path descriptorPath;
+    private final Path indexPath;
+    private final VFSSegmentStore segmentStore;
+
+    private FileChannel indexChannel;
+    private Object indexFileKey;
+    private MappedByteBuffer mappedIndex;
+    private VFSChunkIndex chunkIndex;
+    private long appliedEntriesCount;
+    private long treeVersion;
+    private volatile VFSCompactTree tree;
+    private volatile VFSChunkIndex publishedChunkIndex;
+
+    private VFSSharedReader(Path descriptorPath, Path segmentsDir) throws IOException {
+        this.descriptorPath = descriptorPath;
+        this.indexPath = segmentsDir.resolve(INDEX_FILE_NAME);
+        this.segmentStore = VFSSegmentStore.openReadOnly(segmentsDir);
+    }
+
+    public static VFSSharedReader open(Path descriptorPath) throws IOException {
+        VFSSharedReader reader = new VFSSharedReader(
+                descriptorPath,
+                VFSStorageDescriptor.segmentsDirOf(descriptorPath)
+        );
+        reader.refresh();
+        return reader;
+    }
+
+    /**
+     * Catches up with the writer
+     */
+    public synchronized void refresh() throws IOException {
+        Object fileKey = Files.readAttributes(indexPath, BasicFileAttributes.class).fileKey();
+        if (indexChannel == null || fileKey == null || !Objects.equals(fileKey, indexFileKey)) {
+            reopenIndex(fileKey);
+        }
+
+        long entriesCount;
+        long publishedTreeVersion;
+        FileLock headerLock = indexChannel.lock(0, HEADER_BYTES, true);
+        try {
+            entriesCount = mappedIndex.getLong(0);
+            publishedTreeVersion = mappedIndex.getLong(Long.BYTES);
+        } finally {
+            headerLock.release();
+        }
+        long indexBytes = HEADER_BYTES + entriesCount * ENTRY_BYTES;
+        if (indexBytes > mappedIndex.capacity()) {
+            mappedIndex = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        }
+        // readers see the replace of a file together with the appends that follow it in the batch
+        VFSChunkIndex.Batch batch = chunkIndex.batch();
+        for (long entry = appliedEntriesCount; entry < entriesCount; entry++) {
+            int position = (int) (HEADER_BYTES + entry * ENTRY_BYTES);
+            int fileId = mappedIndex.getInt(position);
+            byte recordType = mappedIndex.get(position + Integer.BYTES);
+            long address = mappedIndex.getLong(position + Integer.BYTES + Byte.BYTES);
+            int contentLength = mappedIndex.getInt(position + Integer.BYTES + Byte.BYTES + Long.BYTES);
+            if (recordType == RECORD_REPLACE) {
+                batch.replace(fileId, address, contentLength);
+            } else if (recordType == RECORD_APPEND) {
+                batch.append(fileId, address, contentLength);
+            } else if (recordType == RECORD_DELETE) {
+                batch.remove(fileId);
+            }
+        }
+        batch.apply();
+        appliedEntriesCount = entriesCount;
+        if (publishedTreeVersion != treeVersion || tree == null) {
+            tree = VFSStorageDescriptor.readCompactTree(descriptorPath);
+            treeVersion = publishedTreeVersion;
+        }
+        publishedChunkIndex = chunkIndex;
+    }
+
+    // a new writer session, the previous log is gone
+    private void reopenIndex(Object fileKey) throws IOException {
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ);
+        indexFileKey = fileKey;
+        mappedIndex = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        chunkIndex = new VFSChunkIndex();
+        appliedEntriesCount = 0;
+        treeVersion = -1;
+    }
+
+    public VFSCompactTree getTree() {
+        return tree;
+    }
+
+    /**
+     * @return -1 if there is no such file
+     */
+    public int fileIdOf(String filePath) {
+        VFSCompactTree curTree = tree;
+        int node = curTree.nodeOf(filePath);
+        return node == VFSCompactTree.NO_NODE || !curTree.isFile(node) ? -1 : curTree.fileIdOf(node);
+    }
+
+    public VFSInputStream readFileContent(String filePath) throws IOException {
+        return new VFSInputStream(publishedChunkIndex.getById(fileIdOf(filePath)), segmentStore, false);
+    }
+
+    /**
+     * A segment dropped by a compaction of the writer is retried once after a refresh
+     */
+    public byte[] readBytes(String filePath) throws IOException {
+        try (VFSInputStream inputStream = readFileContent(filePath)) {
+            return inputStream.readAllBytes();
+        } catch (NoSuchFileException ex) {
+            refresh();
+            try (VFSInputStream inputStream = readFileContent(filePath)) {
+                return inputStream.readAllBytes();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+    }
+}
@@ -1,177 +1,929 @@
 package com.compactvfs.storage;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import com.compactvfs.metrics.VFSAppendFlushFailedEvent;
+import com.compactvfs.metrics.VFSMetrics;
 import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSCompactTree;
 import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFileStat;
+import com.compactvfs.storage.VFSChunkIndex.ChunkList;
+import com.compactvfs.storage.VFSSegmentStore.SegmentRecord;
+import com.compactvfs.storage.VFSSegmentStore.SegmentScrubResult;
 
-import static com.compactvfs.storage.VFSTreeDfsCompressor.countTreeBytesCount;
-import static com.compactvfs.storage.VFSTreeDfsCompressor.readObject;
-import static com.compactvfs.storage.VFSTreeDfsCompressor.writeObject;
+import static com.compactvfs.storage.VFSSegmentStore.DEFAULT_ACTIVE_SEGMENTS;
+import static com.compactvfs.storage.VFSSegmentStore.DEFAULT_SEGMENT_SIZE;
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_APPEND;
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_DELETE;
+import static com.compactvfs.storage.VFSSegmentStore.RECORD_REPLACE;
+import static com.compactvfs.storage.VFSSegmentStore.checksumOf;
+import static com.compactvfs.storage.VFSSegmentStore.combineChecksums;
+import static com.compactvfs.storage.VFSSegmentStore.offsetOf;
+import static com.compactvfs.storage.VFSSegmentStore.segmentOf;
+import static java.util.stream.Collectors.toList;
 
-public class VFSStorageDescriptor {
-    private static final int BYTES_FOR_TREE = 100_000;
+/**
+ * Tree is stored in descriptor_[root name].ser, file contents in the segments directory next to it.
+ * Tree file: [int next file id] and the dfs tree with the id of every file, records are keyed by the ids.
+ * Content is written in extents of at most {@link #getExtentBytes()}, one record each, so file sizes are
+ * not bound by an array and extents of a large file can be read in parallel.
+ * Contents up to {@link #getInlineBytes()} are cached in memory with the index, filled by the first write or read
+ * of the file, and then read without any file access. Nothing is read on load, the records stay the only durable copy.
+ * A cached content belongs to the chunk list it was read or written with, a list changed in another way
+ * (compaction, a write past the threshold) leaves it stale and the next read fills it again
+ */
+public class VFSStorageDescriptor implements VFSStorageEngine {
+    public static final int DEFAULT_EXTENT_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_INLINE_BYTES = 512;
 
-    private final Map<String, List<Long>> fileContentChunkPositions;
-    private final String storagePath;
+    private static final String SEGMENTS_DIR_SUFFIX = "_segments";
+    private static final int TREE_BUFFER_BYTES = 64 * 1024;
 
-    private VFSStorageDescriptor(
-            Path dirPathToStore,
-            String fileName
-    ) throws IOException {
-        Files.createDirectories(dirPathToStore);
-        storagePath = dirPathToStore + "/" + fileName;
-        fileContentChunkPositions = new HashMap<>();
-    }
+    private final VFSChunkIndex chunkIndex;
+    private final Map<String, VFSFileStat> fileStats;
+    private final Path descriptorPath;
+    private final VFSSegmentStore segmentStore;
+    private volatile boolean verifyChecksums = false;
+    private volatile int extentBytes = DEFAULT_EXTENT_BYTES;
+    // whole contents of small files read or written since load
+    private final Map<String, InlineContent> inlineContents;
+    private volatile int inlineBytes = DEFAULT_INLINE_BYTES;
+    // not null while reader processes are served, see VFSSharedReader
+    private volatile VFSSharedIndex sharedIndex;
+
+    // small appends wait here to be written as one chunk, guarded by the monitor of the buffer
+    private final Map<String, AppendBuffer> appendBuffers;
+    private volatile int appendBufferBytes = 0;
+    private volatile long appendFlushDelayMs = 0;
+    private ScheduledExecutorService appendFlusher;
+    private final VFSMetrics metrics = new VFSMetrics();
 
-    private VFSStorageDescriptor(String filePath) throws IOException {
-        Files.createDirectories(Paths.get(filePath).getParent());
-        fileContentChunkPositions = new HashMap<>();
-        storagePath = filePath;
+    private VFSStorageDescriptor(Path descriptorPath, VFSSegmentStore segmentStore) {
+        this.descriptorPath = descriptorPath;
+        this.segmentStore = segmentStore;
+        chunkIndex = new VFSChunkIndex();
+        fileStats = new ConcurrentHashMap<>();
+        inlineContents = new ConcurrentHashMap<>();
+        appendBuffers = new ConcurrentHashMap<>();
     }
 
     public static VFSStorageDescriptor initTreeFrom(VFSDirectory vfsDirectory, Path dirPathToStore) throws IOException {
-        VFSStorageDescriptor vfsStorageDescriptor = new VFSStorageDescriptor(
-                dirPathToStore,
-                "descriptor_" + vfsDirectory.getName() + ".ser"
+        return initTreeFrom(vfsDirectory, dirPathToStore, DEFAULT_SEGMENT_SIZE, DEFAULT_ACTIVE_SEGMENTS);
+    }
+
+    /**
+     * Drops any previous storage of a tree with the same root name
+     */
+    public static VFSStorageDescriptor initTreeFrom(
+            VFSDirectory vfsDirectory,
+            Path dirPathToStore,
+            long segmentSize,
+            int activeSegmentsCount
+    ) throws IOException {
+        Files.createDirectories(dirPathToStore);
+        Path descriptorPath = dirPathToStore.resolve("descriptor_" + vfsDirectory.getName() + ".ser");
+        VFSSegmentStore segmentStore = VFSSegmentStore.create(
+                segmentsDirOf(descriptorPath),
+                segmentSize,
+                activeSegmentsCount
         );
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(vfsStorageDescriptor.storagePath, "rw")) {
-            randomAccessFile.setLength(0);
-            vfsStorageDescriptor.writeVfsTree(vfsDirectory, randomAccessFile);
-            int curBytesForTree = (int) randomAccessFile.length();
-            randomAccessFile.writeInt(curBytesForTree);
-            byte[] zerosGap = new byte[BYTES_FOR_TREE - curBytesForTree - Integer.BYTES];
-            randomAccessFile.write(zerosGap, 0, zerosGap.length);
-        }
+        VFSStorageDescriptor vfsStorageDescriptor = new VFSStorageDescriptor(descriptorPath, segmentStore);
+        vfsStorageDescriptor.rebuildDfsTree(vfsDirectory);
         return vfsStorageDescriptor;
     }
 
+    static Path segmentsDirOf(Path descriptorPath) {
+        String descriptorFileName = descriptorPath.getFileName().toString();
+        int extensionIndex = descriptorFileName.lastIndexOf('.');
+        String baseName = extensionIndex < 0 ? descriptorFileName : descriptorFileName.substring(0, extensionIndex);
+        return descriptorPath.resolveSibling(baseName + SEGMENTS_DIR_SUFFIX);
+    }
+
+    @Override
     public void clearStorage() throws IOException {
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(storagePath, "rw")) {
-            randomAccessFile.setLength(0);
-        }
+        stopAppendFlusher();
+        disableSharedReaders();
+        appendBuffers.clear();
+        segmentStore.clear();
+        chunkIndex.clear();
+        fileStats.clear();
+        inlineContents.clear();
+        Files.deleteIfExists(descriptorPath);
     }
 
-    public void rebuildDfsTree(VFSDirectory vfsDirectory) throws IOException {
-        int bytesTreeCount = countTreeBytesCount(vfsDirectory);
-        if (bytesTreeCount >= BYTES_FOR_TREE - Integer.BYTES) {
-            throw new IllegalArgumentException("VFS Tree too large, change BYTES_FOR_TREE parameter");
+    /**
+     * Tree is written aside and moved over the previous one, so a crash never leaves a torn tree.
+     * New files of the tree get their ids here, before any of their records is written
+     */
+    @Override
+    public synchronized void rebuildDfsTree(VFSDirectory vfsDirectory) throws IOException {
+        vfsDirectory.walkFiles(false).forEach(file -> chunkIndex.fileIdFor(file.getPath()));
+        Path tmpDescriptorPath = descriptorPath.resolveSibling(descriptorPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmpDescriptorPath),
+                TREE_BUFFER_BYTES
+        ))) {
+            out.writeInt(chunkIndex.getNextFileId());
+            VFSTreeDfsCompressor.compress(out, vfsDirectory, chunkIndex::fileIdOf);
         }
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(storagePath, "rw")) {
-            randomAccessFile.seek(0);
-            int bytesCount = VFSTreeDfsCompressor.compress(randomAccessFile, vfsDirectory);
-            randomAccessFile.writeInt(bytesCount);
+        Files.move(tmpDescriptorPath, descriptorPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        VFSSharedIndex curSharedIndex = sharedIndex;
+        if (curSharedIndex != null) {
+            curSharedIndex.publishTree();
         }
     }
 
-    private void writeVfsTree(
-            VFSDirectory vfsDirectory,
-            RandomAccessFile storage
-    ) throws IOException {
-        VFSTreeDfsCompressor.compress(storage, vfsDirectory);
+    /**
+     * Reads the tree file, contents stay as they are indexed
+     */
+    @Override
+    public VFSDirectory loadTree() throws IOException {
+        return readCompactTree(descriptorPath).toVFSDirectory();
     }
 
+    /**
+     * Recovery cuts torn tails of active segments, so the writer lock is held while it runs
+     *
+     * @throws IOException if another writer holds the store
+     */
     public static VFS load(Path descriptorPath) throws IOException {
-        VFSStorageDescriptor vfsStorageDescriptor = new VFSStorageDescriptor(descriptorPath.toString());
-
-        VFSDirectory vfsDirectory;
+        VFSSharedIndex writerLock = VFSSharedIndex.lockWriter(segmentsDirOf(descriptorPath));
+        try {
+            return loadLocked(descriptorPath);
+        } finally {
+            writerLock.close();
+        }
+    }
 
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(vfsStorageDescriptor.storagePath, "r")) {
-            try {
-                vfsDirectory = VFSTreeDfsCompressor.decompress(randomAccessFile);
-                int treeBytesCnt = randomAccessFile.readInt();
-                byte[] zerosGap = new byte[BYTES_FOR_TREE - treeBytesCnt - Integer.BYTES];
-                randomAccessFile.read(zerosGap, 0, zerosGap.length);
-                readFileContentPositionMap(
-                        vfsStorageDescriptor.getFileContentChunkPositions(),
-                        randomAccessFile
-                );
-            } catch (ClassNotFoundException ex) {
-                throw new IOException("Can't decompress VFS tree, ex: " + ex.getMessage());
-            }
+    private static VFS loadLocked(Path descriptorPath) throws IOException {
+        VFSSegmentStore segmentStore = VFSSegmentStore.open(segmentsDirOf(descriptorPath));
+        VFSStorageDescriptor vfsStorageDescriptor = new VFSStorageDescriptor(descriptorPath, segmentStore);
 
+        VFSChunkIndex chunkIndex = vfsStorageDescriptor.chunkIndex;
+        Map<Integer, String> filePaths = new HashMap<>();
+        VFSDirectory vfsDirectory;
+        try (DataInputStream in = treeInputStream(descriptorPath)) {
+            chunkIndex.setNextFileId(in.readInt());
+            vfsDirectory = VFSTreeDfsCompressor.decompress(in, (filePath, fileId) -> {
+                chunkIndex.register(filePath, fileId);
+                filePaths.put(fileId, filePath);
+            });
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Can't decompress VFS tree, ex: " + ex.getMessage());
         }
+        readChunkIndex(
+                chunkIndex,
+                vfsStorageDescriptor.fileStats,
+                filePaths,
+                segmentStore.recover(vfsStorageDescriptor.metrics)
+        );
         return new VFS(
                 vfsDirectory,
                 vfsStorageDescriptor
         );
     }
 
-    public Map<String, List<Long>> getFileContentChunkPositions() {
-        return fileContentChunkPositions;
+    /**
+     * Loads the store as the single writer serving reader processes, see {@link VFSSharedReader}.
+     * The writer lock is taken before recovery, so a running writer is never disturbed
+     */
+    public static VFS loadWriter(Path descriptorPath) throws IOException {
+        VFSSharedIndex sharedIndex = VFSSharedIndex.lockWriter(segmentsDirOf(descriptorPath));
+        try {
+            VFS vfs = loadLocked(descriptorPath);
+            VFSStorageDescriptor vfsStorageDescriptor = vfs.getStorageDescriptor();
+            sharedIndex.rewrite(vfsStorageDescriptor.chunkIndex);
+            vfsStorageDescriptor.sharedIndex = sharedIndex;
+            return vfs;
+        } catch (IOException ex) {
+            sharedIndex.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Takes the writer lock and publishes the index for reader processes, caller must exclude writers
+     */
+    public synchronized void enableSharedReaders() throws IOException {
+        if (sharedIndex != null) {
+            return;
+        }
+        flushAppendBuffers();
+        VFSSharedIndex newSharedIndex = VFSSharedIndex.lockWriter(segmentStore.getSegmentsDir());
+        try {
+            newSharedIndex.rewrite(chunkIndex);
+        } catch (IOException ex) {
+            newSharedIndex.close();
+            throw ex;
+        }
+        sharedIndex = newSharedIndex;
+    }
+
+    /**
+     * Releases the writer lock, readers keep the last published state
+     */
+    public synchronized void disableSharedReaders() throws IOException {
+        if (sharedIndex != null) {
+            sharedIndex.close();
+            sharedIndex = null;
+        }
+    }
+
+    public boolean isSharedReadersEnabled() {
+        return sharedIndex != null;
+    }
+
+    private void publish(int fileId, byte recordType, long address, int contentLength) throws IOException {
+        VFSSharedIndex curSharedIndex = sharedIndex;
+        if (curSharedIndex != null) {
+            curSharedIndex.publish(fileId, recordType, address, contentLength);
+        }
+    }
+
+    /**
+     * Reads only the tree in compact form, e.g. to browse a huge tree without loading the VFS
+     */
+    public static VFSCompactTree readCompactTree(Path descriptorPath) throws IOException {
+        try (DataInputStream in = treeInputStream(descriptorPath)) {
+            // next file id
+            in.readInt();
+            return VFSTreeDfsCompressor.decompressCompact(in);
+        }
+    }
+
+    private static DataInputStream treeInputStream(Path descriptorPath) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(descriptorPath), TREE_BUFFER_BYTES));
+    }
+
+    /**
+     * Chunk lists are immutable and replaced on every write,
+     * so a list taken from the index is a consistent snapshot of the file content
+     */
+    public VFSChunkIndex getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public Map<String, VFSFileStat> getFileStats() {
+        return fileStats;
+    }
+
+    /**
+     * Buffered appends are counted in the size, they become a chunk and get a change sequence on flush
+     *
+     * @return null if the file has no content
+     */
+    @Override
+    public VFSFileStat stat(String vfsFilePath) {
+        AppendBuffer buffer = appendBuffers.get(vfsFilePath);
+        if (buffer == null) {
+            return fileStats.get(vfsFilePath);
+        }
+        synchronized (buffer) {
+            VFSFileStat stat = fileStats.get(vfsFilePath);
+            if (buffer.content.size() == 0) {
+                return stat;
+            }
+            return stat == null
+                    ? new VFSFileStat(
+                            buffer.content.size(),
+                            0,
+                            buffer.firstAppendTime,
+                            buffer.lastAppendTime,
+                            -1,
+                            buffer.checksum
+                    )
+                    : new VFSFileStat(
+                            stat.getSize() + buffer.content.size(),
+                            stat.getChunksCount(),
+                            stat.getCreationTime(),
+                            buffer.lastAppendTime,
+                            stat.getChangeSequence(),
+                            combineChecksums(stat.getContentChecksum(), buffer.checksum, buffer.content.size())
+                    );
+        }
+    }
+
+    public VFSSegmentStore getSegmentStore() {
+        return segmentStore;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    /**
+     * @param verifyChecksums if true, every chunk is checked against its crc32c on read
+     */
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    @Override
+    public int getExtentBytes() {
+        return extentBytes;
+    }
+
+    @Override
+    public VFSMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Applies to following writes, written extents are kept
+     */
+    public void setExtentBytes(int extentBytes) {
+        if (extentBytes <= 0) {
+            throw new IllegalArgumentException("Invalid extent size: " + extentBytes);
+        }
+        this.extentBytes = extentBytes;
+    }
+
+    public int getInlineBytes() {
+        return inlineBytes;
+    }
+
+    /**
+     * Applies to following writes, inline contents larger than the new threshold are dropped from memory
+     *
+     * @param inlineBytes 0 turns inlining off
+     */
+    public void setInlineBytes(int inlineBytes) {
+        if (inlineBytes < 0) {
+            throw new IllegalArgumentException("Invalid inline size: " + inlineBytes);
+        }
+        this.inlineBytes = inlineBytes;
+        inlineContents.values().removeIf(inlineContent -> inlineContent.content.length > inlineBytes);
+    }
+
+    /**
+     * @return true if the next read of the file is served from memory
+     */
+    public boolean isInline(String vfsFilePath) {
+        InlineContent inlineContent = inlineContents.get(vfsFilePath);
+        return inlineContent != null && inlineContent.chunkList == chunkIndex.get(vfsFilePath);
+    }
+
+    /**
+     * Appends smaller than bufferBytes are collected per file and written as one chunk when the buffer
+     * reaches bufferBytes or its first append is flushDelayMs old. Readers see buffered appends,
+     * but they are lost on crash until flushed
+     *
+     * @param bufferBytes 0 turns coalescing off and flushes all buffers
+     */
+    public synchronized void setAppendCoalescing(int bufferBytes, long flushDelayMs) throws IOException {
+        if (bufferBytes < 0 || flushDelayMs < 0 || (bufferBytes > 0 && flushDelayMs == 0)) {
+            throw new IllegalArgumentException("Invalid append coalescing: " + bufferBytes + " bytes, " + flushDelayMs + " ms");
+        }
+        stopAppendFlusher();
+        appendBufferBytes = bufferBytes;
+        appendFlushDelayMs = flushDelayMs;
+        flushAppendBuffers();
+        if (bufferBytes > 0) {
+            appendFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "vfs-append-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, flushDelayMs / 2);
+            appendFlusher.scheduleAtFixedRate(this::flushExpiredAppendBuffers, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void stopAppendFlusher() {
+        if (appendFlusher != null) {
+            appendFlusher.shutdownNow();
+            appendFlusher = null;
+        }
+    }
+
+    /**
+     * Writes all buffered appends, after it they survive a crash
+     *
+     * @throws IOException also if a background flush failed since the previous call, the appends stay buffered
+     */
+    public void flushAppendBuffers() throws IOException {
+        for (Map.Entry<String, AppendBuffer> entry : appendBuffers.entrySet()) {
+            synchronized (entry.getValue()) {
+                flushAppendBuffer(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void flushExpiredAppendBuffers() {
+        long now = System.currentTimeMillis();
+        appendBuffers.forEach((filePath, buffer) -> {
+            synchronized (buffer) {
+                if (buffer.content.size() > 0 && now - buffer.firstAppendTime >= appendFlushDelayMs) {
+                    try {
+                        flushAppendBuffer(filePath, buffer);
+                    } catch (IOException ex) {
+                        // nobody waits for the flusher, the next flush or append of the file reports it
+                        buffer.flushError = ex;
+                        metrics.onAppendFlushFailed();
+                        VFSAppendFlushFailedEvent event = new VFSAppendFlushFailedEvent();
+                        event.path = filePath;
+                        event.bufferedBytes = buffer.content.size();
+                        event.error = ex.getMessage();
+                        event.commit();
+                    }
+                }
+            }
+        });
+    }
+
+    // caller holds the monitor of the buffer
+    private void flushAppendBuffer(String vfsFilePath, AppendBuffer buffer) throws IOException {
+        throwFlushError(vfsFilePath, buffer);
+        // a buffer found under the old path of a renamed file is flushed under the new one
+        if (buffer.content.size() == 0 || appendBuffers.get(vfsFilePath) != buffer) {
+            return;
+        }
+        appendChunk(vfsFilePath, buffer.content.toByteArray(), buffer.lastAppendTime);
+        buffer.reset();
     }
 
+    @Override
     public VFSInputStream readFileContent(String vfsFilePath) throws IOException {
-        // fseek (from C) under the hood + sparse files are usually supported
-        List<Long> fileContentChunkPoss = fileContentChunkPositions.get(vfsFilePath);
-        return new VFSInputStream(fileContentChunkPoss, storagePath);
+        AppendBuffer buffer = appendBuffers.get(vfsFilePath);
+        if (buffer == null) {
+            return contentStream(vfsFilePath, new byte[0]);
+        }
+        // chunk list and buffer are taken together, a flush moves bytes from one to the other
+        synchronized (buffer) {
+            return contentStream(vfsFilePath, buffer.content.toByteArray());
+        }
+    }
+
+    // inline content is served as the in-memory tail of a stream without chunks
+    private VFSInputStream contentStream(String vfsFilePath, byte[] pendingTail) throws IOException {
+        ChunkList chunkList = chunkIndex.get(vfsFilePath);
+        InlineContent inlineContent = inlineContents.get(vfsFilePath);
+        if (inlineContent == null || inlineContent.chunkList != chunkList) {
+            inlineContent = fillInlineContent(vfsFilePath, chunkList);
+        }
+        if (inlineContent == null || inlineContent.content.length + pendingTail.length == 0) {
+            return new VFSInputStream(chunkList, segmentStore, verifyChecksums, pendingTail);
+        }
+        byte[] content = Arrays.copyOf(inlineContent.content, inlineContent.content.length + pendingTail.length);
+        System.arraycopy(pendingTail, 0, content, inlineContent.content.length, pendingTail.length);
+        return new VFSInputStream(null, segmentStore, verifyChecksums, content);
+    }
+
+    /**
+     * Reads a small content once and keeps it, checksums are always verified: a cached content outlives the setting.
+     * A corrupted content is counted and not cached, its reads go to the segments
+     *
+     * @return null if the content is not cached
+     */
+    private InlineContent fillInlineContent(String vfsFilePath, ChunkList chunkList) throws IOException {
+        if (chunkList == null || chunkList.getContentLength() > inlineBytes) {
+            return null;
+        }
+        InlineContent inlineContent;
+        try (VFSInputStream inputStream = new VFSInputStream(chunkList, segmentStore, true)) {
+            inlineContent = new InlineContent(chunkList, inputStream.readAllBytes());
+        } catch (VFSChunkCorruptedException ex) {
+            metrics.onCorruption();
+            return null;
+        }
+        // a content filled concurrently for the current list wins
+        return inlineContents.compute(vfsFilePath, (k, curInlineContent) ->
+                curInlineContent != null && curInlineContent.chunkList == chunkIndex.get(vfsFilePath)
+                        ? curInlineContent
+                        : inlineContent
+        );
+    }
+
+    /**
+     * Verifies all segments in parallel without blocking readers or writers,
+     * chunks appended after the scrub started are not checked
+     */
+    public VFSScrubReport scrub() throws IOException {
+        long start = System.nanoTime();
+        List<SegmentScrubResult> segmentResults;
+        try {
+            segmentResults = segmentStore.getSegmentIds().parallelStream()
+                    .map(segmentId -> {
+                        try {
+                            return segmentStore.scrubSegment(segmentId);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    })
+                    .collect(toList());
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        Set<Long> damagedChunks = new HashSet<>();
+        Map<Integer, Long> tornOffsets = new HashMap<>();
+        for (SegmentScrubResult segmentResult : segmentResults) {
+            damagedChunks.addAll(segmentResult.getDamagedChunks());
+            if (segmentResult.getTornOffset() >= 0) {
+                tornOffsets.put(segmentResult.getSegmentId(), segmentResult.getTornOffset());
+            }
+        }
+        Set<String> damagedFiles = new HashSet<>();
+        chunkIndex.forEach((filePath, chunkList) -> {
+            for (int i = 0; i < chunkList.size(); i++) {
+                long position = chunkList.addressAt(i);
+                Long tornOffset = tornOffsets.get(segmentOf(position));
+                if (damagedChunks.contains(position) || (tornOffset != null && offsetOf(position) >= tornOffset)) {
+                    damagedFiles.add(filePath);
+                    break;
+                }
+            }
+        });
+        return new VFSScrubReport(segmentResults, damagedFiles, System.nanoTime() - start);
     }
 
     // os dependent FileChannel.write (Windows can't be parallelized?)
+    @Override
     public void writeNewFileContentInTheEnd(
             String vfsFilePath,
             byte[] newContent
     ) throws IOException {
-        try (RandomAccessFile storage = new RandomAccessFile(storagePath, "rw")) {
-            long endPos = storage.length();
-            storage.seek(endPos);
+        replaceFileContent(vfsFilePath, newContent, System.currentTimeMillis());
+    }
 
-            writeObject(storage, vfsFilePath);
+    /**
+     * Streams the new content extent by extent, the file size isn't bound by an array.
+     * Readers may see a prefix of the content until the last extent is written,
+     * a crash in between leaves the extents written before it
+     *
+     * @return count of written bytes
+     */
+    @Override
+    public long writeNewFileContentFrom(String vfsFilePath, InputStream newContent) throws IOException {
+        return replaceFileContent(
+                vfsFilePath,
+                extent -> newContent.readNBytes(extent, 0, extent.length),
+                System.currentTimeMillis()
+        );
+    }
 
-            ArrayList<Long> contentPoss = new ArrayList<>();
-            contentPoss.add(storage.getChannel().position());
-            fileContentChunkPositions.put(
-                    vfsFilePath,
-                    contentPoss
-            );
+    @FunctionalInterface
+    private interface ExtentSource {
+        /**
+         * @return count of bytes put into the extent, less than its length only at the end of the content
+         */
+        int fill(byte[] extent) throws IOException;
+    }
+
+    private void replaceFileContent(String vfsFilePath, byte[] newContent, long timestamp) throws IOException {
+        AppendBuffer buffer = appendBuffers.get(vfsFilePath);
+        if (buffer == null) {
+            putFileContent(vfsFilePath, newContent, timestamp);
+            return;
+        }
+        synchronized (buffer) {
+            buffer.reset();
+            putFileContent(vfsFilePath, newContent, timestamp);
+        }
+    }
+
+    private long replaceFileContent(String vfsFilePath, ExtentSource newContent, long timestamp) throws IOException {
+        AppendBuffer buffer = appendBuffers.get(vfsFilePath);
+        if (buffer == null) {
+            return putFileContent(vfsFilePath, newContent, timestamp);
+        }
+        synchronized (buffer) {
+            buffer.reset();
+            return putFileContent(vfsFilePath, newContent, timestamp);
+        }
+    }
+
+    // a replace record with the first extent, append records with the others
+    private void putFileContent(String vfsFilePath, byte[] newContent, long timestamp) throws IOException {
+        int curExtentBytes = extentBytes;
+        int firstExtentLength = Math.min(newContent.length, curExtentBytes);
+        putExtent(vfsFilePath, RECORD_REPLACE, newContent, 0, firstExtentLength, timestamp);
+        for (int offset = firstExtentLength; offset < newContent.length; offset += curExtentBytes) {
+            putExtent(vfsFilePath, RECORD_APPEND, newContent, offset, Math.min(curExtentBytes, newContent.length - offset), timestamp);
+        }
+    }
 
-            storage.writeInt(newContent.length);
-            storage.write(newContent, 0, newContent.length);
+    // one extent buffer is reused, records are written before the next fill
+    private long putFileContent(String vfsFilePath, ExtentSource newContent, long timestamp) throws IOException {
+        byte[] extent = new byte[extentBytes];
+        int extentLength = newContent.fill(extent);
+        putExtent(vfsFilePath, RECORD_REPLACE, extent, 0, extentLength, timestamp);
+        long bytesCount = extentLength;
+        while (extentLength == extent.length && (extentLength = newContent.fill(extent)) > 0) {
+            putExtent(vfsFilePath, RECORD_APPEND, extent, 0, extentLength, timestamp);
+            bytesCount += extentLength;
         }
+        return bytesCount;
+    }
+
+    private void putExtent(
+            String vfsFilePath,
+            byte recordType,
+            byte[] content,
+            int offset,
+            int length,
+            long timestamp
+    ) throws IOException {
+        int fileId = chunkIndex.fileIdFor(vfsFilePath);
+        long sequence = segmentStore.reserveSequence();
+        int checksum = checksumOf(content, offset, length);
+        long contentPos = segmentStore.append(sequence, fileId, recordType, timestamp, content, offset, length, checksum);
+        ChunkList previousChunkList = chunkIndex.get(vfsFilePath);
+        if (recordType == RECORD_REPLACE) {
+            fileStats.compute(vfsFilePath, (k, stat) -> VFSFileStat.replaced(stat, length, timestamp, sequence, checksum));
+            chunkIndex.replace(vfsFilePath, contentPos, length);
+        } else {
+            fileStats.compute(vfsFilePath, (k, stat) -> VFSFileStat.appended(stat, length, timestamp, sequence, checksum));
+            chunkIndex.append(vfsFilePath, contentPos, length);
+        }
+        updateInlineContent(vfsFilePath, recordType, previousChunkList, content, offset, length);
+        publish(fileId, recordType, contentPos, length);
+    }
+
+    // called after the chunk list is updated, the cached content of the previous list is extended
+    private void updateInlineContent(
+            String vfsFilePath,
+            byte recordType,
+            ChunkList previousChunkList,
+            byte[] content,
+            int offset,
+            int length
+    ) {
+        int curInlineBytes = inlineBytes;
+        ChunkList chunkList = chunkIndex.get(vfsFilePath);
+        inlineContents.compute(vfsFilePath, (k, inlineContent) -> {
+            byte[] previous;
+            if (recordType == RECORD_REPLACE || previousChunkList == null) {
+                previous = new byte[0];
+            } else if (inlineContent != null && inlineContent.chunkList == previousChunkList) {
+                previous = inlineContent.content;
+            } else {
+                return null;
+            }
+            if (previous.length + length > curInlineBytes) {
+                return null;
+            }
+            byte[] updated = Arrays.copyOf(previous, previous.length + length);
+            System.arraycopy(content, offset, updated, previous.length, length);
+            return new InlineContent(chunkList, updated);
+        });
     }
 
+    @Override
     public void writeBytesToTheEndOfFile(
             String vfsFilePath,
             byte[] additionalContent
     ) throws IOException {
-        try (RandomAccessFile storage = new RandomAccessFile(storagePath, "rw")) {
-            long endPos = storage.length();
-            storage.seek(endPos);
+        long now = System.currentTimeMillis();
+        int bufferBytes = appendBufferBytes;
+        if (additionalContent.length >= bufferBytes) {
+            AppendBuffer buffer = appendBuffers.get(vfsFilePath);
+            if (buffer == null) {
+                appendChunk(vfsFilePath, additionalContent, now);
+                return;
+            }
+            // buffered appends go first
+            synchronized (buffer) {
+                flushAppendBuffer(vfsFilePath, buffer);
+                appendChunk(vfsFilePath, additionalContent, now);
+            }
+            return;
+        }
+        AppendBuffer buffer = appendBuffers.computeIfAbsent(vfsFilePath, k -> new AppendBuffer());
+        synchronized (buffer) {
+            throwFlushError(vfsFilePath, buffer);
+            if (buffer.content.size() == 0) {
+                buffer.firstAppendTime = now;
+            }
+            buffer.content.write(additionalContent);
+            buffer.checksum = combineChecksums(
+                    buffer.checksum,
+                    checksumOf(additionalContent, 0, additionalContent.length),
+                    additionalContent.length
+            );
+            buffer.lastAppendTime = now;
+            if (buffer.content.size() >= bufferBytes || now - buffer.firstAppendTime >= appendFlushDelayMs) {
+                flushAppendBuffer(vfsFilePath, buffer);
+            }
+        }
+    }
+
+    // reported once, the next flush retries the buffered appends
+    private static void throwFlushError(String vfsFilePath, AppendBuffer buffer) throws IOException {
+        IOException flushError = buffer.flushError;
+        if (flushError != null) {
+            buffer.flushError = null;
+            throw new IOException("Background flush of appends to file with path " + vfsFilePath + " failed", flushError);
+        }
+    }
+
+    // an empty append still writes a record, it creates the content of a file without one
+    private void appendChunk(String vfsFilePath, byte[] additionalContent, long timestamp) throws IOException {
+        ChunkList chunkList = chunkIndex.get(vfsFilePath);
+        InlineContent inlineContent = inlineContents.get(vfsFilePath);
+        if (inlineContent != null && inlineContent.chunkList == chunkList && inlineContent.content.length > 0
+                && inlineContent.content.length + additionalContent.length > inlineBytes
+                && chunkList.size() > 1) {
+            // the file outgrows inlining: its small chunks are rewritten as one, at most inlineBytes,
+            // the append follows as usual
+            byte[] content = inlineContent.content;
+            putExtent(vfsFilePath, RECORD_REPLACE, content, 0, content.length, timestamp);
+        }
+        int curExtentBytes = extentBytes;
+        int offset = 0;
+        do {
+            int length = Math.min(curExtentBytes, additionalContent.length - offset);
+            putExtent(vfsFilePath, RECORD_APPEND, additionalContent, offset, length, timestamp);
+            offset += length;
+        } while (offset < additionalContent.length);
+    }
+
+    /**
+     * Persists a tombstone, so the content is not restored on load
+     */
+    @Override
+    public void deleteFileContent(String vfsFilePath) throws IOException {
+        AppendBuffer buffer = appendBuffers.remove(vfsFilePath);
+        if (buffer != null) {
+            synchronized (buffer) {
+                buffer.reset();
+            }
+        }
+        int fileId = chunkIndex.fileIdOf(vfsFilePath);
+        if (fileId >= 0) {
+            segmentStore.append(fileId, RECORD_DELETE, System.currentTimeMillis(), new byte[0]);
+        }
+        chunkIndex.remove(vfsFilePath);
+        fileStats.remove(vfsFilePath);
+        inlineContents.remove(vfsFilePath);
+        if (fileId >= 0) {
+            publish(fileId, RECORD_DELETE, 0, 0);
+        }
+    }
+
+    /**
+     * Moves the file id to the new path, no content is read or written.
+     * Caller must exclude writers of both paths and persist the tree after it
+     */
+    @Override
+    public void renameFile(String oldVfsFilePath, String newVfsFilePath) {
+        AppendBuffer buffer = appendBuffers.get(oldVfsFilePath);
+        if (buffer == null) {
+            moveFile(oldVfsFilePath, newVfsFilePath);
+            return;
+        }
+        // the flusher must not see the buffer under the old path after the id is moved
+        synchronized (buffer) {
+            moveFile(oldVfsFilePath, newVfsFilePath);
+            appendBuffers.put(newVfsFilePath, buffer);
+            appendBuffers.remove(oldVfsFilePath);
+        }
+    }
 
-            writeObject(storage, vfsFilePath);
+    private void moveFile(String oldVfsFilePath, String newVfsFilePath) {
+        chunkIndex.rename(oldVfsFilePath, newVfsFilePath);
+        VFSFileStat stat = fileStats.remove(oldVfsFilePath);
+        if (stat != null) {
+            fileStats.put(newVfsFilePath, stat);
+        }
+        InlineContent inlineContent = inlineContents.remove(oldVfsFilePath);
+        if (inlineContent != null) {
+            inlineContents.put(newVfsFilePath, inlineContent);
+        }
+    }
 
-            fileContentChunkPositions
-                    .computeIfAbsent(vfsFilePath, k -> new ArrayList<>())
-                    .add(storage.getChannel().position());
+    /**
+     * @return files with at least one chunk in the segment
+     */
+    public List<String> filesWithChunksIn(int segmentId) {
+        List<String> ret = new ArrayList<>();
+        chunkIndex.forEach((filePath, chunkList) -> {
+            for (int i = 0; i < chunkList.size(); i++) {
+                if (segmentOf(chunkList.addressAt(i)) == segmentId) {
+                    ret.add(filePath);
+                    break;
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Rewrites the whole file content extent by extent into an active segment keeping the modification time,
+     * caller must exclude concurrent writers of the file
+     */
+    public void relocateFileContent(String vfsFilePath) throws IOException {
+        // renamed or deleted since the caller found it
+        if (chunkIndex.get(vfsFilePath) == null) {
+            return;
+        }
+        VFSFileStat stat = fileStats.get(vfsFilePath);
+        try (VFSInputStream inputStream = readFileContent(vfsFilePath)) {
+            long[] contentOffset = {0};
+            replaceFileContent(
+                    vfsFilePath,
+                    extent -> {
+                        int bytesRead = Math.max(inputStream.read(contentOffset[0], ByteBuffer.wrap(extent)), 0);
+                        contentOffset[0] += bytesRead;
+                        return bytesRead;
+                    },
+                    stat == null ? System.currentTimeMillis() : stat.getModificationTime()
+            );
+        }
+    }
 
-            storage.writeInt(additionalContent.length);
-            storage.write(additionalContent, 0, additionalContent.length);
+    /**
+     * @param filePaths files of the tree by id, records of other ids belong to deleted files
+     * @param records ordered by sequence, a replace or delete record drops the chunks before it
+     */
+    private static void readChunkIndex(
+            VFSChunkIndex chunkIndex,
+            Map<String, VFSFileStat> fileStats,
+            Map<Integer, String> filePaths,
+            List<SegmentRecord> records
+    ) {
+        for (SegmentRecord record : records) {
+            // an id given out after the tree was written must not be given out again
+            chunkIndex.setNextFileId(record.getFileId() + 1);
+            String filePath = filePaths.get(record.getFileId());
+            if (filePath == null) {
+                continue;
+            }
+            if (record.getType() == RECORD_DELETE) {
+                chunkIndex.remove(filePath);
+                fileStats.remove(filePath);
+                continue;
+            }
+            VFSFileStat stat = fileStats.get(filePath);
+            fileStats.put(filePath, record.getType() == RECORD_REPLACE
+                    ? VFSFileStat.replaced(
+                            stat,
+                            record.getContentLength(),
+                            record.getTimestamp(),
+                            record.getSequence(),
+                            record.getChecksum()
+                    )
+                    : VFSFileStat.appended(
+                            stat,
+                            record.getContentLength(),
+                            record.getTimestamp(),
+                            record.getSequence(),
+                            record.getChecksum()
+                    )
+            );
+            if (record.getType() == RECORD_REPLACE) {
+                chunkIndex.replace(filePath, record.getAddress(), record.getContentLength());
+            } else {
+                chunkIndex.append(filePath, record.getAddress(), record.getContentLength());
+            }
         }
     }
 
-    private static void readFileContentPositionMap(
-            Map<String, List<Long>> fileContentChunkPositions,
-            RandomAccessFile storage
-    ) throws IOException, ClassNotFoundException {
-        long endPos = storage.length();
-        while (storage.getChannel().position() < endPos) {
-            String filePath = (String) readObject(storage);
-            long currentPosition = storage.getChannel().position();
-            fileContentChunkPositions
-                    .computeIfAbsent(filePath, k -> new ArrayList<>())
-                    .add(currentPosition);
-            int contentBytesCount = storage.readInt();
-            byte[] fileContentIgnored = new byte[contentBytesCount];
-            storage.read(fileContentIgnored, 0, contentBytesCount);
+    private static class InlineContent {
+        private final ChunkList chunkList;
+        private final byte[] content;
+
+        private InlineContent(ChunkList chunkList, byte[] content) {
+            this.chunkList = chunkList;
+            this.content = content;
         }
     }
 
+    private static class AppendBuffer {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        // of the buffered content, stats combine it with the checksum of the written content
+        private int checksum;
+        private long firstAppendTime;
+        private long lastAppendTime;
+        // of the last background flush, not reported yet
+        private IOException flushError;
+
+        private void reset() {
+            content.reset();
+            checksum = 0;
+        }
+    }
 }
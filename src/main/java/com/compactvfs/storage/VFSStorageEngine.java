@@ -0,0 +1,67 @@
+package com.compactvfs.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.compactvfs.metrics.VFSMetrics;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFileStat;
+
+/**
+ * Storage of the tree and the file contents behind a VFS. The VFS takes the path locks,
+ * so an engine sees at most one writer of a file and no readers of a file being renamed or deleted.
+ * {@link VFSStorageDescriptor} keeps the segment format on disk, {@link VFSMemoryStorage} keeps everything off-heap.
+ * Snapshots, scrub, seal, shared readers and compaction work on segments and need the descriptor
+ */
+public interface VFSStorageEngine {
+    /**
+     * @throws IOException if the file has no content
+     */
+    VFSInputStream readFileContent(String vfsFilePath) throws IOException;
+
+    void writeNewFileContentInTheEnd(String vfsFilePath, byte[] newContent) throws IOException;
+
+    /**
+     * @return count of written bytes
+     */
+    long writeNewFileContentFrom(String vfsFilePath, InputStream newContent) throws IOException;
+
+    /**
+     * Creates the content of a file without one
+     */
+    void writeBytesToTheEndOfFile(String vfsFilePath, byte[] additionalContent) throws IOException;
+
+    void deleteFileContent(String vfsFilePath) throws IOException;
+
+    /**
+     * Moves the content to the new path, caller persists the tree after it
+     */
+    void renameFile(String oldVfsFilePath, String newVfsFilePath);
+
+    /**
+     * Persists the tree, called after every structural change
+     */
+    void rebuildDfsTree(VFSDirectory vfsDirectory) throws IOException;
+
+    /**
+     * @return the tree last passed to {@link #rebuildDfsTree}, to open a VFS again over the stored contents
+     */
+    VFSDirectory loadTree() throws IOException;
+
+    /**
+     * @return null if the file has no content
+     */
+    VFSFileStat stat(String vfsFilePath);
+
+    /**
+     * @return size of the ranges of parallel reads
+     */
+    int getExtentBytes();
+
+    /**
+     * @return counters of the VFS over the engine, storage failures found on load or in the background are counted here
+     */
+    VFSMetrics getMetrics();
+
+    void clearStorage() throws IOException;
+}
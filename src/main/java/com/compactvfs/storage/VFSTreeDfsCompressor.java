@@ -1,30 +1,49 @@
 package com.compactvfs.storage;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
 
+import com.compactvfs.model.VFSCompactTree;
 import com.compactvfs.model.VFSDirectory;
 import com.compactvfs.model.VFSFile;
 import org.apache.commons.lang3.SerializationUtils;
 
+/**
+ * Every file path is followed by the id of the file, the id keys its records in the segments.
+ * Fields are written field by field, pass buffered streams: a RandomAccessFile makes a syscall per field
+ */
 public class VFSTreeDfsCompressor {
+    public static final int NO_FILE_ID = VFSCompactTree.NO_FILE_ID;
 
-    public static int compress(RandomAccessFile out, VFSDirectory rootDirectory) throws IOException {
+    public static int compress(DataOutput out, VFSDirectory rootDirectory) throws IOException {
+        return compress(out, rootDirectory, filePath -> NO_FILE_ID);
+    }
+
+    public static int compress(
+            DataOutput out,
+            VFSDirectory rootDirectory,
+            ToIntFunction<String> fileIdOf
+    ) throws IOException {
         int bytesCnt = 0;
         bytesCnt += writeObject(out, rootDirectory.getPath());
         out.writeInt(rootDirectory.getSubFiles().size());
         bytesCnt += Integer.BYTES;
         for (VFSFile file : rootDirectory.getSubFiles()) {
             bytesCnt += writeObject(out, file.getPath());
+            out.writeInt(fileIdOf.applyAsInt(file.getPath()));
+            bytesCnt += Integer.BYTES;
         }
         out.writeInt(rootDirectory.getSubDirectories().size());
         bytesCnt += Integer.BYTES;
         for (VFSDirectory directory : rootDirectory.getSubDirectories()) {
-            bytesCnt += compress(out, directory);
+            bytesCnt += compress(out, directory, fileIdOf);
         }
         return bytesCnt;
     }
@@ -34,7 +53,7 @@ public class VFSTreeDfsCompressor {
         bytesCnt += bytesCount(rootDirectory.getPath());
         bytesCnt += Integer.BYTES;
         for (VFSFile file : rootDirectory.getSubFiles()) {
-            bytesCnt += bytesCount(file.getPath());
+            bytesCnt += bytesCount(file.getPath()) + Integer.BYTES;
         }
         bytesCnt += Integer.BYTES;
         for (VFSDirectory directory : rootDirectory.getSubDirectories()) {
@@ -43,26 +62,64 @@ public class VFSTreeDfsCompressor {
         return bytesCnt;
     }
 
-    public static VFSDirectory decompress(RandomAccessFile in) throws IOException, ClassNotFoundException {
+    public static VFSDirectory decompress(DataInput in) throws IOException, ClassNotFoundException {
+        return decompress(in, (filePath, fileId) -> {});
+    }
+
+    /**
+     * @param onFileId gets every file path with its id, {@link #NO_FILE_ID} if it was written without one
+     */
+    public static VFSDirectory decompress(
+            DataInput in,
+            ObjIntConsumer<String> onFileId
+    ) throws IOException, ClassNotFoundException {
         String rootDirectoryPath = (String) readObject(in);
         int filesCount = in.readInt();
         List<VFSFile> files = new ArrayList<>();
         for (int i = 0; i < filesCount; i++) {
             String filePath = (String) readObject(in);
+            onFileId.accept(filePath, in.readInt());
             files.add(new VFSFile(filePath));
         }
         int dirsCount = in.readInt();
         List<VFSDirectory> directories = new ArrayList<>();
         for (int i = 0; i < dirsCount; i++) {
-            directories.add(decompress(in));
+            directories.add(decompress(in, onFileId));
         }
         return new VFSDirectory(rootDirectoryPath, new TreeSet<>(directories), new TreeSet<>(files));
     }
 
+    /**
+     * Reads the tree without node objects, see {@link VFSCompactTree}
+     */
+    public static VFSCompactTree decompressCompact(DataInput in) throws IOException {
+        String rootDirectoryPath = (String) readObject(in);
+        VFSCompactTree.Builder builder = VFSCompactTree.builder(rootDirectoryPath);
+        decompressChildren(in, builder, VFSCompactTree.ROOT);
+        return builder.build();
+    }
+
+    private static void decompressChildren(DataInput in, VFSCompactTree.Builder builder, int node) throws IOException {
+        int filesCount = in.readInt();
+        for (int i = 0; i < filesCount; i++) {
+            String filePath = (String) readObject(in);
+            builder.addFile(node, nameOf(filePath), in.readInt());
+        }
+        int dirsCount = in.readInt();
+        for (int i = 0; i < dirsCount; i++) {
+            String directoryPath = (String) readObject(in);
+            decompressChildren(in, builder, builder.addDirectory(node, nameOf(directoryPath)));
+        }
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
     /**
      * @return written bytes count
      */
-    public static <T extends Serializable> int writeObject(RandomAccessFile out, T object) throws IOException {
+    public static <T extends Serializable> int writeObject(DataOutput out, T object) throws IOException {
         byte[] data = SerializationUtils.serialize(object);
         out.writeInt(data.length);
         out.write(data, 0, data.length);
@@ -74,10 +131,13 @@ public class VFSTreeDfsCompressor {
         return Integer.BYTES + data.length;
     }
 
-    public static Object readObject(RandomAccessFile in) throws IOException {
+    public static Object readObject(DataInput in) throws IOException {
         int objectBytesCount = in.readInt();
+        if (objectBytesCount < 0) {
+            throw new IOException("Negative object bytes count: " + objectBytesCount);
+        }
         byte[] data = new byte[objectBytesCount];
-        in.read(data, 0, objectBytesCount);
+        in.readFully(data, 0, objectBytesCount);
         return SerializationUtils.deserialize(data);
     }
 }
@@ -0,0 +1,451 @@
+package com.compactvfs.workload;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.compactvfs.metrics.VFSMetrics;
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.storage.VFSMemoryStorage;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static com.compactvfs.model.VFSDirectory.emptyWithPath;
+import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
+
+/**
+ * Runs a mix of reads, appends and file additions from many threads against one VFS.
+ * Every worker draws its operations from its own random seeded by the workload seed, so a run with the same
+ * settings issues the same operations, only the interleaving differs. Added files are read and appended
+ * only by the worker that added them. Added files are named after the run, a run over a tree kept from
+ * an earlier run adds new files instead of failing on the names of the earlier ones.
+ *
+ * Usage: {@code java com.compactvfs.workload.VFSWorkload dir=__storage/workload threads=8 mode=VIRTUAL out=result.txt}
+ */
+public class VFSWorkload {
+    private static final Pattern ADDED_FILE_NAME = Pattern.compile("r(\\d+)_w\\d+_\\d+\\.bin");
+
+    public enum ThreadMode {
+        PLATFORM,
+        /**
+         * Needs a runtime with virtual threads, the build targets 17 so they are looked up reflectively
+         */
+        VIRTUAL
+    }
+
+    private int threads = 4;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private long warmupOperationsPerThread = 1_000;
+    private long operationsPerThread = 10_000;
+    private int readPercent = 90;
+    private int appendPercent = 8;
+    private int addFilePercent = 2;
+    private int treeDepth = 5;
+    private int treeFanout = 3;
+    private int filesPerDirectory = 4;
+    private int contentBytes = 1024;
+    private int appendBytes = 64;
+    private long seed = 42;
+
+    public VFSWorkload threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public VFSWorkload threadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+        return this;
+    }
+
+    public VFSWorkload operations(long warmupOperationsPerThread, long operationsPerThread) {
+        this.warmupOperationsPerThread = warmupOperationsPerThread;
+        this.operationsPerThread = operationsPerThread;
+        return this;
+    }
+
+    /**
+     * Percents of reads, appends and file additions must sum up to 100
+     */
+    public VFSWorkload mix(int readPercent, int appendPercent, int addFilePercent) {
+        if (readPercent < 0 || appendPercent < 0 || addFilePercent < 0
+                || readPercent + appendPercent + addFilePercent != 100) {
+            throw new IllegalArgumentException(
+                    "Mix must sum up to 100: " + readPercent + "/" + appendPercent + "/" + addFilePercent);
+        }
+        this.readPercent = readPercent;
+        this.appendPercent = appendPercent;
+        this.addFilePercent = addFilePercent;
+        return this;
+    }
+
+    /**
+     * Every directory above treeDepth has treeFanout subdirectories, every directory has filesPerDirectory files
+     */
+    public VFSWorkload tree(int treeDepth, int treeFanout, int filesPerDirectory) {
+        this.treeDepth = treeDepth;
+        this.treeFanout = treeFanout;
+        this.filesPerDirectory = filesPerDirectory;
+        return this;
+    }
+
+    public VFSWorkload contentBytes(int contentBytes, int appendBytes) {
+        this.contentBytes = contentBytes;
+        this.appendBytes = appendBytes;
+        return this;
+    }
+
+    public VFSWorkload seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Creates the synthetic tree in a new descriptor and writes initial contents
+     */
+    public VFS generateTree(String rootName, Path descriptorDirPath) throws IOException {
+        VFSDirectory rootDirectory = generateDirectories(rootName);
+        return writeContents(new VFS(rootDirectory, initTreeFrom(rootDirectory, descriptorDirPath)));
+    }
+
+    /**
+     * Same tree in off-heap memory, runs measure the locking of the VFS without disk I/O
+     */
+    public VFS generateInMemoryTree(String rootName) throws IOException {
+        VFSDirectory rootDirectory = generateDirectories(rootName);
+        return writeContents(new VFS(rootDirectory, new VFSMemoryStorage(rootDirectory)));
+    }
+
+    private VFSDirectory generateDirectories(String rootName) {
+        VFSDirectory rootDirectory = emptyWithPath(VFS_PREFIX_PATH + rootName);
+        generateDirectory(rootDirectory, 0);
+        return rootDirectory;
+    }
+
+    private VFS writeContents(VFS vfs) throws IOException {
+        Random random = new Random(seed);
+        byte[] content = new byte[contentBytes];
+        for (VFSFile vfsFile : vfs.getRootVFSDirectory().getAllSubFilesRecursive()) {
+            random.nextBytes(content);
+            vfs.writeBytesToNewFile(vfsFile, content);
+        }
+        return vfs;
+    }
+
+    private void generateDirectory(VFSDirectory directory, int depth) {
+        for (int i = 0; i < filesPerDirectory; i++) {
+            directory.addSubFile(new VFSFile(directory.getPath() + "/file" + i + ".bin"));
+        }
+        if (depth == treeDepth) {
+            return;
+        }
+        for (int i = 0; i < treeFanout; i++) {
+            VFSDirectory subDirectory = emptyWithPath(directory.getPath() + "/dir" + i);
+            directory.addSubDirectory(subDirectory);
+            generateDirectory(subDirectory, depth + 1);
+        }
+    }
+
+    /**
+     * Warms up, resets the metrics of the VFS and runs the measured operations
+     */
+    public VFSWorkloadResult run(VFS vfs) throws IOException {
+        List<VFSFile> files = vfs.getRootVFSDirectory().getAllSubFilesRecursive();
+        List<VFSDirectory> directories = new ArrayList<>();
+        collectDirectories(vfs.getRootVFSDirectory(), directories);
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("Workload needs files to read: " + vfs.getRootVFSDirectory().getPath());
+        }
+
+        int runId = nextRunId(files);
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(runId, i, vfs, files, directories);
+        }
+        runWorkers(workers, true);
+        vfs.getMetrics().reset();
+
+        long start = System.nanoTime();
+        runWorkers(workers, false);
+        long elapsedNanos = System.nanoTime() - start;
+
+        VFSMetrics metrics = vfs.getMetrics();
+        return new VFSWorkloadResult(
+                settings(vfs),
+                elapsedNanos,
+                mergeLatencies(workers, Worker.READ),
+                mergeLatencies(workers, Worker.APPEND),
+                mergeLatencies(workers, Worker.ADD_FILE),
+                sumFailed(workers),
+                metrics.getReadLockTimeouts() + metrics.getWriteLockTimeouts()
+        );
+    }
+
+    private static void collectDirectories(VFSDirectory directory, List<VFSDirectory> directories) {
+        directories.add(directory);
+        for (VFSDirectory subDirectory : directory.getSubDirectories()) {
+            collectDirectories(subDirectory, directories);
+        }
+    }
+
+    private void runWorkers(Worker[] workers, boolean warmup) throws IOException {
+        ExecutorService executor = newExecutor();
+        try {
+            CountDownLatch startLatch = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (Worker worker : workers) {
+                futures.add(executor.submit(() -> {
+                    startLatch.await();
+                    worker.run(warmup ? warmupOperationsPerThread : operationsPerThread, !warmup);
+                    return null;
+                }));
+            }
+            startLatch.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Workload interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Workload failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        if (threadMode == ThreadMode.PLATFORM) {
+            return Executors.newFixedThreadPool(threads);
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            throw new IllegalStateException("Virtual threads are not supported by " + Runtime.version(), ex);
+        }
+    }
+
+    private static long[] mergeLatencies(Worker[] workers, int operation) {
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.latenciesCount[operation];
+        }
+        long[] merged = new long[count];
+        int position = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies[operation], 0, merged, position, worker.latenciesCount[operation]);
+            position += worker.latenciesCount[operation];
+        }
+        return merged;
+    }
+
+    private static long sumFailed(Worker[] workers) {
+        long failed = 0;
+        for (Worker worker : workers) {
+            failed += worker.failed;
+        }
+        return failed;
+    }
+
+    /**
+     * Settings in a stable order, written to the result file so runs can be matched
+     */
+    private List<String> settings(VFS vfs) {
+        return List.of(
+                "threads=" + threads,
+                "threadMode=" + threadMode,
+                "warmupOperationsPerThread=" + warmupOperationsPerThread,
+                "operationsPerThread=" + operationsPerThread,
+                "mix=" + readPercent + "/" + appendPercent + "/" + addFilePercent,
+                "tree=" + treeDepth + "/" + treeFanout + "/" + filesPerDirectory,
+                "contentBytes=" + contentBytes,
+                "appendBytes=" + appendBytes,
+                "seed=" + seed,
+                "storage=" + vfs.getStorageEngine().getClass().getSimpleName(),
+                "java=" + Runtime.version()
+        );
+    }
+
+    // one more than the largest run id among the files added by earlier runs
+    private static int nextRunId(List<VFSFile> files) {
+        int runId = 0;
+        for (VFSFile file : files) {
+            Matcher matcher = ADDED_FILE_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                runId = Math.max(runId, Integer.parseInt(matcher.group(1)) + 1);
+            }
+        }
+        return runId;
+    }
+
+    private class Worker {
+        private static final int READ = 0;
+        private static final int APPEND = 1;
+        private static final int ADD_FILE = 2;
+
+        private final int runId;
+        private final int index;
+        private final VFS vfs;
+        private final List<VFSFile> sharedFiles;
+        private final List<VFSDirectory> directories;
+        private final List<VFSFile> ownFiles = new ArrayList<>();
+        private final Random random;
+        private final byte[] appendContent;
+        // latencies are kept exactly, the run has a known number of operations
+        private final long[][] latencies = new long[3][];
+        private final int[] latenciesCount = new int[3];
+        private long failed;
+
+        private Worker(int runId, int index, VFS vfs, List<VFSFile> sharedFiles, List<VFSDirectory> directories) {
+            this.runId = runId;
+            this.index = index;
+            this.vfs = vfs;
+            this.sharedFiles = sharedFiles;
+            this.directories = directories;
+            this.random = new Random(seed * 31 + index);
+            this.appendContent = new byte[appendBytes];
+            random.nextBytes(appendContent);
+        }
+
+        private void run(long operations, boolean measured) throws IOException {
+            if (measured) {
+                for (int i = 0; i < 3; i++) {
+                    latencies[i] = new long[16];
+                    latenciesCount[i] = 0;
+                }
+                failed = 0;
+            }
+            for (long i = 0; i < operations; i++) {
+                int dice = random.nextInt(100);
+                int operation = dice < readPercent ? READ : dice < readPercent + appendPercent ? APPEND : ADD_FILE;
+                long start = System.nanoTime();
+                boolean success = execute(operation);
+                long latency = System.nanoTime() - start;
+                if (measured) {
+                    record(operation, latency);
+                    if (!success) {
+                        failed++;
+                    }
+                }
+            }
+        }
+
+        private boolean execute(int operation) throws IOException {
+            switch (operation) {
+                case READ:
+                    return vfs.readBytesFrom(pickFile()) != null;
+                case APPEND:
+                    return vfs.writeBytesToTheEndOfFile(pickFile(), appendContent);
+                default:
+                    VFSDirectory directory = directories.get(random.nextInt(directories.size()));
+                    VFSFile vfsFile = new VFSFile(directory.getPath() + "/r" + runId + "_w" + index + "_" + ownFiles.size() + ".bin");
+                    if (!vfs.addFile(vfsFile.getPath(), appendContent)) {
+                        return false;
+                    }
+                    ownFiles.add(vfsFile);
+                    return true;
+            }
+        }
+
+        private VFSFile pickFile() {
+            int i = random.nextInt(sharedFiles.size() + ownFiles.size());
+            return i < sharedFiles.size() ? sharedFiles.get(i) : ownFiles.get(i - sharedFiles.size());
+        }
+
+        private void record(int operation, long latency) {
+            if (latenciesCount[operation] == latencies[operation].length) {
+                long[] grown = new long[latencies[operation].length * 2];
+                System.arraycopy(latencies[operation], 0, grown, 0, latenciesCount[operation]);
+                latencies[operation] = grown;
+            }
+            latencies[operation][latenciesCount[operation]++] = latency;
+        }
+    }
+
+    /**
+     * Arguments are key=value: dir (or "memory" for off-heap storage), root, threads, mode, warmup, ops, mix (90/8/2), tree (depth/fanout/files),
+     * content, append, seed and out. The result is printed and written to out if given
+     */
+    public static void main(String[] args) throws IOException {
+        VFSWorkload workload = new VFSWorkload();
+        Path descriptorDirPath = Paths.get(System.getProperty("user.dir"), "__storage/workload");
+        String rootName = "workloadFS";
+        Path outPath = null;
+        boolean inMemory = false;
+        long warmup = workload.warmupOperationsPerThread;
+        long ops = workload.operationsPerThread;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("Can't parse argument, expected key=value: " + arg);
+                return;
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            String[] parts = value.split("/");
+            switch (key) {
+                case "dir":
+                    inMemory = value.equals("memory");
+                    descriptorDirPath = inMemory ? null : Paths.get(value);
+                    break;
+                case "root":
+                    rootName = value;
+                    break;
+                case "threads":
+                    workload.threads(Integer.parseInt(value));
+                    break;
+                case "mode":
+                    workload.threadMode(ThreadMode.valueOf(value));
+                    break;
+                case "warmup":
+                    warmup = Long.parseLong(value);
+                    break;
+                case "ops":
+                    ops = Long.parseLong(value);
+                    break;
+                case "mix":
+                    workload.mix(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    break;
+                case "tree":
+                    workload.tree(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    break;
+                case "content":
+                    workload.contentBytes(Integer.parseInt(value), workload.appendBytes);
+                    break;
+                case "append":
+                    workload.contentBytes(workload.contentBytes, Integer.parseInt(value));
+                    break;
+                case "seed":
+                    workload.seed(Long.parseLong(value));
+                    break;
+                case "out":
+                    outPath = Paths.get(value);
+                    break;
+                default:
+                    System.out.println("Can't recognize argument: " + key);
+                    return;
+            }
+        }
+        workload.operations(warmup, ops);
+        VFS vfs = inMemory ? workload.generateInMemoryTree(rootName) : workload.generateTree(rootName, descriptorDirPath);
+        VFSWorkloadResult result = workload.run(vfs);
+        System.out.println(result);
+        if (outPath != null) {
+            result.writeTo(outPath);
+        }
+    }
+}
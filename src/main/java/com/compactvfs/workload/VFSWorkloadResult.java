@@ -0,0 +1,147 @@
+package com.compactvfs.workload;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measured part of a workload run, latencies are exact and in nanoseconds.
+ * The result file is key=value lines in a fixed order: the settings first, then the measurements,
+ * so two files of the same settings can be compared line by line
+ */
+public class VFSWorkloadResult {
+    private final List<String> settings;
+    private final long elapsedNanos;
+    private final long[] readLatencies;
+    private final long[] appendLatencies;
+    private final long[] addFileLatencies;
+    private final long failedOperations;
+    private final long lockTimeouts;
+
+    VFSWorkloadResult(
+            List<String> settings,
+            long elapsedNanos,
+            long[] readLatencies,
+            long[] appendLatencies,
+            long[] addFileLatencies,
+            long failedOperations,
+            long lockTimeouts
+    ) {
+        this.settings = settings;
+        this.elapsedNanos = elapsedNanos;
+        this.readLatencies = sorted(readLatencies);
+        this.appendLatencies = sorted(appendLatencies);
+        this.addFileLatencies = sorted(addFileLatencies);
+        this.failedOperations = failedOperations;
+        this.lockTimeouts = lockTimeouts;
+    }
+
+    private static long[] sorted(long[] latencies) {
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    public long getOperations() {
+        return readLatencies.length + appendLatencies.length + addFileLatencies.length;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getThroughputPerSecond() {
+        return elapsedNanos == 0 ? 0 : getOperations() * 1e9 / elapsedNanos;
+    }
+
+    public long getFailedOperations() {
+        return failedOperations;
+    }
+
+    /**
+     * Lock timeouts counted by the VFS metrics, an operation may time out on several attempts
+     */
+    public long getLockTimeouts() {
+        return lockTimeouts;
+    }
+
+    public double getLockTimeoutRate() {
+        long operations = getOperations();
+        return operations == 0 ? 0 : (double) lockTimeouts / operations;
+    }
+
+    public long getReadsCount() {
+        return readLatencies.length;
+    }
+
+    public long getAppendsCount() {
+        return appendLatencies.length;
+    }
+
+    public long getAddFilesCount() {
+        return addFileLatencies.length;
+    }
+
+    /**
+     * @param quantile in [0, 1]
+     */
+    public long getReadLatency(double quantile) {
+        return quantileOf(readLatencies, quantile);
+    }
+
+    public long getAppendLatency(double quantile) {
+        return quantileOf(appendLatencies, quantile);
+    }
+
+    public long getAddFileLatency(double quantile) {
+        return quantileOf(addFileLatencies, quantile);
+    }
+
+    // nearest rank
+    private static long quantileOf(long[] sortedLatencies, double quantile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sortedLatencies.length);
+        return sortedLatencies[Math.max(0, Math.min(sortedLatencies.length, rank) - 1)];
+    }
+
+    public List<String> toLines() {
+        List<String> lines = new ArrayList<>(settings);
+        lines.add("operations=" + getOperations());
+        lines.add("elapsedMs=" + elapsedNanos / 1_000_000);
+        lines.add("throughputPerSecond=" + String.format(Locale.ROOT, "%.1f", getThroughputPerSecond()));
+        lines.add("failedOperations=" + failedOperations);
+        lines.add("lockTimeouts=" + lockTimeouts);
+        lines.add("lockTimeoutRate=" + String.format(Locale.ROOT, "%.6f", getLockTimeoutRate()));
+        addLatencyLines(lines, "read", readLatencies);
+        addLatencyLines(lines, "append", appendLatencies);
+        addLatencyLines(lines, "addFile", addFileLatencies);
+        return lines;
+    }
+
+    private static void addLatencyLines(List<String> lines, String operation, long[] sortedLatencies) {
+        lines.add(operation + ".count=" + sortedLatencies.length);
+        lines.add(operation + ".p50Ns=" + quantileOf(sortedLatencies, 0.5));
+        lines.add(operation + ".p99Ns=" + quantileOf(sortedLatencies, 0.99));
+        lines.add(operation + ".p999Ns=" + quantileOf(sortedLatencies, 0.999));
+        lines.add(operation + ".maxNs=" + quantileOf(sortedLatencies, 1));
+    }
+
+    public void writeTo(Path resultPath) throws IOException {
+        Path parent = resultPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(resultPath, toLines(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return String.join("\n", toLines());
+    }
+}
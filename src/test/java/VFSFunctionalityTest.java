@@ -2,7 +2,11 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.compactvfs.model.VFS;
@@ -21,6 +25,7 @@ import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
 import static com.compactvfs.utils.DrawUtils.toTreeString;
 import static java.util.concurrent.CompletableFuture.runAsync;
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
 
 @RunWith(JUnitParamsRunner.class)
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -212,6 +217,133 @@ public class VFSFunctionalityTest {
         System.out.println(toTreeString(vfs.getRootVFSDirectory()));
     }
 
+    @Test
+    @Parameters(method = "pathProvider")
+    public void test8_concurrentReadsSeeWholeWrites(Path fsPath, Path descriptorDirPath) throws IOException {
+        VFS vfs = FSAdapter.fromFS(fsPath, descriptorDirPath);
+        VFSFile simpleFSFile1 = vfs.getFileByPath(VFS_PREFIX_PATH + "nestedFS/simpleFS/file1.txt");
+        String contentA = "a".repeat(1000);
+        String contentB = "b".repeat(1000);
+        vfs.writeBytesToNewFile(simpleFSFile1, contentA.getBytes(StandardCharsets.UTF_8));
+
+        Runnable rewrite = () -> {
+            try {
+                for (int i = 0; i < 100; i++) {
+                    String content = i % 2 == 0 ? contentB : contentA;
+                    vfs.writeBytesToNewFile(simpleFSFile1, content.getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+        Runnable read = () -> {
+            try {
+                for (int i = 0; i < 100; i++) {
+                    byte[] content = vfs.readBytesFrom(simpleFSFile1);
+                    if (content != null) {
+                        String contentString = new String(content, StandardCharsets.UTF_8);
+                        assertTrue(contentString.equals(contentA) || contentString.equals(contentB));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+
+        final int THREADS = Runtime.getRuntime().availableProcessors();
+        CompletableFuture.allOf(
+                Stream.concat(
+                        Stream.generate(() -> runAsync(read)).limit(THREADS),
+                        Stream.of(runAsync(rewrite))
+                ).toArray(CompletableFuture[]::new)
+        ).join();
+        System.out.println(vfs.getMetrics());
+    }
+
+    @Test
+    @Parameters(method = "pathProvider")
+    public void test9_pagedListingAndParallelWalk(Path fsPath, Path descriptorDirPath) throws IOException {
+        VFS vfs = FSAdapter.fromFS(fsPath, descriptorDirPath);
+        VFSDirectory simpleFS2 = vfs.getDirByPath(VFS_PREFIX_PATH + "nestedFS/simpleFS2");
+
+        List<VFSFile> firstPage = simpleFS2.listSubFiles(null, 1);
+        List<VFSFile> secondPage = simpleFS2.listSubFiles(firstPage.get(0).getPath(), 1);
+        assertEquals(VFS_PREFIX_PATH + "nestedFS/simpleFS2/file1.txt", firstPage.get(0).getPath());
+        assertEquals(VFS_PREFIX_PATH + "nestedFS/simpleFS2/file2.txt", secondPage.get(0).getPath());
+
+        VFSDirectory root = vfs.getRootVFSDirectory();
+        Set<VFSFile> walked = root.walkFiles(true).collect(Collectors.toSet());
+        assertEquals(new HashSet<>(root.getAllSubFilesRecursive()), walked);
+        assertEquals(4, walked.size());
+    }
+
+    @Test
+    @Parameters(method = "pathProvider")
+    public void test10_findByGlobAndPrefix(Path fsPath, Path descriptorDirPath) throws IOException {
+        VFS vfs = FSAdapter.fromFS(fsPath, descriptorDirPath);
+        vfs.addFile(VFS_PREFIX_PATH + "nestedFS/simpleFS2/app.log", "log".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/simpleFS2/app.log"),
+                paths(vfs.find("**/*.log"))
+        );
+        assertEquals(
+                List.of(
+                        VFS_PREFIX_PATH + "nestedFS/file3.txt",
+                        VFS_PREFIX_PATH + "nestedFS/simpleFS/file1.txt",
+                        VFS_PREFIX_PATH + "nestedFS/simpleFS2/file1.txt",
+                        VFS_PREFIX_PATH + "nestedFS/simpleFS2/file2.txt"
+                ),
+                paths(vfs.find("**/*.txt"))
+        );
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/simpleFS2/file2.txt"),
+                paths(vfs.find(VFS_PREFIX_PATH + "nestedFS/simpleFS?/file[2-3].{txt,log}"))
+        );
+        // dots inside groups don't start a literal extension
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/file3.txt", VFS_PREFIX_PATH + "nestedFS/simpleFS2/app.log"),
+                paths(vfs.find("**/{app.log,file3.txt}"))
+        );
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/file3.txt"),
+                paths(vfs.find("{app.log,file3.txt}"))
+        );
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/simpleFS2/app.log"),
+                paths(vfs.find("simpleFS2/app[c.]log"))
+        );
+        // class chars are literal, "&&" doesn't intersect and '[' doesn't nest
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/simpleFS2/file1.txt", VFS_PREFIX_PATH + "nestedFS/simpleFS2/file2.txt"),
+                paths(vfs.find("simpleFS2/file[1&&2].txt"))
+        );
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/simpleFS2/file1.txt"),
+                paths(vfs.find("simpleFS2/file[[1].txt"))
+        );
+        // '*' matches no chars, a dot-file has the extension too
+        vfs.addFile(VFS_PREFIX_PATH + "nestedFS/simpleFS/.log", "hidden".getBytes(StandardCharsets.UTF_8));
+        assertEquals(
+                List.of(VFS_PREFIX_PATH + "nestedFS/simpleFS/.log", VFS_PREFIX_PATH + "nestedFS/simpleFS2/app.log"),
+                paths(vfs.find("**/*.log"))
+        );
+        assertTrue(vfs.deleteFile(VFS_PREFIX_PATH + "nestedFS/simpleFS/.log"));
+        assertEquals(3, vfs.listPrefix(VFS_PREFIX_PATH + "nestedFS/simpleFS2/").size());
+
+        assertTrue(vfs.deleteFile(VFS_PREFIX_PATH + "nestedFS/simpleFS2/app.log"));
+        assertTrue(vfs.find("**/*.log").isEmpty());
+        assertEquals(2, vfs.listPrefix(VFS_PREFIX_PATH + "nestedFS/simpleFS2/").size());
+
+        VFS loadedVfs = VFSStorageDescriptor.load(Paths.get(descriptorDirPath.toString(), "descriptor_nestedFS.ser"));
+        assertTrue(loadedVfs.find("**/*.log").isEmpty());
+        assertEquals(null, loadedVfs.getFilesContentBytePositions().get(VFS_PREFIX_PATH + "nestedFS/simpleFS2/app.log"));
+    }
+
+    private static List<String> paths(List<VFSFile> files) {
+        return files.stream().map(VFSFile::getPath).collect(Collectors.toList());
+    }
+
     @SuppressWarnings("unused")
     Object[][] pathProvider() {
         Path simpleFS = Paths.get(BASE_PATH, "src/test/filesystems/nestedFS");
@@ -0,0 +1,73 @@
+package metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.compactvfs.metrics.LatencyHistogram;
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.storage.FSAdapter;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static junit.framework.TestCase.assertEquals;
+
+@RunWith(JUnitParamsRunner.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSMetricsTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+
+    @Test
+    public void test1_histogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(63, histogram.getQuantileUpperBound(0.5));
+        assertEquals(100, histogram.getQuantileUpperBound(0.99));
+    }
+
+    @Test
+    @Parameters(method = "pathProvider")
+    public void test2_readsAndWritesAreCounted(Path fsPath, Path descriptorDirPath) throws IOException {
+        VFS vfs = FSAdapter.fromFS(fsPath, descriptorDirPath);
+        // chunks are counted on reads from the segments
+        vfs.getStorageDescriptor().setInlineBytes(0);
+        VFSFile file1 = vfs.getFileByPath(VFS_PREFIX_PATH + "simpleFS2/file1.txt");
+        byte[] appended = "appended".getBytes(StandardCharsets.UTF_8);
+
+        vfs.writeBytesToTheEndOfFile(file1, appended);
+        byte[] content = vfs.readBytesFrom(file1);
+
+        assertEquals(1, vfs.getMetrics().getWrites());
+        assertEquals(appended.length, vfs.getMetrics().getBytesWritten());
+        assertEquals(1, vfs.getMetrics().getReads());
+        assertEquals(content.length, vfs.getMetrics().getBytesRead());
+        assertEquals(2, vfs.getMetrics().getChunksPerRead().getMax());
+        assertEquals(1, vfs.getMetrics().getLockWait().getCount());
+        assertEquals(1, vfs.getMetrics().getOptimisticReads());
+        System.out.println(vfs.getMetrics());
+    }
+
+    @SuppressWarnings("unused")
+    Object[][] pathProvider() {
+        Path simpleFS2 = Paths.get(BASE_PATH, "src/test/filesystems/simpleFS2");
+        Path descriptorDirPath = Paths.get(BASE_PATH, "__storage/descriptors");
+
+        return new Object[][]{
+                {
+                        simpleFS2,
+                        descriptorDirPath
+                }
+        };
+    }
+}
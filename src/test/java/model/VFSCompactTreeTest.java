@@ -0,0 +1,96 @@
+package model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSCompactTree;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.storage.VFSStorageDescriptor;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSCompactTreeTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+    private final Path descriptorDirPath = Paths.get(BASE_PATH, "__storage/compact");
+
+    private static final String ROOT = VFS_PREFIX_PATH + "compactFS";
+
+    @Test
+    public void test1_lookupsAndChildRangesMatchTree() {
+        VFSDirectory root = sampleTree();
+        VFSCompactTree tree = VFSCompactTree.of(root);
+
+        assertEquals(5, tree.getFilesCount());
+        assertEquals(9, tree.size());
+        assertTrue(tree.toVFSDirectory().compareStructure(root));
+
+        int logs = tree.nodeOf(ROOT + "/logs");
+        assertFalse(tree.isFile(logs));
+        assertEquals(3, tree.childrenCountOf(logs));
+        List<String> childNames = new ArrayList<>();
+        for (int child = tree.firstChildOf(logs); child < tree.firstChildOf(logs) + tree.childrenCountOf(logs); child++) {
+            childNames.add(tree.nameOf(child));
+            assertEquals(logs, tree.parentOf(child));
+        }
+        assertEquals(List.of("a.log", "b.log", "old"), childNames);
+
+        int oldLog = tree.nodeOf(ROOT + "/logs/old/a.log");
+        assertTrue(tree.isFile(oldLog));
+        assertEquals(ROOT + "/logs/old/a.log", tree.pathOf(oldLog));
+        assertEquals(VFSCompactTree.NO_NODE, tree.nodeOf(ROOT + "/logs/c.log"));
+        assertEquals(VFSCompactTree.NO_NODE, tree.nodeOf(ROOT + "/a.log/x"));
+        assertEquals(VFSCompactTree.NO_NODE, tree.nodeOf(VFS_PREFIX_PATH + "other/a.log"));
+        assertEquals(VFSCompactTree.ROOT, tree.nodeOf(ROOT));
+
+        List<String> filePaths = new ArrayList<>();
+        tree.forEachFilePath((filePath, node) -> {
+            filePaths.add(filePath);
+            assertEquals(node, tree.nodeOf(filePath));
+        });
+        assertEquals(5, filePaths.size());
+    }
+
+    @Test
+    public void test2_treeFileIsReadWithFileIds() throws IOException {
+        VFSDirectory root = sampleTree();
+        VFSStorageDescriptor descriptor = initTreeFrom(root, descriptorDirPath);
+        VFS vfs = new VFS(root, descriptor);
+        vfs.writeBytesToNewFile(vfs.getFileByPath(ROOT + "/logs/b.log"), "b".getBytes(StandardCharsets.UTF_8));
+
+        VFSCompactTree tree = VFSStorageDescriptor.readCompactTree(descriptorDirPath.resolve("descriptor_compactFS.ser"));
+        assertTrue(tree.toVFSDirectory().compareStructure(root));
+        int node = tree.nodeOf(ROOT + "/logs/b.log");
+        assertEquals(descriptor.getChunkIndex().fileIdOf(ROOT + "/logs/b.log"), tree.fileIdOf(node));
+        assertEquals(1, descriptor.getChunkIndex().getById(tree.fileIdOf(node)).size());
+        assertEquals("b", new String(vfs.readBytesFrom(new VFSFile(tree.pathOf(node))), StandardCharsets.UTF_8));
+    }
+
+    private static VFSDirectory sampleTree() {
+        VFSDirectory old = new VFSDirectory(ROOT + "/logs/old", Set.of(), Set.of(new VFSFile(ROOT + "/logs/old/a.log")));
+        VFSDirectory logs = new VFSDirectory(
+                ROOT + "/logs",
+                Set.of(old),
+                Set.of(new VFSFile(ROOT + "/logs/b.log"), new VFSFile(ROOT + "/logs/a.log"))
+        );
+        return new VFSDirectory(
+                ROOT,
+                Set.of(logs, VFSDirectory.emptyWithPath(ROOT + "/empty")),
+                Set.of(new VFSFile(ROOT + "/a.log"), new VFSFile(ROOT + "/readme.txt"))
+        );
+    }
+}
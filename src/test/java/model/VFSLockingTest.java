@@ -0,0 +1,156 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.model.VFSLockManager;
+import com.compactvfs.model.VFSLockManager.PathLock;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static com.compactvfs.model.VFSDirectory.emptyWithPath;
+import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSLockingTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+
+    @Test
+    public void test1_writesUnderMovedDirectoryFail() throws IOException {
+        String root = VFS_PREFIX_PATH + "lockingMoves";
+        VFS vfs = sampleVFS(root, "lockingMoves");
+        assertTrue(vfs.writeBytesToNewFile(new VFSFile(root + "/src/a.txt"), bytes("a")));
+        assertTrue(vfs.rename(root + "/src", root + "/lib"));
+        assertFalse(vfs.writeBytesToNewFile(new VFSFile(root + "/src/a.txt"), bytes("lost")));
+        assertFalse(vfs.writeBytesToTheEndOfFile(new VFSFile(root + "/src/a.txt"), bytes("lost")));
+        assertEquals(-1, vfs.writeStreamToNewFile(new VFSFile(root + "/src/a.txt"), new ByteArrayInputStream(bytes("lost"))));
+        assertFalse(vfs.addFile(root + "/src/b.txt", bytes("lost")));
+        long hash = vfs.getMerkleHash();
+        assertFalse(vfs.deleteFile(root + "/src/a.txt"));
+        assertFalse(vfs.deleteFile(root + "/missing/a.txt"));
+        assertEquals(hash, vfs.getMerkleHash());
+        assertTrue(vfs.rename(root + "/lib", root + "/src"));
+        assertEquals(Set.of(root + "/src/a.txt"), vfs.getFilesContentBytePositions().keySet());
+        assertEquals("a", new String(vfs.readBytesFrom(new VFSFile(root + "/src/a.txt")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test2_collidingStripesAreLockedOnce() throws IOException, InterruptedException {
+        // every node falls into the one stripe, StampedLock isn't reentrant, so a second take would time out
+        VFSLockManager lockManager = new VFSLockManager(1);
+        assertEquals(1, lockManager.getStripesCount());
+        String root = VFS_PREFIX_PATH + "lockingStripes";
+        VFS vfs = sampleVFS(root, "lockingStripes", lockManager);
+        List<VFSDirectory> dirsOnPath = vfs.findDirsFromRootToDir(root + "/src");
+        for (int i = 0; i < 2; i++) {
+            PathLock pathLock = lockManager.pathLock(dirsOnPath, true, root + "/src/a.txt", true);
+            assertTrue(pathLock.tryLock(100, 100));
+            pathLock.unlock();
+        }
+
+        assertTrue(vfs.writeBytesToNewFile(new VFSFile(root + "/src/a.txt"), bytes("a")));
+        assertTrue(vfs.rename(root + "/src", root + "/lib"));
+        assertTrue(vfs.rename(root + "/lib/a.txt", root + "/a.txt"));
+        assertTrue(vfs.writeBytesToTheEndOfFile(new VFSFile(root + "/a.txt"), bytes("b")));
+        assertEquals("ab", new String(vfs.readBytesFrom(new VFSFile(root + "/a.txt")), StandardCharsets.UTF_8));
+        assertEquals(0, vfs.getMetrics().getWriteLockTimeouts());
+    }
+
+    @Test
+    public void test3_locksInOppositeOrdersDontDeadlock() throws IOException, InterruptedException {
+        VFSLockManager lockManager = new VFSLockManager(4);
+        List<VFSDirectory> dirs = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            dirs.add(emptyWithPath(VFS_PREFIX_PATH + "lockingOrder/dir" + i));
+        }
+        List<VFSDirectory> reversedDirs = new ArrayList<>(dirs);
+        Collections.reverse(reversedDirs);
+        AtomicInteger failedLocks = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            List<VFSDirectory> lockedDirs = t % 2 == 0 ? dirs : reversedDirs;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    PathLock pathLock = lockManager.pathLock(lockedDirs, true, null, false);
+                    try {
+                        if (!pathLock.tryLock(5_000, 5_000)) {
+                            failedLocks.incrementAndGet();
+                            continue;
+                        }
+                    } catch (InterruptedException ex) {
+                        failedLocks.incrementAndGet();
+                        return;
+                    }
+                    pathLock.unlock();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failedLocks.get());
+
+        // renames across two directories in opposite directions take the stripes of both in the same order
+        String root = VFS_PREFIX_PATH + "lockingRenames";
+        VFS vfs = sampleVFS(root, "lockingRenames", new VFSLockManager());
+        assertTrue(vfs.addFile(root + "/b.txt", bytes("b")));
+        AtomicInteger failedRenames = new AtomicInteger();
+        Thread forth = new Thread(() -> moveBackAndForth(vfs, root + "/src/a.txt", root + "/a.txt", failedRenames));
+        Thread back = new Thread(() -> moveBackAndForth(vfs, root + "/b.txt", root + "/src/b.txt", failedRenames));
+        forth.start();
+        back.start();
+        forth.join();
+        back.join();
+        assertEquals(0, failedRenames.get());
+        assertEquals("b", new String(vfs.readBytesFrom(new VFSFile(root + "/b.txt")), StandardCharsets.UTF_8));
+        assertTrue(vfs.getFileByPath(root + "/src/a.txt") != null);
+    }
+
+    // lock timeouts are short, a rename that lost a race is retried
+    private static void moveBackAndForth(VFS vfs, String path, String otherPath, AtomicInteger failedRenames) {
+        for (int i = 0; i < 500; i++) {
+            String from = i % 2 == 0 ? path : otherPath;
+            String to = i % 2 == 0 ? otherPath : path;
+            int attempts = 0;
+            while (!vfs.rename(from, to)) {
+                if (++attempts == 1000) {
+                    failedRenames.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private VFS sampleVFS(String root, String rootName) throws IOException {
+        return sampleVFS(root, rootName, new VFSLockManager());
+    }
+
+    private VFS sampleVFS(String root, String rootName, VFSLockManager lockManager) throws IOException {
+        VFSDirectory rootDirectory = emptyWithPath(root);
+        VFSDirectory src = emptyWithPath(root + "/src");
+        src.addSubFile(new VFSFile(root + "/src/a.txt"));
+        rootDirectory.addSubDirectory(src);
+        return new VFS(rootDirectory, initTreeFrom(rootDirectory, Paths.get(BASE_PATH, "__storage/" + rootName)), lockManager);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,130 @@
+package model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.model.VFSLockManager;
+import com.compactvfs.model.VFSLockManager.PathLock;
+import com.compactvfs.model.VFSTreeDiff;
+import com.compactvfs.storage.VFSStorageDescriptor;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static com.compactvfs.model.VFSDirectory.emptyWithPath;
+import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSMerkleTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+
+    @Test
+    public void test1_equalTreesHaveEqualHashesWhateverTheWrites() throws IOException {
+        VFS left = sampleVFS("merkleLeft");
+        VFS right = sampleVFS("merkleRight");
+        String leftRoot = VFS_PREFIX_PATH + "merkleLeft";
+        String rightRoot = VFS_PREFIX_PATH + "merkleRight";
+        assertEquals(left.getMerkleHash(), right.getMerkleHash());
+
+        left.writeBytesToNewFile(new VFSFile(leftRoot + "/src/a.txt"), bytes("hello world"));
+        right.writeBytesToNewFile(new VFSFile(rightRoot + "/src/a.txt"), bytes("hello "));
+        assertFalse(left.getMerkleHash() == right.getMerkleHash());
+        assertEquals(List.of("src/a.txt"), right.diff(left).getChangedFiles());
+
+        // content hashes are combined from chunk checksums, so chunking doesn't matter
+        right.writeBytesToTheEndOfFile(new VFSFile(rightRoot + "/src/a.txt"), bytes("world"));
+        assertEquals(left.getMerkleHash(), right.getMerkleHash());
+        assertTrue(left.diff(right).isEmpty());
+
+        assertTrue(left.rename(leftRoot + "/src", leftRoot + "/lib"));
+        VFSTreeDiff diff = left.diff(right);
+        assertEquals(List.of("lib"), diff.getOnlyInThis());
+        assertEquals(List.of("src"), diff.getOnlyInOther());
+        assertTrue(left.rename(leftRoot + "/lib", leftRoot + "/src"));
+        assertEquals(left.getMerkleHash(), right.getMerkleHash());
+
+        assertTrue(left.addFile(leftRoot + "/src/deep/c.txt", bytes("c")));
+        assertTrue(right.deleteFile(rightRoot + "/b.txt"));
+        diff = left.diff(right);
+        assertEquals(List.of("b.txt", "src/deep/c.txt"), diff.getOnlyInThis());
+        assertTrue(diff.getOnlyInOther().isEmpty());
+        assertTrue(diff.getChangedFiles().isEmpty());
+
+        assertTrue(left.deleteFile(leftRoot + "/src/deep/c.txt"));
+        assertTrue(right.addFile(rightRoot + "/b.txt", bytes("b")));
+        assertEquals(left.getMerkleHash(), right.getMerkleHash());
+    }
+
+    @Test
+    public void test2_loadedTreeHasTheSameHash() throws IOException {
+        VFS vfs = sampleVFS("merkleLoad");
+        String root = VFS_PREFIX_PATH + "merkleLoad";
+        vfs.writeBytesToNewFile(new VFSFile(root + "/src/a.txt"), bytes("a"));
+        vfs.writeBytesToTheEndOfFile(new VFSFile(root + "/src/a.txt"), bytes("aa"));
+        assertTrue(vfs.rename(root + "/b.txt", root + "/src/deep/b.txt"));
+
+        VFS loaded = VFSStorageDescriptor.load(descriptorDirPath("merkleLoad").resolve("descriptor_merkleLoad.ser"));
+        assertEquals(vfs.getMerkleHash(), loaded.getMerkleHash());
+        assertTrue(vfs.diff(loaded).isEmpty());
+    }
+
+    @Test
+    public void test3_diffLockFailuresAreRecorded() throws IOException, InterruptedException {
+        VFSLockManager lockManager = new VFSLockManager();
+        VFS vfs = sampleVFS("merkleLocks", lockManager);
+        VFS other = sampleVFS("merkleLocksOther");
+
+        // StampedLock has no owner, a write lock of this thread blocks its own read
+        PathLock writeLock = lockManager.allStripesLock(true);
+        assertTrue(writeLock.tryLock(100, 100));
+        try {
+            assertNull(other.diff(vfs));
+        } finally {
+            writeLock.unlock();
+        }
+        assertEquals(1, vfs.getMetrics().getReadLockTimeouts());
+        assertEquals(0, other.getMetrics().getReadLockTimeouts());
+
+        Thread.currentThread().interrupt();
+        assertNull(vfs.diff(other));
+        assertTrue(Thread.interrupted());
+        assertEquals(1, vfs.getMetrics().getLockInterruptions());
+        assertTrue(vfs.diff(other).getChangedFiles().isEmpty());
+    }
+
+    private VFS sampleVFS(String rootName) throws IOException {
+        return sampleVFS(rootName, new VFSLockManager());
+    }
+
+    private VFS sampleVFS(String rootName, VFSLockManager lockManager) throws IOException {
+        String root = VFS_PREFIX_PATH + rootName;
+        VFSDirectory rootDirectory = emptyWithPath(root);
+        VFSDirectory src = emptyWithPath(root + "/src");
+        src.addSubDirectory(emptyWithPath(root + "/src/deep"));
+        src.addSubFile(new VFSFile(root + "/src/a.txt"));
+        rootDirectory.addSubDirectory(src);
+        rootDirectory.addSubFile(new VFSFile(root + "/b.txt"));
+        VFS vfs = new VFS(rootDirectory, initTreeFrom(rootDirectory, descriptorDirPath(rootName)), lockManager);
+        vfs.writeBytesToNewFile(new VFSFile(root + "/b.txt"), bytes("b"));
+        return vfs;
+    }
+
+    private Path descriptorDirPath(String rootName) {
+        return Paths.get(BASE_PATH, "__storage/" + rootName);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.storage.ArchiveAdapter;
+import com.compactvfs.storage.VFSStorageDescriptor;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.fail;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ArchiveAdapterTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+
+    @Test
+    public void test1_zipIsImportedInOnePass() throws IOException {
+        Path descriptorDirPath = Paths.get(BASE_PATH, "__storage/zipImport");
+        byte[] big = new byte[VFSStorageDescriptor.DEFAULT_EXTENT_BYTES * 2 + 17];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) (i * 31);
+        }
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(zipBytes)) {
+            zip.putNextEntry(new ZipEntry("docs/"));
+            zip.putNextEntry(new ZipEntry("docs/readme.txt"));
+            zip.write("readme".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("data/nested/big.bin"));
+            zip.write(big);
+            zip.putNextEntry(new ZipEntry("empty/"));
+            zip.putNextEntry(new ZipEntry("../escape.txt"));
+            zip.write("x".getBytes(StandardCharsets.UTF_8));
+        }
+
+        VFS vfs = ArchiveAdapter.fromZip(new ByteArrayInputStream(zipBytes.toByteArray()), "zipFS", descriptorDirPath);
+        String root = VFS_PREFIX_PATH + "zipFS";
+        assertEquals("readme", new String(vfs.readBytesFrom(new VFSFile(root + "/docs/readme.txt")), StandardCharsets.UTF_8));
+        assertEquals(3, vfs.getStorageDescriptor().getChunkIndex().getById(
+                vfs.getStorageDescriptor().getChunkIndex().fileIdOf(root + "/data/nested/big.bin")).size());
+        assertEquals(big.length, vfs.readBytesFrom(new VFSFile(root + "/data/nested/big.bin")).length);
+        assertNotNull(vfs.getRootVFSDirectory().getSubDirectory(root + "/empty"));
+        assertNull(vfs.getFileByPath(root + "/escape.txt"));
+        assertEquals(1, vfs.getMetrics().getSkippedArchiveEntries());
+
+        VFS loaded = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_zipFS.ser"));
+        assertEquals(0, loaded.getRootVFSDirectory().getSubFiles().size());
+        assertEquals(3, loaded.getRootVFSDirectory().getSubDirectories().size());
+        byte[] loadedBig = loaded.readBytesFrom(new VFSFile(root + "/data/nested/big.bin"));
+        assertEquals(big[big.length - 1], loadedBig[big.length - 1]);
+        assertEquals(big.length, loadedBig.length);
+    }
+
+    @Test
+    public void test2_tarIsImportedInOnePass() throws IOException {
+        Path descriptorDirPath = Paths.get(BASE_PATH, "__storage/tarImport");
+        String longName = "deep/" + "d".repeat(120) + "/file.txt";
+        ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+        writeTarEntry(tarBytes, "deep/", '5', new byte[0]);
+        writeTarEntry(tarBytes, "././@LongLink", 'L', (longName + "\0").getBytes(StandardCharsets.UTF_8));
+        writeTarEntry(tarBytes, longName.substring(0, 99), '0', "long".getBytes(StandardCharsets.UTF_8));
+        writeTarEntry(tarBytes, "./top.txt", '0', "top content".getBytes(StandardCharsets.UTF_8));
+        writeTarEntry(tarBytes, "link", '2', new byte[0]);
+        writeTarEntry(tarBytes, "/etc/passwd", '0', "x".getBytes(StandardCharsets.UTF_8));
+        tarBytes.writeBytes(new byte[1024]);
+
+        VFS vfs = ArchiveAdapter.fromTar(new ByteArrayInputStream(tarBytes.toByteArray()), "tarFS", descriptorDirPath);
+        String root = VFS_PREFIX_PATH + "tarFS";
+        assertEquals("top content", new String(vfs.readBytesFrom(new VFSFile(root + "/top.txt")), StandardCharsets.UTF_8));
+        assertEquals("long", new String(vfs.readBytesFrom(new VFSFile(root + "/" + longName)), StandardCharsets.UTF_8));
+        assertEquals(1, vfs.getRootVFSDirectory().getSubFiles().size());
+        assertEquals(2, vfs.getMetrics().getSkippedArchiveEntries());
+
+        VFS loaded = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_tarFS.ser"));
+        assertEquals("long", new String(loaded.readBytesFrom(new VFSFile(root + "/" + longName)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test3_tarWithoutEndBlocksEndsAtHeaderBoundary() throws IOException {
+        Path descriptorDirPath = Paths.get(BASE_PATH, "__storage/tarImportNoEnd");
+        ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+        writeTarEntry(tarBytes, "a.txt", '0', "a".getBytes(StandardCharsets.UTF_8));
+
+        VFS vfs = ArchiveAdapter.fromTar(new ByteArrayInputStream(tarBytes.toByteArray()), "tarNoEndFS", descriptorDirPath);
+        String root = VFS_PREFIX_PATH + "tarNoEndFS";
+        assertEquals("a", new String(vfs.readBytesFrom(new VFSFile(root + "/a.txt")), StandardCharsets.UTF_8));
+
+        tarBytes.writeBytes(new byte[100]);
+        try {
+            ArchiveAdapter.fromTar(new ByteArrayInputStream(tarBytes.toByteArray()), "tarTornFS", descriptorDirPath);
+            fail("Tar ending inside a header is imported");
+        } catch (EOFException expected) {
+        }
+    }
+
+    private static void writeTarEntry(ByteArrayOutputStream out, String name, char type, byte[] content) {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        byte[] size = String.format("%011o", content.length).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(size, 0, header, 124, size.length);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        out.writeBytes(header);
+        out.writeBytes(content);
+        out.writeBytes(new byte[(512 - content.length % 512) % 512]);
+    }
+}
@@ -1,13 +1,16 @@
 package storage;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 
 import com.compactvfs.model.VFS;
@@ -26,6 +29,9 @@ import static com.compactvfs.storage.FSAdapter.toFS;
 import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
 import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
 import static com.compactvfs.utils.DrawUtils.toTreeString;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
 import static junit.framework.TestCase.fail;
 
 @RunWith(JUnitParamsRunner.class)
@@ -64,6 +70,44 @@ public class FSAdapterTest {
         }
     }
 
+    @Test
+    public void test4_syncToFSWritesOnlyChangedFiles() throws IOException {
+        String root = VFS_PREFIX_PATH + "syncFS";
+        VFSDirectory rootDir = new VFSDirectory(
+                root,
+                Set.of(new VFSDirectory(root + "/dir", Set.of(), Set.of(new VFSFile(root + "/dir/c.txt")))),
+                Set.of(new VFSFile(root + "/a.txt"), new VFSFile(root + "/b.txt"))
+        );
+        VFS vfs = new VFS(rootDir, initTreeFrom(rootDir, Paths.get(BASE_PATH, "__storage/sync")));
+        for (String name : List.of("a.txt", "b.txt", "dir/c.txt")) {
+            vfs.writeBytesToNewFile(new VFSFile(root + "/" + name), name.getBytes(StandardCharsets.UTF_8));
+        }
+        Path mirrorPath = Paths.get(BASE_PATH, "__storage/mirror");
+        Path mirrorRoot = mirrorPath.resolve("syncFS");
+        long sequence = FSAdapter.syncToFS(vfs, mirrorPath, -1);
+        assertEquals("dir/c.txt", Files.readString(mirrorRoot.resolve("dir/c.txt")));
+
+        // same size and time, only a rewrite of b would restore it
+        FileTime bTime = Files.getLastModifiedTime(mirrorRoot.resolve("b.txt"));
+        Files.writeString(mirrorRoot.resolve("b.txt"), "B.TXT");
+        Files.setLastModifiedTime(mirrorRoot.resolve("b.txt"), bTime);
+        Files.writeString(mirrorRoot.resolve("stale.txt"), "stale");
+
+        vfs.writeBytesToTheEndOfFile(new VFSFile(root + "/a.txt"), "+".getBytes(StandardCharsets.UTF_8));
+        assertTrue(vfs.rename(root + "/dir", root + "/moved"));
+        assertTrue(vfs.addFile(root + "/new.txt", "new".getBytes(StandardCharsets.UTF_8)));
+        long nextSequence = FSAdapter.syncToFS(vfs, mirrorPath, sequence);
+
+        assertTrue(nextSequence > sequence);
+        assertEquals("a.txt+", Files.readString(mirrorRoot.resolve("a.txt")));
+        assertEquals("B.TXT", Files.readString(mirrorRoot.resolve("b.txt")));
+        assertEquals("dir/c.txt", Files.readString(mirrorRoot.resolve("moved/c.txt")));
+        assertEquals("new", Files.readString(mirrorRoot.resolve("new.txt")));
+        assertFalse(Files.exists(mirrorRoot.resolve("dir")));
+        assertFalse(Files.exists(mirrorRoot.resolve("stale.txt")));
+        assertEquals(nextSequence, FSAdapter.syncToFS(vfs, mirrorPath, nextSequence));
+    }
+
     @SuppressWarnings("unused")
     Object[][] pathProvider() {
         Path simpleFS = Paths.get(BASE_PATH, "src/test/filesystems/simpleFS");
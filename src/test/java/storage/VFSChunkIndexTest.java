@@ -0,0 +1,113 @@
+package storage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.compactvfs.storage.VFSChunkIndex;
+import com.compactvfs.storage.VFSChunkIndex.ChunkList;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSChunkIndexTest {
+
+    @Test
+    public void test1_appendKeepsPublishedListsUnchanged() {
+        VFSChunkIndex chunkIndex = new VFSChunkIndex();
+        chunkIndex.replace("a", 100, 10);
+        ChunkList published = chunkIndex.get("a");
+        for (int i = 1; i < 100; i++) {
+            chunkIndex.append("a", 100 + i, i % 3 == 0 ? 0 : 10);
+        }
+        assertEquals(1, published.size());
+        assertEquals(10, published.getContentLength());
+
+        ChunkList chunkList = chunkIndex.get("a");
+        assertEquals(100, chunkList.size());
+        assertEquals(100 + 42, chunkList.addressAt(42));
+        assertEquals(10, chunkList.contentLengthAt(41));
+        assertEquals(0, chunkList.contentLengthAt(42));
+        assertEquals(chunkList.startOffsetAt(43), chunkList.startOffsetAt(42));
+        assertEquals(43, chunkList.chunkIndexOf(chunkList.startOffsetAt(43)));
+        assertEquals(chunkList.size(), chunkList.chunkIndexOf(chunkList.getContentLength()));
+
+        chunkIndex.replace("a", 500, 3);
+        assertEquals(1, chunkIndex.get("a").size());
+        assertEquals(100, chunkList.size());
+    }
+
+    @Test
+    public void test2_idsAreNotReusedAndTableGrows() {
+        VFSChunkIndex chunkIndex = new VFSChunkIndex();
+        for (int i = 0; i < 5000; i++) {
+            chunkIndex.replace("file" + i, i, 1);
+        }
+        int removedId = chunkIndex.fileIdOf("file7");
+        assertTrue(chunkIndex.remove("file7"));
+        assertFalse(chunkIndex.remove("file7"));
+        assertNull(chunkIndex.get("file7"));
+        chunkIndex.replace("file7", 7, 1);
+        assertTrue(chunkIndex.fileIdOf("file7") != removedId);
+
+        assertEquals(5000, chunkIndex.size());
+        assertEquals(5000, chunkIndex.getChunksCount());
+        assertEquals(4999, chunkIndex.get("file4999").addressAt(0));
+    }
+
+    @Test
+    public void test3_newIdsAreReadableWhileTableGrows() throws InterruptedException {
+        VFSChunkIndex chunkIndex = new VFSChunkIndex();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    chunkIndex.forEach((filePath, chunkList) -> chunkList.size());
+                    chunkIndex.get("file" + chunkIndex.size());
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 100_000; i++) {
+            chunkIndex.fileIdFor("file" + i);
+            chunkIndex.get("file" + i);
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(100_000, chunkIndex.size());
+    }
+
+    @Test
+    public void test4_batchIsSeenOnlyWhenApplied() {
+        VFSChunkIndex chunkIndex = new VFSChunkIndex();
+        chunkIndex.replaceById(3, 100, 10);
+        chunkIndex.replaceById(5, 200, 10);
+        ChunkList published = chunkIndex.getById(3);
+
+        VFSChunkIndex.Batch batch = chunkIndex.batch();
+        batch.replace(3, 300, 5);
+        batch.append(3, 310, 5);
+        batch.append(5, 210, 10);
+        batch.remove(5);
+        batch.append(70, 700, 1);
+        assertEquals(published, chunkIndex.getById(3));
+        assertEquals(1, chunkIndex.getById(5).size());
+        assertNull(chunkIndex.getById(70));
+
+        batch.apply();
+        assertEquals(2, chunkIndex.getById(3).size());
+        assertEquals(310, chunkIndex.getById(3).addressAt(1));
+        assertNull(chunkIndex.getById(5));
+        assertEquals(700, chunkIndex.getById(70).addressAt(0));
+        assertEquals(10, published.getContentLength());
+    }
+}
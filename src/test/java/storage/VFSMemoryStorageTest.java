@@ -0,0 +1,154 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.storage.FSAdapter;
+import com.compactvfs.storage.VFSInputStream;
+import com.compactvfs.storage.VFSMemoryStorage;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSMemoryStorageTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+
+    private static final String ROOT = VFS_PREFIX_PATH + "memoryFS";
+    private static final String FILE1 = ROOT + "/file1.txt";
+    private static final String FILE2 = ROOT + "/file2.txt";
+
+    @Test
+    public void test1_contentsAreKeptOffHeap() throws IOException {
+        VFSMemoryStorage storage = new VFSMemoryStorage(sampleTree());
+        VFS vfs = new VFS(storage.loadTree(), storage);
+
+        assertTrue(vfs.writeBytesToNewFile(new VFSFile(FILE1), bytes("first")));
+        StringBuilder expected = new StringBuilder("first");
+        for (int i = 0; i < 100; i++) {
+            String chunk = "chunk" + i;
+            assertTrue(vfs.writeBytesToTheEndOfFile(new VFSFile(FILE1), bytes(chunk)));
+            expected.append(chunk);
+        }
+        assertEquals(expected.toString(), read(vfs, FILE1));
+        assertEquals(expected.length(), vfs.stat(FILE1).getSize());
+        assertEquals(101, vfs.stat(FILE1).getChunksCount());
+        assertTrue(storage.getAllocatedBytes() >= expected.length());
+
+        // an open stream keeps its content while the file grows
+        try (VFSInputStream inputStream = storage.readFileContent(FILE1)) {
+            vfs.writeBytesToTheEndOfFile(new VFSFile(FILE1), bytes("tail"));
+            assertEquals(expected.toString(), new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        byte[] content = new byte[300_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 253);
+        }
+        assertEquals(content.length, vfs.writeStreamToNewFile(new VFSFile(FILE2), new ByteArrayInputStream(content)));
+        storage.setExtentBytes(50_000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ByteBuffer dst = ByteBuffer.allocateDirect(200_000);
+            assertEquals(200_000, vfs.readParallel(FILE2, 1000, dst, executor));
+            assertEquals(content[200_999], dst.get(199_999));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(vfs.rename(FILE2, ROOT + "/dir/moved.bin"));
+        assertTrue(Arrays.equals(content, vfs.readBytesFrom(new VFSFile(ROOT + "/dir/moved.bin"))));
+        assertTrue(vfs.deleteFile(ROOT + "/dir/moved.bin"));
+        assertNull(vfs.stat(ROOT + "/dir/moved.bin"));
+
+        assertTrue(vfs.writeBytesToNewFile(new VFSFile(FILE2), new byte[0]));
+        assertEquals(0, vfs.readBytesFrom(new VFSFile(FILE2)).length);
+
+        VFS reopened = new VFS(storage.loadTree(), storage);
+        assertEquals(expected + "tail", read(reopened, FILE1));
+        assertEquals(vfs.getMerkleHash(), reopened.getMerkleHash());
+        try {
+            vfs.snapshot();
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+    }
+
+    @Test
+    public void test2_sameContentsHashLikeSegmentStorage() throws IOException {
+        VFSDirectory memoryRoot = sampleTree();
+        VFS memoryVfs = new VFS(memoryRoot, new VFSMemoryStorage(memoryRoot));
+        VFSDirectory segmentRoot = sampleTree();
+        VFS segmentVfs = new VFS(segmentRoot, initTreeFrom(segmentRoot, Paths.get(BASE_PATH, "__storage/memory")));
+        for (VFS vfs : new VFS[]{memoryVfs, segmentVfs}) {
+            vfs.writeBytesToNewFile(new VFSFile(FILE1), bytes("abc"));
+            vfs.writeBytesToTheEndOfFile(new VFSFile(FILE1), bytes("def"));
+            vfs.addFile(ROOT + "/dir/added.txt", bytes("added"));
+        }
+        assertEquals(segmentVfs.getMerkleHash(), memoryVfs.getMerkleHash());
+        assertTrue(memoryVfs.diff(segmentVfs).isEmpty());
+    }
+
+    @Test
+    public void test3_exportsWithoutSnapshots() throws IOException {
+        VFSDirectory root = sampleTree();
+        VFS vfs = new VFS(root, new VFSMemoryStorage(root));
+        vfs.writeBytesToNewFile(new VFSFile(FILE1), bytes("one"));
+        vfs.writeBytesToNewFile(new VFSFile(FILE2), bytes("two"));
+        vfs.addFile(ROOT + "/dir/three.txt", bytes("three"));
+
+        Path exportRoot = Paths.get(BASE_PATH, "__storage/memoryExport/memoryFS");
+        FSAdapter.toFS(vfs, exportRoot.getParent());
+        assertEquals("one", Files.readString(exportRoot.resolve("file1.txt")));
+        assertEquals("three", Files.readString(exportRoot.resolve("dir/three.txt")));
+
+        Path mirrorRoot = Paths.get(BASE_PATH, "__storage/memoryMirror/memoryFS");
+        long sequence = FSAdapter.syncToFS(vfs, mirrorRoot.getParent(), -1);
+        assertTrue(sequence >= 0);
+        assertEquals("two", Files.readString(mirrorRoot.resolve("file2.txt")));
+
+        vfs.writeBytesToTheEndOfFile(new VFSFile(FILE2), bytes("+"));
+        assertTrue(vfs.deleteFile(ROOT + "/dir/three.txt"));
+        long nextSequence = FSAdapter.syncToFS(vfs, mirrorRoot.getParent(), sequence);
+        assertTrue(nextSequence > sequence);
+        assertEquals("two+", Files.readString(mirrorRoot.resolve("file2.txt")));
+        assertFalse(Files.exists(mirrorRoot.resolve("dir/three.txt")));
+        assertEquals(nextSequence, FSAdapter.syncToFS(vfs, mirrorRoot.getParent(), nextSequence));
+    }
+
+    private static VFSDirectory sampleTree() {
+        return new VFSDirectory(
+                ROOT,
+                Set.of(VFSDirectory.emptyWithPath(ROOT + "/dir")),
+                Set.of(new VFSFile(FILE1), new VFSFile(FILE2))
+        );
+    }
+
+    private static String read(VFS vfs, String filePath) throws IOException {
+        return new String(vfs.readBytesFrom(new VFSFile(filePath)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,618 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.compactvfs.model.VFS;
+import com.compactvfs.model.VFSDirectory;
+import com.compactvfs.model.VFSFile;
+import com.compactvfs.model.VFSFileStat;
+import com.compactvfs.model.VFSSnapshot;
+import com.compactvfs.storage.VFSChunkCorruptedException;
+import com.compactvfs.storage.VFSInputStream;
+import com.compactvfs.storage.VFSPack;
+import com.compactvfs.storage.VFSRecordCodec;
+import com.compactvfs.storage.VFSScrubReport;
+import com.compactvfs.storage.VFSSegmentStore;
+import com.compactvfs.storage.VFSSharedReader;
+import com.compactvfs.storage.VFSStorageDescriptor;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static com.compactvfs.model.VFSDirectory.VFS_PREFIX_PATH;
+import static com.compactvfs.storage.VFSStorageDescriptor.initTreeFrom;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSSegmentStoreTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+    private final Path descriptorDirPath = Paths.get(BASE_PATH, "__storage/segmented");
+
+    private static final String FILE1 = VFS_PREFIX_PATH + "segmentedFS/file1.txt";
+    private static final String FILE2 = VFS_PREFIX_PATH + "segmentedFS/file2.txt";
+
+    @Test
+    public void test1_appendsRollSegmentsAndSurviveLoad() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        String expected2 = writeChunks(vfs, FILE2, "b");
+
+        VFSSegmentStore segmentStore = storeOf(vfs);
+        assertTrue(segmentStore.getSegmentIds().size() > 2);
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertEquals(expected1, read(loadedVfs, FILE1));
+        assertEquals(expected2, read(loadedVfs, FILE2));
+    }
+
+    @Test
+    public void test2_replaceRecordDropsPreviousChunksOnLoad() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        writeChunks(vfs, FILE1, "a");
+        vfs.writeBytesToNewFile(vfs.getFileByPath(FILE1), "new".getBytes(StandardCharsets.UTF_8));
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertEquals("new", read(loadedVfs, FILE1));
+    }
+
+    @Test
+    public void test3_compactedSegmentIsDropped() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        String expected2 = writeChunks(vfs, FILE2, "b");
+
+        VFSSegmentStore segmentStore = storeOf(vfs);
+        int sealedSegmentId = segmentStore.getSegmentIds().stream()
+                .filter(segmentStore::isSealed)
+                .findFirst()
+                .orElseThrow();
+        assertTrue(vfs.compactSegment(sealedSegmentId));
+        assertFalse(segmentStore.getSegmentIds().contains(sealedSegmentId));
+        assertFalse(Files.exists(segmentStore.segmentPath(sealedSegmentId)));
+        assertEquals(expected1, read(vfs, FILE1));
+        assertEquals(expected2, read(vfs, FILE2));
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertEquals(expected1, read(loadedVfs, FILE1));
+        assertEquals(expected2, read(loadedVfs, FILE2));
+    }
+
+    @Test
+    public void test4_scrubReportsCorruptedFile() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        writeChunks(vfs, FILE1, "a");
+        String expected2 = writeChunks(vfs, FILE2, "b");
+        assertTrue(vfs.scrub().isClean());
+
+        long chunkAddress = vfs.getFilesContentBytePositions().get(FILE1).get(1);
+        Path segmentPath = storeOf(vfs).segmentPath(VFSSegmentStore.segmentOf(chunkAddress));
+        try (RandomAccessFile segment = new RandomAccessFile(segmentPath.toFile(), "rw")) {
+            long contentPos = VFSSegmentStore.offsetOf(chunkAddress) + VFSSegmentStore.CHUNK_HEADER_BYTES;
+            segment.seek(contentPos);
+            byte corrupted = (byte) (segment.readByte() + 1);
+            segment.seek(contentPos);
+            segment.writeByte(corrupted);
+        }
+
+        VFSScrubReport report = vfs.scrub();
+        System.out.println(report);
+        assertEquals(Set.of(FILE1), report.getDamagedFiles());
+
+        vfs.getStorageDescriptor().setVerifyChecksums(true);
+        try {
+            vfs.readBytesFrom(vfs.getFileByPath(FILE1));
+            fail();
+        } catch (VFSChunkCorruptedException ex) {
+            assertEquals(chunkAddress, ex.getChunkAddress());
+        }
+        assertEquals(expected2, read(vfs, FILE2));
+    }
+
+    @Test
+    public void test5_statIsKeptInIndexAndRestoredOnLoad() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        assertEquals(null, vfs.stat(FILE2));
+
+        VFSFileStat stat = vfs.stat(FILE1);
+        assertEquals(expected1.length(), stat.getSize());
+        assertEquals(vfs.getFilesContentBytePositions().get(FILE1).size(), stat.getChunksCount());
+        assertTrue(stat.getCreationTime() <= stat.getModificationTime());
+        String expected2 = writeChunks(vfs, FILE2, "b");
+        assertEquals(expected1.length() + expected2.length(), vfs.du(VFS_PREFIX_PATH + "segmentedFS"));
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        VFSFileStat loadedStat = loadedVfs.stat(FILE1);
+        assertEquals(stat.getSize(), loadedStat.getSize());
+        assertEquals(stat.getChunksCount(), loadedStat.getChunksCount());
+        assertEquals(stat.getCreationTime(), loadedStat.getCreationTime());
+        assertEquals(stat.getModificationTime(), loadedStat.getModificationTime());
+
+        loadedVfs.writeBytesToNewFile(loadedVfs.getFileByPath(FILE1), "new".getBytes(StandardCharsets.UTF_8));
+        assertEquals(3, loadedVfs.stat(FILE1).getSize());
+        assertEquals(1, loadedVfs.stat(FILE1).getChunksCount());
+        assertEquals(stat.getCreationTime(), loadedVfs.stat(FILE1).getCreationTime());
+    }
+
+    @Test
+    public void test6_snapshotPinsSegmentsAgainstCompaction() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        String expected2 = writeChunks(vfs, FILE2, "b");
+
+        VFSSegmentStore segmentStore = storeOf(vfs);
+        VFSSnapshot snapshot = vfs.snapshot();
+        vfs.writeBytesToNewFile(vfs.getFileByPath(FILE1), "new".getBytes(StandardCharsets.UTF_8));
+        assertTrue(vfs.deleteFile(FILE2));
+        int sealedSegmentId = segmentStore.getSegmentIds().stream()
+                .filter(segmentStore::isSealed)
+                .findFirst()
+                .orElseThrow();
+        assertTrue(vfs.compactSegment(sealedSegmentId));
+        assertFalse(segmentStore.getSegmentIds().contains(sealedSegmentId));
+        assertTrue(Files.exists(segmentStore.segmentPath(sealedSegmentId)));
+
+        assertEquals(expected1, new String(snapshot.readBytesFrom(new VFSFile(FILE1)), StandardCharsets.UTF_8));
+        assertEquals(expected2, new String(snapshot.readBytesFrom(new VFSFile(FILE2)), StandardCharsets.UTF_8));
+        assertEquals(expected1.length(), snapshot.stat(FILE1).getSize());
+        assertEquals(2, snapshot.getRootVFSDirectory().getSubFiles().size());
+        assertEquals("new", read(vfs, FILE1));
+
+        snapshot.close();
+        assertFalse(Files.exists(segmentStore.segmentPath(sealedSegmentId)));
+    }
+
+    @Test
+    public void test7_tornRecordIsCutOffOnLoad() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        String expected1 = writeChunks(vfs, FILE1, "a");
+
+        long lastChunkAddress = vfs.getFilesContentBytePositions().get(FILE1).get(5);
+        Path segmentPath = storeOf(vfs).segmentPath(VFSSegmentStore.segmentOf(lastChunkAddress));
+        long committedLength = Files.size(segmentPath);
+        try (RandomAccessFile segment = new RandomAccessFile(segmentPath.toFile(), "rw")) {
+            segment.seek(committedLength);
+            segment.writeInt(1000);
+            segment.write(new byte[10]);
+        }
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertEquals(expected1, read(loadedVfs, FILE1));
+        assertEquals(committedLength, Files.size(segmentPath));
+    }
+
+    @Test
+    public void test8_adjacentChunksAreReadAtOnce() throws IOException {
+        VFSDirectory root = new VFSDirectory(
+                VFS_PREFIX_PATH + "segmentedFS",
+                Set.of(),
+                Set.of(new VFSFile(FILE1), new VFSFile(FILE2))
+        );
+        VFSStorageDescriptor descriptor = initTreeFrom(root, descriptorDirPath, VFSSegmentStore.DEFAULT_SEGMENT_SIZE, 1);
+        descriptor.setInlineBytes(0);
+        VFS vfs = new VFS(root, descriptor);
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        String expected2 = writeChunks(vfs, FILE2, "b");
+
+        try (VFSInputStream inputStream = descriptor.readFileContent(FILE1)) {
+            assertEquals(expected1, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            assertEquals(1, inputStream.getPhysicalReadsCount());
+        }
+        assertEquals(expected2, new String(vfs.readAllFileBatched(vfs.getFileByPath(FILE2)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test9_smallAppendsAreCoalescedAndReadBeforeFlush() throws IOException, InterruptedException {
+        VFS vfs = smallSegmentsVfs();
+        VFSStorageDescriptor descriptor = vfs.getStorageDescriptor();
+        descriptor.setAppendCoalescing(32, 60_000);
+        VFSFile vfsFile = vfs.getFileByPath(FILE1);
+        vfs.writeBytesToNewFile(vfsFile, "head|".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 5; i++) {
+            vfs.writeBytesToTheEndOfFile(vfsFile, ("line" + i + "|").getBytes(StandardCharsets.UTF_8));
+        }
+        String expected = "head|line0|line1|line2|line3|line4|";
+        assertEquals(expected, read(vfs, FILE1));
+        assertEquals(expected, new String(vfs.readAllFileBatched(vfsFile), StandardCharsets.UTF_8));
+        assertEquals(expected.length(), vfs.stat(FILE1).getSize());
+        // 30 bytes are buffered, the next line fills the buffer and writes it as one chunk
+        assertEquals(1, vfs.getFilesContentBytePositions().get(FILE1).size());
+        vfs.writeBytesToTheEndOfFile(vfsFile, "line5|".getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, vfs.getFilesContentBytePositions().get(FILE1).size());
+
+        descriptor.setAppendCoalescing(32, 10);
+        vfs.writeBytesToTheEndOfFile(vfsFile, "tail".getBytes(StandardCharsets.UTF_8));
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (vfs.getFilesContentBytePositions().get(FILE1).size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(3, vfs.getFilesContentBytePositions().get(FILE1).size());
+        descriptor.setAppendCoalescing(0, 0);
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertEquals(expected + "line5|tail", read(loadedVfs, FILE1));
+    }
+
+    @Test
+    public void test10_offsetReadsFillCallerBuffers() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        String expected = writeChunks(vfs, FILE1, "a");
+        byte[] expectedBytes = expected.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(40);
+        direct.position(5);
+        assertEquals(35, vfs.read(FILE1, 7, direct));
+        direct.flip().position(5);
+        byte[] directContent = new byte[35];
+        direct.get(directContent);
+        assertEquals(expected.substring(7, 42), new String(directContent, StandardCharsets.UTF_8));
+
+        ByteBuffer head = ByteBuffer.allocate(30);
+        ByteBuffer tail = ByteBuffer.allocate(1000);
+        assertEquals(expectedBytes.length - 20, vfs.read(FILE1, 20, new ByteBuffer[]{head, tail}));
+        assertEquals(expected.substring(20, 50), new String(head.array(), StandardCharsets.UTF_8));
+        assertEquals(expected.substring(50), new String(tail.array(), 0, tail.position(), StandardCharsets.UTF_8));
+
+        byte[] b = new byte[10];
+        assertEquals(3, vfs.readNBytesFrom(vfs.getFileByPath(FILE1), expectedBytes.length - 3, b, 7, 3));
+        assertEquals(expected.substring(expectedBytes.length - 3), new String(b, 7, 3, StandardCharsets.UTF_8));
+        assertEquals(-1, vfs.read(FILE1, expectedBytes.length, ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void test11_renameMovesIdsWithoutContentWrites() throws IOException {
+        String dirPath = VFS_PREFIX_PATH + "segmentedFS/logs";
+        String logPath = dirPath + "/log.txt";
+        VFSDirectory root = new VFSDirectory(
+                VFS_PREFIX_PATH + "segmentedFS",
+                Set.of(new VFSDirectory(dirPath, Set.of(), Set.of(new VFSFile(logPath)))),
+                Set.of(new VFSFile(FILE1), new VFSFile(FILE2))
+        );
+        VFS vfs = new VFS(root, initTreeFrom(root, descriptorDirPath, 64, 2));
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        String expectedLog = writeChunks(vfs, logPath, "l");
+        VFSSnapshot snapshot = vfs.snapshot();
+        long segmentBytes = storeOf(vfs).getSegmentIds().stream()
+                .mapToLong(segmentId -> storeOf(vfs).segmentPath(segmentId).toFile().length())
+                .sum();
+
+        String renamedFile = VFS_PREFIX_PATH + "segmentedFS/logs/renamed.txt";
+        String renamedDir = VFS_PREFIX_PATH + "segmentedFS/archive";
+        assertFalse(vfs.rename(FILE1, FILE2));
+        assertFalse(vfs.rename(dirPath, dirPath + "/inner"));
+        assertTrue(vfs.rename(FILE1, renamedFile));
+        assertTrue(vfs.rename(dirPath, renamedDir));
+        assertFalse(vfs.rename(FILE1, renamedFile));
+        assertEquals(segmentBytes, storeOf(vfs).getSegmentIds().stream()
+                .mapToLong(segmentId -> storeOf(vfs).segmentPath(segmentId).toFile().length())
+                .sum());
+
+        assertEquals(expected1, read(vfs, renamedDir + "/renamed.txt"));
+        assertEquals(expectedLog, read(vfs, renamedDir + "/log.txt"));
+        assertEquals(null, vfs.getFileByPath(FILE1));
+        assertEquals(null, vfs.stat(FILE1));
+        assertEquals(2, vfs.listPrefix(renamedDir + "/").size());
+        assertEquals(expected1, new String(snapshot.readBytesFrom(new VFSFile(FILE1)), StandardCharsets.UTF_8));
+        snapshot.close();
+
+        // a new file under the old path gets a new id and none of the old content
+        assertTrue(vfs.addFile(FILE1, "new".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(vfs.deleteFile(FILE2));
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertEquals(expected1, read(loadedVfs, renamedDir + "/renamed.txt"));
+        assertEquals(expectedLog, read(loadedVfs, renamedDir + "/log.txt"));
+        assertEquals("new", read(loadedVfs, FILE1));
+        assertEquals(null, loadedVfs.stat(FILE2));
+    }
+
+    @Test
+    public void test12_sharedReaderCatchesUpWithWriter() throws IOException {
+        Path descriptorPath = descriptorDirPath.resolve("descriptor_segmentedFS.ser");
+        VFS vfs = smallSegmentsVfs();
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        assertTrue(vfs.enableSharedReaders());
+        try {
+            VFSStorageDescriptor.loadWriter(descriptorPath);
+            fail("Second writer must not take the store");
+        } catch (IOException expected) {
+            // writer lock is held by the first writer
+        }
+        try {
+            VFSStorageDescriptor.load(descriptorPath);
+            fail("Load must not recover the store under a writer");
+        } catch (IOException expected) {
+            // recovery would cut the active tail of the writer
+        }
+
+        try (VFSSharedReader reader = VFSSharedReader.open(descriptorPath)) {
+            assertEquals(expected1, new String(reader.readBytes(FILE1), StandardCharsets.UTF_8));
+            vfs.writeBytesToTheEndOfFile(vfs.getFileByPath(FILE1), "tail".getBytes(StandardCharsets.UTF_8));
+            String expected2 = writeChunks(vfs, FILE2, "b");
+            assertEquals(expected1, new String(reader.readBytes(FILE1), StandardCharsets.UTF_8));
+
+            reader.refresh();
+            assertEquals(expected1 + "tail", new String(reader.readBytes(FILE1), StandardCharsets.UTF_8));
+            assertEquals(expected2, new String(reader.readBytes(FILE2), StandardCharsets.UTF_8));
+
+            String renamed = VFS_PREFIX_PATH + "segmentedFS/renamed.txt";
+            assertTrue(vfs.rename(FILE2, renamed));
+            VFSSegmentStore segmentStore = storeOf(vfs);
+            for (int segmentId : List.copyOf(segmentStore.getSegmentIds())) {
+                if (segmentStore.isSealed(segmentId)) {
+                    assertTrue(vfs.compactSegment(segmentId));
+                }
+            }
+            reader.refresh();
+            assertEquals(-1, reader.fileIdOf(FILE2));
+            assertEquals(expected2, new String(reader.readBytes(renamed), StandardCharsets.UTF_8));
+
+            // a new writer session starts a new log, the reader rebuilds from it
+            vfs.getStorageDescriptor().disableSharedReaders();
+            VFS nextWriter = VFSStorageDescriptor.loadWriter(descriptorPath);
+            nextWriter.writeBytesToNewFile(nextWriter.getFileByPath(FILE1), "next".getBytes(StandardCharsets.UTF_8));
+            reader.refresh();
+            assertEquals("next", new String(reader.readBytes(FILE1), StandardCharsets.UTF_8));
+            assertEquals(expected2, new String(reader.readBytes(renamed), StandardCharsets.UTF_8));
+            nextWriter.getStorageDescriptor().disableSharedReaders();
+        }
+    }
+
+    @Test
+    public void test13_sealedPackServesLookupsFromOneFile() throws IOException {
+        String dirPath = VFS_PREFIX_PATH + "segmentedFS/logs";
+        String logPath = dirPath + "/log.txt";
+        VFSDirectory root = new VFSDirectory(
+                VFS_PREFIX_PATH + "segmentedFS",
+                Set.of(new VFSDirectory(dirPath, Set.of(), Set.of(new VFSFile(logPath)))),
+                Set.of(new VFSFile(FILE1), new VFSFile(FILE2))
+        );
+        VFS vfs = new VFS(root, initTreeFrom(root, descriptorDirPath, 64, 2));
+        String expected1 = writeChunks(vfs, FILE1, "a");
+        String expectedLog = writeChunks(vfs, logPath, "l");
+        Path packPath = descriptorDirPath.resolve("segmentedFS.pack");
+        assertTrue(vfs.seal(packPath));
+
+        try (VFSPack pack = VFSPack.open(packPath)) {
+            assertEquals(3, pack.getFilesCount());
+            assertEquals(expected1, new String(pack.readBytes(FILE1), StandardCharsets.UTF_8));
+            assertEquals(expectedLog, new String(pack.readBytes(logPath), StandardCharsets.UTF_8));
+            assertEquals(0, pack.readBytes(FILE2).length);
+            assertEquals(null, pack.readBytes(dirPath));
+            assertEquals(null, pack.readBytes(VFS_PREFIX_PATH + "segmentedFS/file3.txt"));
+            assertTrue(pack.getTree().toVFSDirectory().compareStructure(root));
+            assertTrue(pack.contentOf(FILE1).isReadOnly());
+        }
+
+        Set<VFSFile> manyFiles = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            manyFiles.add(new VFSFile(VFS_PREFIX_PATH + "segmentedFS/f" + i));
+        }
+        VFSDirectory manyFilesRoot = new VFSDirectory(VFS_PREFIX_PATH + "segmentedFS", Set.of(), manyFiles);
+        VFS manyFilesVfs = new VFS(manyFilesRoot, initTreeFrom(manyFilesRoot, descriptorDirPath, 64, 2));
+        assertTrue(manyFilesVfs.seal(packPath));
+        try (VFSPack pack = VFSPack.open(packPath)) {
+            for (VFSFile file : manyFiles) {
+                assertEquals(0, pack.readBytes(file.getPath()).length);
+            }
+            assertEquals(null, pack.readBytes(VFS_PREFIX_PATH + "segmentedFS/f5000"));
+        }
+    }
+
+    @Test
+    public void test14_largeContentIsSplitIntoExtentsReadInParallel() throws IOException {
+        VFSDirectory root = new VFSDirectory(
+                VFS_PREFIX_PATH + "segmentedFS",
+                Set.of(),
+                Set.of(new VFSFile(FILE1), new VFSFile(FILE2))
+        );
+        VFS vfs = new VFS(root, initTreeFrom(root, descriptorDirPath));
+        VFSStorageDescriptor descriptor = vfs.getStorageDescriptor();
+        descriptor.setExtentBytes(1000);
+        byte[] content = new byte[10_500];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        assertTrue(vfs.writeBytesToNewFile(new VFSFile(FILE1), content));
+        assertEquals(11, descriptor.getChunkIndex().get(FILE1).size());
+        assertEquals(10_500, vfs.stat(FILE1).getSize());
+        assertEquals(10_500, vfs.writeStreamToNewFile(new VFSFile(FILE2), new ByteArrayInputStream(content)));
+        assertEquals(11, descriptor.getChunkIndex().get(FILE2).size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (boolean verifyChecksums : new boolean[]{false, true}) {
+                descriptor.setVerifyChecksums(verifyChecksums);
+                ByteBuffer dst = ByteBuffer.allocateDirect(8000);
+                assertEquals(8000, vfs.readParallel(FILE2, 1234, dst, executor));
+                assertFalse(dst.hasRemaining());
+                for (int i = 0; i < 8000; i++) {
+                    assertEquals(content[1234 + i], dst.get(i));
+                }
+                ByteBuffer tail = ByteBuffer.allocate(1000);
+                assertEquals(500, vfs.readParallel(FILE1, 10_000, tail, executor));
+                assertEquals(content[10_499], tail.get(499));
+                assertEquals(-1, vfs.readParallel(FILE1, 10_500, tail, executor));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertTrue(Arrays.equals(content, loadedVfs.readBytesFrom(new VFSFile(FILE2))));
+        assertEquals(11, loadedVfs.stat(FILE2).getChunksCount());
+    }
+
+    @Test
+    public void test15_smallFilesAreCachedInlineUntilTheyGrow() throws IOException {
+        VFSDirectory root = new VFSDirectory(
+                VFS_PREFIX_PATH + "segmentedFS",
+                Set.of(),
+                Set.of(new VFSFile(FILE1), new VFSFile(FILE2))
+        );
+        VFS vfs = new VFS(root, initTreeFrom(root, descriptorDirPath));
+        VFSStorageDescriptor descriptor = vfs.getStorageDescriptor();
+        descriptor.setInlineBytes(200);
+        String expected = writeChunks(vfs, FILE1, "a");
+        assertTrue(descriptor.isInline(FILE1));
+        assertEquals(6, descriptor.getChunkIndex().get(FILE1).size());
+        try (VFSInputStream inputStream = descriptor.readFileContent(FILE1)) {
+            assertEquals(expected, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            assertEquals(0, inputStream.getPhysicalReadsCount());
+        }
+
+        // nothing is read on load, the first read fills the cache
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertFalse(loadedVfs.getStorageDescriptor().isInline(FILE1));
+        assertEquals(expected, read(loadedVfs, FILE1));
+        assertTrue(loadedVfs.getStorageDescriptor().isInline(FILE1));
+
+        // promoted: the small chunks are rewritten as one, the append isn't copied into it
+        byte[] grown = new byte[100];
+        Arrays.fill(grown, (byte) 'g');
+        assertTrue(vfs.writeBytesToTheEndOfFile(new VFSFile(FILE1), grown));
+        assertFalse(descriptor.isInline(FILE1));
+        assertEquals(2, descriptor.getChunkIndex().get(FILE1).size());
+        assertEquals(expected + "g".repeat(100), read(vfs, FILE1));
+        assertEquals(expected.length() + 100, vfs.stat(FILE1).getSize());
+
+        assertTrue(vfs.writeBytesToNewFile(new VFSFile(FILE1), "small".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(descriptor.isInline(FILE1));
+        assertTrue(vfs.rename(FILE1, FILE1 + ".moved"));
+        assertTrue(descriptor.isInline(FILE1 + ".moved"));
+        assertEquals("small", read(vfs, FILE1 + ".moved"));
+        assertTrue(vfs.deleteFile(FILE1 + ".moved"));
+        assertFalse(descriptor.isInline(FILE1 + ".moved"));
+    }
+
+    @Test
+    public void test16_sealedSegmentIsNotCutOnLoad() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        String expected1 = writeChunks(vfs, FILE1, "a");
+
+        int sealedSegmentId = vfs.getFilesContentBytePositions().get(FILE1).stream()
+                .map(VFSSegmentStore::segmentOf)
+                .filter(segmentId -> storeOf(vfs).isSealed(segmentId))
+                .findFirst()
+                .orElseThrow();
+        Path segmentPath = storeOf(vfs).segmentPath(sealedSegmentId);
+        long sealedLength = Files.size(segmentPath);
+        try (RandomAccessFile segment = new RandomAccessFile(segmentPath.toFile(), "rw")) {
+            segment.seek(sealedLength);
+            segment.writeInt(1000);
+            segment.write(new byte[10]);
+        }
+
+        VFS loadedVfs = VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+        assertEquals(expected1, read(loadedVfs, FILE1));
+        assertEquals(sealedLength + 14, Files.size(segmentPath));
+        assertEquals(1, loadedVfs.getMetrics().getCorruptions());
+        VFSScrubReport report = loadedVfs.scrub();
+        assertFalse(report.isClean());
+        assertTrue(report.getDamagedFiles().isEmpty());
+        assertTrue(report.getSegmentResults().stream()
+                .anyMatch(result -> result.getSegmentId() == sealedSegmentId && result.getTornOffset() == sealedLength));
+    }
+
+    @Test
+    public void test17_backgroundFlushFailureIsReportedToTheNextFlush() throws IOException, InterruptedException {
+        VFS vfs = smallSegmentsVfs();
+        VFSStorageDescriptor descriptor = vfs.getStorageDescriptor();
+        descriptor.setAppendCoalescing(32, 10);
+        VFSFile vfsFile = vfs.getFileByPath(FILE1);
+        vfs.writeBytesToNewFile(vfsFile, "head|".getBytes(StandardCharsets.UTF_8));
+        // no segment can be rolled without the segments directory
+        storeOf(vfs).clear();
+        vfs.writeBytesToTheEndOfFile(vfsFile, "tail".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(200);
+        assertTrue(vfs.getMetrics().getAppendFlushFailures() > 0);
+
+        try {
+            descriptor.flushAppendBuffers();
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Background flush"));
+        }
+        // the appends stay buffered, the retry fails again
+        assertEquals("head|tail".length(), vfs.stat(FILE1).getSize());
+        try {
+            descriptor.setAppendCoalescing(0, 0);
+            fail();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void test18_unparsableRecordBeforeIntactOnesFailsLoad() throws IOException {
+        VFS vfs = smallSegmentsVfs();
+        writeChunks(vfs, FILE1, "a");
+
+        long lastChunkAddress = vfs.getFilesContentBytePositions().get(FILE1).get(5);
+        Path segmentPath = storeOf(vfs).segmentPath(VFSSegmentStore.segmentOf(lastChunkAddress));
+        long recordStart = VFSSegmentStore.offsetOf(lastChunkAddress) - VFSRecordCodec.RECORD_META_BYTES;
+        byte[] segmentBytes = Files.readAllBytes(segmentPath);
+        try (RandomAccessFile segment = new RandomAccessFile(segmentPath.toFile(), "rw")) {
+            segment.seek(segmentBytes.length);
+            segment.writeInt(1000);
+            segment.write(new byte[10]);
+            // an intact record after the unparsable one, so it's not a torn tail
+            segment.write(segmentBytes, (int) recordStart, segmentBytes.length - (int) recordStart);
+        }
+        long corruptedLength = Files.size(segmentPath);
+
+        try {
+            VFSStorageDescriptor.load(descriptorDirPath.resolve("descriptor_segmentedFS.ser"));
+            fail("Load must not cut intact records");
+        } catch (IOException expected) {
+            // the record at the end of the segment parses
+        }
+        assertEquals(corruptedLength, Files.size(segmentPath));
+    }
+
+    private VFS smallSegmentsVfs() throws IOException {
+        VFSDirectory root = new VFSDirectory(
+                VFS_PREFIX_PATH + "segmentedFS",
+                Set.of(),
+                Set.of(new VFSFile(FILE1), new VFSFile(FILE2))
+        );
+        VFSStorageDescriptor descriptor = initTreeFrom(root, descriptorDirPath, 64, 2);
+        // contents are read from the segments
+        descriptor.setInlineBytes(0);
+        return new VFS(root, descriptor);
+    }
+
+    private static String writeChunks(VFS vfs, String filePath, String chunkPrefix) throws IOException {
+        VFSFile vfsFile = vfs.getFileByPath(filePath);
+        StringBuilder expected = new StringBuilder();
+        vfs.writeBytesToNewFile(vfsFile, new byte[0]);
+        for (String chunk : List.of("1", "22", "333", "4444", "55555")) {
+            String content = chunkPrefix + chunk.repeat(10);
+            vfs.writeBytesToTheEndOfFile(vfsFile, content.getBytes(StandardCharsets.UTF_8));
+            expected.append(content);
+        }
+        return expected.toString();
+    }
+
+    private static String read(VFS vfs, String filePath) throws IOException {
+        return new String(vfs.readBytesFrom(vfs.getFileByPath(filePath)), StandardCharsets.UTF_8);
+    }
+
+    private static VFSSegmentStore storeOf(VFS vfs) {
+        return vfs.getStorageDescriptor().getSegmentStore();
+    }
+}
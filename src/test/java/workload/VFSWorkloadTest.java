@@ -0,0 +1,74 @@
+package workload;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import com.compactvfs.model.VFS;
+import com.compactvfs.workload.VFSWorkload;
+import com.compactvfs.workload.VFSWorkloadResult;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VFSWorkloadTest {
+    private final String BASE_PATH = System.getProperty("user.dir");
+
+    @Test
+    public void test1_mixedWorkloadIsMeasuredAndWritten() throws IOException {
+        VFSWorkload workload = new VFSWorkload()
+                .threads(4)
+                .operations(100, 500)
+                .mix(90, 8, 2)
+                .tree(3, 2, 2)
+                .contentBytes(256, 16)
+                .seed(7);
+        VFS vfs = workload.generateTree("workloadFS", Paths.get(BASE_PATH, "__storage/workload"));
+        assertEquals(30, vfs.getRootVFSDirectory().getAllSubFilesRecursive().size());
+
+        VFSWorkloadResult result = workload.run(vfs);
+        assertEquals(2000, result.getOperations());
+        assertEquals(2000, result.getReadsCount() + result.getAppendsCount() + result.getAddFilesCount());
+        assertTrue(result.getReadsCount() > result.getAppendsCount());
+        assertTrue(result.getReadLatency(0.5) <= result.getReadLatency(0.99));
+        assertTrue(result.getReadLatency(0.99) <= result.getReadLatency(0.999));
+        assertTrue(result.getThroughputPerSecond() > 0);
+
+        Path resultPath = Paths.get(BASE_PATH, "__storage/workload/result.txt");
+        result.writeTo(resultPath);
+        List<String> lines = Files.readAllLines(resultPath);
+        assertEquals("threads=4", lines.get(0));
+        assertTrue(lines.contains("mix=90/8/2"));
+        assertTrue(lines.contains("operations=2000"));
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("read.p999Ns=")));
+
+        // files added by the first run stay in the tree, the second run adds its own next to them
+        long firstRunFilesCount = countFiles(vfs, "/r0_w");
+        assertTrue(firstRunFilesCount > 0);
+        workload.run(vfs);
+        assertEquals(firstRunFilesCount, countFiles(vfs, "/r0_w"));
+        assertTrue(countFiles(vfs, "/r1_w") > 0);
+    }
+
+    @Test
+    public void test2_sameSeedIssuesSameOperations() throws IOException {
+        VFSWorkload workload = new VFSWorkload().threads(2).operations(0, 300).tree(2, 2, 1).seed(11);
+        VFSWorkloadResult first = workload.run(workload.generateTree("workloadA", Paths.get(BASE_PATH, "__storage/workloadA")));
+        VFSWorkloadResult second = workload.run(workload.generateTree("workloadB", Paths.get(BASE_PATH, "__storage/workloadB")));
+        assertEquals(first.getReadsCount(), second.getReadsCount());
+        assertEquals(first.getAppendsCount(), second.getAppendsCount());
+        assertEquals(first.getAddFilesCount(), second.getAddFilesCount());
+    }
+
+    private static long countFiles(VFS vfs, String namePart) {
+        return vfs.getRootVFSDirectory().getAllSubFilesRecursive().stream()
+                .filter(file -> file.getPath().contains(namePart))
+                .count();
+    }
+}